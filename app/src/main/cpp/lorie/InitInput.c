@@ -41,13 +41,18 @@ from The Open Group.
 
 unused DeviceIntPtr lorieMouse, lorieTouch, lorieKeyboard;
 
+void lorieInitKeysymIndex(void);
+void lorieSendBell(int volume, int pitch, int duration);
+
 void
 ProcessInputEvents(void) {
     mieqProcessInputEvents();
 }
 
 void
-DDXRingBell(unused int volume, unused int pitch, unused int duration) {}
+DDXRingBell(int volume, int pitch, int duration) {
+    lorieSendBell(volume, pitch, duration);
+}
 
 static int
 lorieKeybdProc(DeviceIntPtr pDevice, int onoff) {
@@ -193,6 +198,7 @@ InitInput(unused int argc, unused char *argv[]) {
     AssignTypeAndName(lorieMouse, MakeAtom(XI_MOUSE, sizeof(XI_MOUSE) - 1, TRUE), "Lorie mouse");
     AssignTypeAndName(lorieTouch, MakeAtom(XI_TOUCHSCREEN, sizeof(XI_TOUCHSCREEN) - 1, TRUE), "Lorie touch");
     AssignTypeAndName(lorieKeyboard, MakeAtom(XI_KEYBOARD, sizeof(XI_KEYBOARD) - 1, TRUE), "Lorie keyboard");
+    lorieInitKeysymIndex();
     (void) mieqInit();
 }
 
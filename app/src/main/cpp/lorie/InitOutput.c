@@ -84,9 +84,15 @@ from The Open Group.
 #define unwrap(priv, real, mem) { real->mem = priv->mem; }
 #define USAGE (AHARDWAREBUFFER_USAGE_CPU_WRITE_OFTEN | AHARDWAREBUFFER_USAGE_CPU_READ_OFTEN)
 #define log(prio, ...) __android_log_print(ANDROID_LOG_ ## prio, "LorieNative", __VA_ARGS__)
+#define IDLE_FRAMES 4 // Frames without redraw before redraw timer is disarmed in adaptive pacing mode
 
 extern DeviceIntPtr lorieMouse, lorieKeyboard;
 
+typedef struct {
+    uint32_t count;
+    uint64_t total, max;
+} lorieWaitStats;
+
 typedef struct {
     CloseScreenProcPtr CloseScreen;
     CreateScreenResourcesProcPtr CreateScreenResources;
@@ -96,23 +102,38 @@ typedef struct {
     OsTimerPtr fpsTimer;
 
     Bool cursorMoved;
+    Bool hardwareCursor; // Cursor is drawn by activity, moving it does not need redraw
     int timerFd;
 
+    struct {
+        Bool adaptive, armed;
+        int idleFrames;
+        long interval; // nanoseconds
+        uint32_t vsyncPeriod, vsyncPhase; // nanoseconds, reported by activity
+    } pacing;
+
     struct {
         AHardwareBuffer* buffer;
         Bool locked;
         Bool legacyDrawing;
         uint8_t flip;
         uint32_t width, height;
+
+        // Multiple buffering: X draws to a shadow pixmap, renderer samples one of these.
+        AHardwareBuffer* buffers[RENDERER_MAX_BUFFERS];
+        RegionRec pending[RENDERER_MAX_BUFFERS];
+        int count, current;
     } root;
 
+    lorieWaitStats lockWait, unlockWait;
+
     JavaVM* vm;
     JNIEnv* env;
     Bool dri3;
 } lorieScreenInfo, *lorieScreenInfoPtr;
 
 ScreenPtr pScreenPtr;
-static lorieScreenInfo lorieScreen = { .root.width = 1280, .root.height = 1024, .dri3 = TRUE };
+static lorieScreenInfo lorieScreen = { .root.width = 1280, .root.height = 1024, .root.count = 1, .root.current = -1, .dri3 = TRUE };
 static lorieScreenInfoPtr pvfb = &lorieScreen;
 static char *xstartup = NULL;
 
@@ -168,6 +189,7 @@ static void* ddxReadyThread(unused void* cookie) {
 
 void
 ddxReady(void) {
+    lorieServerReady();
     if (!xstartup)
         return;
 
@@ -203,6 +225,9 @@ void ddxUseMsg(void) {
     ErrorF("-legacy-drawing        use legacy drawing, without using AHardwareBuffers\n");
     ErrorF("-force-bgra            force flipping colours (RGBA->BGRA)\n");
     ErrorF("-disable-dri3          disabling DRI3 support (to let lavapipe work)\n");
+    ErrorF("-input-history mode    handling of motion history: coalesce (default), replay or resample to framerate\n");
+    ErrorF("-adaptive-pacing       stop redrawing while screen and cursor are idle\n");
+    ErrorF("-root-buffers n        number of buffers used to present root window (1-%d, default 1)\n", RENDERER_MAX_BUFFERS);
 }
 
 int ddxProcessArgument(unused int argc, unused char *argv[], unused int i) {
@@ -227,6 +252,36 @@ int ddxProcessArgument(unused int argc, unused char *argv[], unused int i) {
         return 1;
     }
 
+    if (strcmp(argv[i], "-input-history") == 0) {
+        CHECK_FOR_REQUIRED_ARGUMENTS(1);
+        if (strcmp(argv[++i], "coalesce") == 0)
+            lorieInputHistory = INPUT_HISTORY_COALESCE;
+        else if (strcmp(argv[i], "replay") == 0)
+            lorieInputHistory = INPUT_HISTORY_REPLAY;
+        else if (strcmp(argv[i], "resample") == 0)
+            lorieInputHistory = INPUT_HISTORY_RESAMPLE;
+        else {
+            UseMsg();
+            FatalError("Unknown input history mode: %s\n", argv[i]);
+        }
+        return 2;
+    }
+
+    if (strcmp(argv[i], "-adaptive-pacing") == 0) {
+        pvfb->pacing.adaptive = TRUE;
+        return 1;
+    }
+
+    if (strcmp(argv[i], "-root-buffers") == 0) {
+        CHECK_FOR_REQUIRED_ARGUMENTS(1);
+        pvfb->root.count = atoi(argv[++i]);
+        if (pvfb->root.count < 1 || pvfb->root.count > RENDERER_MAX_BUFFERS) {
+            UseMsg();
+            FatalError("Invalid root buffers count: %s\n", argv[i]);
+        }
+        return 2;
+    }
+
     return 0;
 }
 
@@ -256,9 +311,63 @@ static RRModePtr lorieCvt(int width, int height, int framerate) {
     return mode;
 }
 
+static inline uint64_t lorieNanotime(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+/*
+ * Starts redraw timer if it is not running. In the case if activity reported vsync timings
+ * the first expiration is aligned to the next vsync and timer runs with the display's period.
+ * Cursor is moved in input thread, so pacing state is guarded with input lock.
+ */
+static void lorieArmTimer(void) {
+    struct itimerspec spec = {0};
+    uint32_t period = pvfb->pacing.vsyncPeriod, phase = pvfb->pacing.vsyncPhase;
+    long interval = period ?: pvfb->pacing.interval;
+    int flags = 0;
+
+    input_lock();
+    pvfb->pacing.idleFrames = 0;
+    if (!pvfb->pacing.armed && interval) {
+        spec.it_interval.tv_nsec = interval;
+        if (period) {
+            uint64_t now = lorieNanotime();
+            uint64_t next = now + (phase + period - now % period) % period;
+            spec.it_value.tv_sec = (time_t) (next / 1000000000ULL);
+            spec.it_value.tv_nsec = (long) (next % 1000000000ULL);
+            flags = TFD_TIMER_ABSTIME;
+        } else
+            spec.it_value.tv_nsec = interval;
+
+        timerfd_settime(pvfb->timerFd, flags, &spec, NULL);
+        pvfb->pacing.armed = TRUE;
+    }
+    input_unlock();
+}
+
+static void lorieDisarmTimer(void) {
+    struct itimerspec spec = {0};
+
+    input_lock();
+    timerfd_settime(pvfb->timerFd, 0, &spec, NULL);
+    pvfb->pacing.armed = FALSE;
+    input_unlock();
+}
+
+static void lorieDamageReport(unused DamagePtr damage, unused RegionPtr region, unused void *closure) {
+    lorieArmTimer();
+}
+
 static void lorieMoveCursor(unused DeviceIntPtr pDev, unused ScreenPtr pScr, int x, int y) {
     renderer_set_cursor_coordinates(x, y);
+    if (pvfb->hardwareCursor)
+        return;
+
     pvfb->cursorMoved = TRUE;
+    if (pvfb->pacing.adaptive)
+        lorieArmTimer();
 }
 
 static void lorieConvertCursor(CursorPtr pCurs, CARD32 *data) {
@@ -295,8 +404,11 @@ static void lorieSetCursor(unused DeviceIntPtr pDev, unused ScreenPtr pScr, Curs
 
         lorieConvertCursor(pCurs, data);
         renderer_update_cursor(bits->width, bits->height, bits->xhot, bits->yhot, data);
-    } else
+        lorieSendCursor(bits->width, bits->height, bits->xhot, bits->yhot, data);
+    } else {
         renderer_update_cursor(0, 0, 0, 0, NULL);
+        lorieSendCursor(0, 0, 0, 0, NULL);
+    }
 
     if (x0 >= 0 && y0 >= 0)
         lorieMoveCursor(NULL, NULL, x0, y0);
@@ -317,13 +429,62 @@ static miPointerScreenFuncRec loriePointerCursorFuncs = {
     .WarpCursor = miPointerWarpCursor
 };
 
+static inline void lorieAccountWait(lorieWaitStats *stats, renderer_stat stat, uint64_t start) {
+    uint64_t elapsed = lorieNanotime() - start;
+    renderer_stat_record(stat, elapsed);
+    stats->count++;
+    stats->total += elapsed;
+    stats->max = max(stats->max, elapsed);
+}
+
+static inline int lorieBufferLock(AHardwareBuffer *buffer, void **data) {
+    uint64_t start = lorieNanotime();
+    int status = AHardwareBuffer_lock(buffer, USAGE, -1, NULL, data);
+    lorieAccountWait(&pvfb->lockWait, RENDERER_STAT_LOCK, start);
+    return status;
+}
+
+static inline void lorieBufferUnlock(AHardwareBuffer *buffer) {
+    uint64_t start = lorieNanotime();
+    AHardwareBuffer_unlock(buffer, NULL);
+    lorieAccountWait(&pvfb->unlockWait, RENDERER_STAT_UNLOCK, start);
+}
+
+static void lorieUpdateRootBuffers(void) {
+    AHardwareBuffer_Desc desc = {
+            .width = pScreenPtr->width,
+            .height = pScreenPtr->height,
+            .layers = 1,
+            .usage = USAGE | AHARDWAREBUFFER_USAGE_GPU_SAMPLED_IMAGE,
+            .format = pvfb->root.flip ? AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM : AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM,
+    };
+    BoxRec box = { .x1 = 0, .y1 = 0, .x2 = pScreenPtr->width, .y2 = pScreenPtr->height };
+    int status;
+
+    for (int i = 0; i < pvfb->root.count; i++) {
+        if (pvfb->root.buffers[i])
+            AHardwareBuffer_release(pvfb->root.buffers[i]);
+
+        status = AHardwareBuffer_allocate(&desc, &pvfb->root.buffers[i]);
+        if (status != 0)
+            FatalError("Failed to allocate root window buffer (error %d)", status);
+
+        // Fresh buffers have no contents, so they should receive the whole screen on their first use.
+        RegionUninit(&pvfb->root.pending[i]);
+        RegionInit(&pvfb->root.pending[i], &box, 1);
+    }
+
+    pvfb->root.current = -1;
+    renderer_set_buffers(pvfb->root.count, pvfb->root.buffers);
+}
+
 static void lorieUpdateBuffer(void) {
     AHardwareBuffer_Desc d0 = {}, d1 = {};
     AHardwareBuffer *new = NULL, *old = pvfb->root.buffer;
     int status, wasLocked = pvfb->root.locked;
     void *data0 = NULL, *data1 = NULL;
 
-    if (pvfb->root.legacyDrawing) {
+    if (pvfb->root.legacyDrawing || pvfb->root.count > 1) {
         PixmapPtr pixmap = (PixmapPtr) pScreenPtr->devPrivate;
         DrawablePtr draw = &pixmap->drawable;
         data0 = malloc(pScreenPtr->width * pScreenPtr->height * 4);
@@ -333,6 +494,8 @@ static void lorieUpdateBuffer(void) {
                        min(draw->width, pScreenPtr->width), min(draw->height, pScreenPtr->height));
         pScreenPtr->ModifyPixmapHeader(pScreenPtr->devPrivate, pScreenPtr->width, pScreenPtr->height, 32, 32, pScreenPtr->width * 4, data0);
         free(data1);
+        if (!pvfb->root.legacyDrawing)
+            lorieUpdateRootBuffers();
         return;
     }
 
@@ -353,7 +516,7 @@ static void lorieUpdateBuffer(void) {
             FatalError("Failed to allocate root window pixmap (error %d)", status);
 
         AHardwareBuffer_describe(new, &d0);
-        status = AHardwareBuffer_lock(new, USAGE, -1, NULL, &data0);
+        status = lorieBufferLock(new, &data0);
         if (status != 0)
             FatalError("Failed to lock root window pixmap (error %d)", status);
 
@@ -367,7 +530,7 @@ static void lorieUpdateBuffer(void) {
 
     if (old) {
         if (wasLocked)
-            AHardwareBuffer_unlock(old, NULL);
+            lorieBufferUnlock(old);
 
         if (new && pvfb->root.locked) {
             /*
@@ -396,11 +559,17 @@ static void lorieUpdateBuffer(void) {
 }
 
 static inline void loriePixmapUnlock(PixmapPtr pixmap) {
-    if (pvfb->root.legacyDrawing)
-        return renderer_update_root(pixmap->drawable.width, pixmap->drawable.height, pixmap->devPrivate.ptr, pvfb->root.flip);
+    if (pvfb->root.legacyDrawing) {
+        RegionPtr damage = DamageRegion(pvfb->damage);
+        uint64_t start = lorieNanotime();
+        renderer_update_root_damage(pixmap->drawable.width, pixmap->drawable.height, pixmap->devPrivate.ptr,
+                                    pvfb->root.flip, RegionNumRects(damage), (renderer_box*) RegionRects(damage));
+        renderer_stat_record(RENDERER_STAT_DAMAGE, lorieNanotime() - start);
+        return;
+    }
 
     if (pvfb->root.locked)
-        AHardwareBuffer_unlock(pvfb->root.buffer, NULL);
+        lorieBufferUnlock(pvfb->root.buffer);
 
     pvfb->root.locked = FALSE;
     pixmap->drawable.pScreen->ModifyPixmapHeader(pixmap, -1, -1, -1, -1, -1, NULL);
@@ -420,7 +589,7 @@ static inline Bool loriePixmapLock(PixmapPtr pixmap) {
     }
 
     AHardwareBuffer_describe(pvfb->root.buffer, &desc);
-    status = AHardwareBuffer_lock(pvfb->root.buffer, USAGE, -1, NULL, &data);
+    status = lorieBufferLock(pvfb->root.buffer, &data);
     pvfb->root.locked = status == 0;
     if (pvfb->root.locked)
         pixmap->drawable.pScreen->ModifyPixmapHeader(pixmap, desc.width, desc.height, -1, -1, desc.stride * 4, data);
@@ -430,11 +599,62 @@ static inline Bool loriePixmapLock(PixmapPtr pixmap) {
     return pvfb->root.locked;
 }
 
+/*
+ * Copies damaged parts of the shadow pixmap to the buffer which was presented the longest time ago
+ * and makes the renderer sample it. The X thread never touches the buffer which is currently on screen
+ * so locking it should not wait for GPU.
+ */
+static Bool lorieSwapRootBuffers(void) {
+    PixmapPtr pixmap = (PixmapPtr) pScreenPtr->devPrivate;
+    RegionPtr damage = DamageRegion(pvfb->damage);
+    int next = (pvfb->root.current + 1) % pvfb->root.count;
+    AHardwareBuffer_Desc desc = {};
+    uint64_t start = lorieNanotime(), elapsed;
+    BoxPtr boxes;
+    void *data;
+    int status;
+
+    for (int i = 0; i < pvfb->root.count; i++)
+        RegionUnion(&pvfb->root.pending[i], &pvfb->root.pending[i], damage);
+    elapsed = lorieNanotime() - start;
+
+    AHardwareBuffer_describe(pvfb->root.buffers[next], &desc);
+    status = lorieBufferLock(pvfb->root.buffers[next], &data);
+    if (status != 0) {
+        log(ERROR, "Failed to lock root window buffer %d (error %d)", next, status);
+        return FALSE;
+    }
+
+    start = lorieNanotime();
+    boxes = RegionRects(&pvfb->root.pending[next]);
+    for (int i = 0; i < RegionNumRects(&pvfb->root.pending[next]); i++)
+        pixman_blt(pixmap->devPrivate.ptr, data, pixmap->devKind / 4, desc.stride, 32, 32,
+                   boxes[i].x1, boxes[i].y1, boxes[i].x1, boxes[i].y1,
+                   boxes[i].x2 - boxes[i].x1, boxes[i].y2 - boxes[i].y1);
+    renderer_stat_record(RENDERER_STAT_DAMAGE, elapsed + lorieNanotime() - start);
+
+    lorieBufferUnlock(pvfb->root.buffers[next]);
+    RegionEmpty(&pvfb->root.pending[next]);
+
+    if (!renderer_select_buffer(next))
+        return FALSE;
+
+    pvfb->root.current = next;
+    return TRUE;
+}
+
 static void lorieTimerCallback(int fd, unused int r, void *arg) {
     char dummy[8];
+    int redrawn = FALSE, cursorMoved;
+    uint64_t start = lorieNanotime();
+
     read(fd, dummy, 8);
-    if (renderer_should_redraw() && RegionNotEmpty(DamageRegion(pvfb->damage))) {
-        int redrawn = FALSE;
+    if (renderer_should_redraw() && pvfb->root.count > 1 && !pvfb->root.legacyDrawing
+            && (RegionNotEmpty(DamageRegion(pvfb->damage)) || pvfb->root.current < 0)) {
+        redrawn = lorieSwapRootBuffers() && renderer_redraw(pvfb->env, pvfb->root.flip);
+        if (redrawn)
+            DamageEmpty(pvfb->damage);
+    } else if (renderer_should_redraw() && RegionNotEmpty(DamageRegion(pvfb->damage))) {
         ScreenPtr pScreen = (ScreenPtr) arg;
 
         loriePixmapUnlock(pScreen->GetScreenPixmap(pScreen));
@@ -442,13 +662,40 @@ static void lorieTimerCallback(int fd, unused int r, void *arg) {
         if (loriePixmapLock(pScreen->GetScreenPixmap(pScreen)) && redrawn)
             DamageEmpty(pvfb->damage);
     } else if (pvfb->cursorMoved)
-        renderer_redraw(pvfb->env, pvfb->root.flip);
+        redrawn = renderer_redraw(pvfb->env, pvfb->root.flip);
 
-    pvfb->cursorMoved = FALSE;
+    // Cursor movement is retried on the next tick if it could not be drawn, new window redraws it anyway.
+    cursorMoved = pvfb->cursorMoved && !redrawn && renderer_should_redraw();
+    pvfb->cursorMoved = cursorMoved;
+    if (redrawn)
+        renderer_stat_record(RENDERER_STAT_FRAME, lorieNanotime() - start);
+
+    // Damage and cursor movement re-arm the timer, no need to wake up while nothing changes.
+    // Damage is reported only when region becomes non-empty, so the timer must keep running while it is not drawn yet
+    // (all buffers are busy or redraw failed), otherwise it would never be re-armed.
+    // Without window nothing can be drawn, new window re-arms the timer.
+    if (pvfb->pacing.adaptive) {
+        input_lock();
+        if (redrawn || cursorMoved || (renderer_should_redraw() && RegionNotEmpty(DamageRegion(pvfb->damage))))
+            pvfb->pacing.idleFrames = 0;
+        else if (++pvfb->pacing.idleFrames >= IDLE_FRAMES)
+            lorieDisarmTimer();
+        input_unlock();
+    }
+}
+
+static void loriePrintWaitStats(const char *name, lorieWaitStats *stats) {
+    if (stats->count)
+        log(DEBUG, "%s: %u calls, %.1f us average, %.1f us max", name, stats->count,
+            (float) stats->total / stats->count / 1000, (float) stats->max / 1000);
+    *stats = (lorieWaitStats) {0};
 }
 
 static CARD32 lorieFramecounter(unused OsTimerPtr timer, unused CARD32 time, unused void *arg) {
     renderer_print_fps(5000);
+    loriePrintWaitStats("Root buffer lock", &pvfb->lockWait);
+    loriePrintWaitStats("Root buffer unlock", &pvfb->unlockWait);
+    lorieSendRenderStats();
     return 5000;
 }
 
@@ -462,7 +709,9 @@ static Bool lorieCreateScreenResources(ScreenPtr pScreen) {
 
     pScreen->devPrivate = fbCreatePixmap(pScreen, 0, 0, pScreen->rootDepth, CREATE_PIXMAP_USAGE_BACKING_PIXMAP);
 
-    pvfb->damage = DamageCreate(NULL, NULL, DamageReportNone, TRUE, pScreen, NULL);
+    pvfb->damage = pvfb->pacing.adaptive
+            ? DamageCreate(lorieDamageReport, NULL, DamageReportNonEmpty, TRUE, pScreen, NULL)
+            : DamageCreate(NULL, NULL, DamageReportNone, TRUE, pScreen, NULL);
     if (!pvfb->damage)
         FatalError("Couldn't setup damage\n");
 
@@ -496,7 +745,9 @@ lorieRRScreenSetSize(ScreenPtr pScreen, CARD16 width, CARD16 height, unused CARD
 
     RRScreenSizeNotify(pScreen);
     update_desktop_dimensions();
+    lorieSendScreenMode(width, height, FakeScreenFps);
     pvfb->cursorMoved = TRUE;
+    lorieArmTimer();
 
     return TRUE;
 }
@@ -621,6 +872,13 @@ Bool lorieChangeWindow(unused ClientPtr pClient, void *closure) {
     jobject surface = (jobject) closure;
     renderer_set_window(pvfb->env, surface, pvfb->root.buffer);
     lorieSetCursor(NULL, NULL, CursorForDevice(GetMaster(lorieMouse, MASTER_POINTER)), -1, -1);
+    lorieArmTimer();
+
+    if (pvfb->root.count > 1 && !pvfb->root.legacyDrawing) {
+        renderer_set_buffers(pvfb->root.count, pvfb->root.buffers);
+        if (renderer_select_buffer(pvfb->root.current))
+            renderer_redraw(pvfb->env, pvfb->root.flip);
+    }
 
     if (pvfb->root.legacyDrawing) {
         renderer_update_root(pScreenPtr->width, pScreenPtr->height, ((PixmapPtr) pScreenPtr->devPrivate)->devPrivate.ptr, pvfb->root.flip);
@@ -645,9 +903,9 @@ void lorieConfigureNotify(int width, int height, int framerate) {
     }
 
     if (framerate > 0) {
-        long nsecs = 1000 * 1000 * 1000 / framerate;
-        struct itimerspec spec = { { 0, nsecs }, { 0, nsecs } };
-        timerfd_settime(lorieScreen.timerFd, 0, &spec, NULL);
+        pvfb->pacing.interval = 1000 * 1000 * 1000 / framerate;
+        pvfb->pacing.armed = FALSE;
+        lorieArmTimer();
         log(VERBOSE, "New framerate is %d", framerate);
 
         FakeScreenFps = framerate;
@@ -655,6 +913,30 @@ void lorieConfigureNotify(int width, int height, int framerate) {
     }
 }
 
+void lorieSetHardwareCursor(Bool enable) {
+    if (pvfb->hardwareCursor == enable)
+        return;
+
+    log(VERBOSE, "Hardware cursor is %s", enable ? "enabled" : "disabled");
+    pvfb->hardwareCursor = enable;
+    renderer_set_cursor_hidden(enable);
+
+    // Cursor should be removed from or drawn on screen right away.
+    pvfb->cursorMoved = TRUE;
+    lorieArmTimer();
+}
+
+void lorieVsyncNotify(uint32_t period, uint32_t phase) {
+    pvfb->pacing.vsyncPeriod = period;
+    pvfb->pacing.vsyncPhase = phase;
+
+    // Restart running timer to align it with vsync, idle timer will be aligned when it is armed.
+    if (pvfb->pacing.armed) {
+        lorieDisarmTimer();
+        lorieArmTimer();
+    }
+}
+
 void
 InitOutput(ScreenInfo * screen_info, int argc, char **argv) {
     int depths[] = { 1, 4, 8, 15, 16, 24, 32 };
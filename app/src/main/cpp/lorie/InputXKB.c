@@ -32,6 +32,8 @@
 #include <stdio.h>
 
 #include <globals.h>
+#include <dixstruct.h>
+#include <extnsionst.h>
 #include "xkbsrv.h"
 #include "xkbstr.h"
 #include "eventstr.h"
@@ -260,25 +262,143 @@ static unsigned lorieGetKeyboardState(void) {
 	return XkbStateFieldFromRec(&master->key->xkbInfo->state);
 }
 
-static unsigned lorieGetLevelThreeMask(void) {
-	unsigned state;
+/*
+ * Reverse keysym -> keycode index for a particular keyboard state.
+ * It contains keys reachable with the state itself and with Shift
+ * and/or level three shift toggled, in the same order of preference
+ * the keymap used to be scanned in for every typed character.
+ * Indexes are used only by the input thread, other threads only bump
+ * keymapGeneration when keymap is changed.
+ */
+#define LORIE_KEYSYM_INDEX_SIZE 2048 /* power of 2, bigger than 4 states * 256 keys */
+#define LORIE_KEYSYM_INDEXES 4
+
+typedef struct {
+	KeySym keysym;
 	KeyCode keycode;
+	Bool fake;
+	unsigned state;
+} lorieKeysymIndexEntry;
+
+static struct lorieKeysymIndex {
 	XkbDescPtr xkb;
+	unsigned generation;
+	unsigned state;
+	unsigned age;
+	unsigned levelThreeMask;
+	KeyCode shift;
+	lorieKeysymIndexEntry entries[LORIE_KEYSYM_INDEX_SIZE];
+} keysymIndexes[LORIE_KEYSYM_INDEXES];
+
+static unsigned keysymIndexAge = 0;
+static _Atomic unsigned keymapGeneration = 1;
+
+static int (*origProcChangeKeyboardMapping)(ClientPtr) = NULL;
+static int (*origProcSetModifierMapping)(ClientPtr) = NULL;
+static int (*origProcXkbDispatch)(ClientPtr) = NULL;
+
+static Bool lorieIsFakeKey(unsigned int key) {
+	size_t fakeIdx;
+
+	for (fakeIdx = 0; fakeIdx < ARRAY_SIZE(fakeKeys); fakeIdx++)
+		if (key == fakeKeys[fakeIdx])
+			return TRUE;
+
+	return FALSE;
+}
+
+static KeySym lorieKeycodeToKeysym(XkbDescPtr xkb, unsigned int key, unsigned state) {
+	unsigned int state_out;
+	KeySym ks, dummy;
+
+	XkbTranslateKeyCode(xkb, key, state, &state_out, &ks);
+	if (ks == NoSymbol)
+		return NoSymbol;
+
+	/*
+	 * Despite every known piece of documentation on
+	 * XkbTranslateKeyCode() stating that mods_rtrn returns
+	 * the unconsumed modifiers, in reality it always
+	 * returns the _potentially consumed_ modifiers.
+	 */
+	state_out = state & ~state_out;
+	if (state_out & LockMask)
+		XkbConvertCase(ks, &dummy, &ks);
+
+	return ks;
+}
+
+static lorieKeysymIndexEntry *lorieKeysymIndexSlot(struct lorieKeysymIndex *index, KeySym keysym) {
+	unsigned i = (keysym * 2654435761U) & (LORIE_KEYSYM_INDEX_SIZE - 1);
+
+	while (index->entries[i].keysym != NoSymbol && index->entries[i].keysym != keysym)
+		i = (i + 1) & (LORIE_KEYSYM_INDEX_SIZE - 1);
+
+	return &index->entries[i];
+}
+
+static void lorieIndexKeys(struct lorieKeysymIndex *index, unsigned state) {
+	unsigned int key; // KeyCode has insufficient range for the loop
+
+	for (key = index->xkb->min_key_code; key <= index->xkb->max_key_code; key++) {
+		KeySym ks = lorieKeycodeToKeysym(index->xkb, key, state);
+		lorieKeysymIndexEntry *entry;
+		Bool fake;
+
+		if (ks == NoSymbol)
+			continue;
+
+		/*
+		 * Some keys are never sent by a real keyboard and are
+		 * used in the default layouts as a fallback for
+		 * modifiers. Make sure we use them last as some
+		 * applications can be confused by these normally
+		 * unused keys.
+		 */
+		fake = lorieIsFakeKey(key);
+		entry = lorieKeysymIndexSlot(index, ks);
+		if (entry->keysym == ks && !(entry->state == state && entry->fake && !fake))
+			continue;
+
+		entry->keysym = ks;
+		entry->keycode = key;
+		entry->fake = fake;
+		entry->state = state;
+	}
+}
+
+static KeyCode lorieFindModifierKey(XkbDescPtr xkb, KeySym keysym, unsigned state) {
+	KeyCode fallback = 0;
+	unsigned int key;
+
+	for (key = xkb->min_key_code; key <= xkb->max_key_code; key++) {
+		if (lorieKeycodeToKeysym(xkb, key, state) != keysym)
+			continue;
+
+		if (!lorieIsFakeKey(key))
+			return key;
+
+		if (fallback == 0)
+			fallback = key;
+	}
+
+	return fallback;
+}
+
+static unsigned lorieFindLevelThreeMask(XkbDescPtr xkb, unsigned state) {
+	KeyCode keycode;
 	XkbAction *act;
 
 	/* Group state is still important */
-	state = lorieGetKeyboardState();
 	state &= ~0xff;
 
-	keycode = lorieKeysymToKeycode(XK_ISO_Level3_Shift, state, NULL);
+	keycode = lorieFindModifierKey(xkb, XK_ISO_Level3_Shift, state);
 	if (keycode == 0) {
-		keycode = lorieKeysymToKeycode(XK_Mode_switch, state, NULL);
+		keycode = lorieFindModifierKey(xkb, XK_Mode_switch, state);
 		if (keycode == 0)
 			return 0;
 	}
 
-	xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
-
 	act = XkbKeyActionPtr(xkb, keycode, state);
 	if (act == NULL)
 		return 0;
@@ -291,17 +411,9 @@ static unsigned lorieGetLevelThreeMask(void) {
 		return act->mods.mask;
 }
 
-static KeyCode loriePressShift(void) {
-	unsigned state;
-
-	XkbDescPtr xkb;
+static KeyCode lorieFindShift(XkbDescPtr xkb, unsigned state) {
 	unsigned int key;
 
-	state = lorieGetKeyboardState();
-	if (state & ShiftMask)
-		return 0;
-
-	xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
 	for (key = xkb->min_key_code; key <= xkb->max_key_code; key++) {
 		XkbAction *act;
 		unsigned char mask;
@@ -325,6 +437,106 @@ static KeyCode loriePressShift(void) {
 	return 0;
 }
 
+static void lorieBuildKeysymIndex(struct lorieKeysymIndex *index, XkbDescPtr xkb, unsigned state) {
+	unsigned mask;
+
+	memset(index->entries, 0, sizeof(index->entries));
+	index->xkb = xkb;
+	index->generation = keymapGeneration;
+	index->state = state;
+	index->levelThreeMask = mask = lorieFindLevelThreeMask(xkb, state);
+	index->shift = (state & ShiftMask) ? 0 : lorieFindShift(xkb, state);
+
+	lorieIndexKeys(index, state);
+	lorieIndexKeys(index, (state & ~ShiftMask) | ((state & ShiftMask) ? 0 : ShiftMask));
+	if (mask == 0)
+		return;
+
+	lorieIndexKeys(index, (state & ~mask) | ((state & mask) ? 0 : mask));
+	lorieIndexKeys(index, (state & ~(ShiftMask | mask)) |
+	                      ((state & ShiftMask) ? 0 : ShiftMask) |
+	                      ((state & mask) ? 0 : mask));
+}
+
+static struct lorieKeysymIndex *lorieGetKeysymIndex(unsigned state) {
+	XkbDescPtr xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
+	struct lorieKeysymIndex *index = &keysymIndexes[0];
+	unsigned generation = keymapGeneration;
+	int i;
+
+	for (i = 0; i < LORIE_KEYSYM_INDEXES; i++) {
+		if (keysymIndexes[i].xkb == xkb && keysymIndexes[i].generation == generation && keysymIndexes[i].state == state) {
+			keysymIndexes[i].age = ++keysymIndexAge;
+			return &keysymIndexes[i];
+		}
+
+		if (keysymIndexes[i].age < index->age)
+			index = &keysymIndexes[i];
+	}
+
+	lorieBuildKeysymIndex(index, xkb, state);
+	index->age = ++keysymIndexAge;
+	return index;
+}
+
+static void lorieInvalidateKeysymIndex(void) {
+	keymapGeneration++;
+}
+
+static int lorieProcChangeKeyboardMapping(ClientPtr client) {
+	int rc = origProcChangeKeyboardMapping(client);
+	lorieInvalidateKeysymIndex();
+	return rc;
+}
+
+static int lorieProcSetModifierMapping(ClientPtr client) {
+	int rc = origProcSetModifierMapping(client);
+	lorieInvalidateKeysymIndex();
+	return rc;
+}
+
+static int lorieProcXkbDispatch(ClientPtr client) {
+	REQUEST(xReq)
+	unsigned char minor = stuff->data;
+	int rc = origProcXkbDispatch(client);
+
+	if (minor == X_kbSetMap || minor == X_kbSetCompatMap || minor == X_kbGetKbdByName)
+		lorieInvalidateKeysymIndex();
+
+	return rc;
+}
+
+/* Must be called after extensions are initialized */
+void lorieInitKeysymIndex(void) {
+	ExtensionEntry *xkbExtension = CheckExtension(XkbName);
+
+	if (!origProcChangeKeyboardMapping) {
+		origProcChangeKeyboardMapping = ProcVector[X_ChangeKeyboardMapping];
+		ProcVector[X_ChangeKeyboardMapping] = lorieProcChangeKeyboardMapping;
+	}
+
+	if (!origProcSetModifierMapping) {
+		origProcSetModifierMapping = ProcVector[X_SetModifierMapping];
+		ProcVector[X_SetModifierMapping] = lorieProcSetModifierMapping;
+	}
+
+	/* Extension dispatch table is reset on every server generation */
+	if (xkbExtension && ProcVector[xkbExtension->base] != lorieProcXkbDispatch) {
+		origProcXkbDispatch = ProcVector[xkbExtension->base];
+		ProcVector[xkbExtension->base] = lorieProcXkbDispatch;
+	}
+
+	lorieInvalidateKeysymIndex();
+}
+
+static unsigned lorieGetLevelThreeMask(void) {
+	return lorieGetKeysymIndex(lorieGetKeyboardState())->levelThreeMask;
+}
+
+static KeyCode loriePressShift(void) {
+	return lorieGetKeysymIndex(lorieGetKeyboardState())->shift;
+}
+
 static size_t lorieReleaseShift(KeyCode *keys, size_t maxKeys) {
 	size_t count;
 
@@ -459,89 +671,34 @@ static size_t lorieReleaseLevelThree(KeyCode *keys, size_t maxKeys) {
 }
 
 KeyCode lorieKeysymToKeycode(KeySym keysym, unsigned state, unsigned *new_state) {
-	XkbDescPtr xkb;
-	unsigned int key; // KeyCode has insufficient range for the loop
-	KeyCode fallback;
-	KeySym ks;
-	unsigned level_three_mask;
+	struct lorieKeysymIndex *index;
+	lorieKeysymIndexEntry *entry;
 
 	if (new_state != NULL)
 		*new_state = state;
 
-	fallback = 0;
-	xkb = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT)->key->xkbInfo->desc;
-	for (key = xkb->min_key_code; key <= xkb->max_key_code; key++) {
-		unsigned int state_out;
-		KeySym dummy;
-		size_t fakeIdx;
-
-		XkbTranslateKeyCode(xkb, key, state, &state_out, &ks);
-		if (ks == NoSymbol)
-			continue;
-
-		/*
-		 * Despite every known piece of documentation on
-		 * XkbTranslateKeyCode() stating that mods_rtrn returns
-		 * the unconsumed modifiers, in reality it always
-		 * returns the _potentially consumed_ modifiers.
-		 */
-		state_out = state & ~state_out;
-		if (state_out & LockMask)
-			XkbConvertCase(ks, &dummy, &ks);
-
-		if (ks != keysym)
-			continue;
-
-		/*
-		 * Some keys are never sent by a real keyboard and are
-		 * used in the default layouts as a fallback for
-		 * modifiers. Make sure we use them last as some
-		 * applications can be confused by these normally
-		 * unused keys.
-		 */
-		for (fakeIdx = 0; fakeIdx < ARRAY_SIZE(fakeKeys); fakeIdx++) {
-			if (key == fakeKeys[fakeIdx]) {
-				if (fallback == 0)
-					fallback = key;
-				break;
-			}
-		}
-		if (fakeIdx < ARRAY_SIZE(fakeKeys))
-			continue;
-
-		return key;
-	}
-
-	/* Use the fallback key, if one was found */
-	if (fallback != 0)
-		return fallback;
-
-	if (new_state == NULL)
+	index = lorieGetKeysymIndex(state);
+	entry = lorieKeysymIndexSlot(index, keysym);
+	if (entry->keysym == NoSymbol)
 		return 0;
 
-	*new_state = (state & ~ShiftMask) | ((state & ShiftMask) ? 0 : ShiftMask);
-	key = lorieKeysymToKeycode(keysym, *new_state, NULL);
-	if (key != 0)
-		return key;
+	/* Keymap could be changed in a way we do not track, i.e. by other device sharing the master */
+	if (lorieKeycodeToKeysym(index->xkb, entry->keycode, entry->state) != keysym) {
+		lorieInvalidateKeysymIndex();
+		index = lorieGetKeysymIndex(state);
+		entry = lorieKeysymIndexSlot(index, keysym);
+		if (entry->keysym == NoSymbol)
+			return 0;
+	}
 
-	level_three_mask = lorieGetLevelThreeMask();
-	if (level_three_mask == 0)
+	/* Caller is not able to change state */
+	if (new_state == NULL && entry->state != state)
 		return 0;
 
-	*new_state = (state & ~level_three_mask) | 
-	             ((state & level_three_mask) ? 0 : level_three_mask);
-	key = lorieKeysymToKeycode(keysym, *new_state, NULL);
-	if (key != 0)
-		return key;
-
-	*new_state = (state & ~(ShiftMask | level_three_mask)) | 
-	             ((state & ShiftMask) ? 0 : ShiftMask) |
-	             ((state & level_three_mask) ? 0 : level_three_mask);
-	key = lorieKeysymToKeycode(keysym, *new_state, NULL);
-	if (key != 0)
-		return key;
+	if (new_state != NULL)
+		*new_state = entry->state;
 
-	return 0;
+	return entry->keycode;
 }
 
 static int lorieIsAffectedByNumLock(KeyCode keycode) {
@@ -588,30 +745,112 @@ static int lorieIsAffectedByNumLock(KeyCode keycode) {
 	return 1;
 }
 
-static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
-	DeviceIntPtr master;
-	XkbDescPtr xkb;
+/*
+ * Keycodes without symbols in current keymap are temporarily bound to
+ * keysyms missing from the layout (i.e. CJK and emoji typed with
+ * Android IME). Least recently used binding is recycled, so keysyms
+ * typed often keep their keycodes and the keymap is not changed for
+ * every character. Fake keys are used only if keymap has no spare
+ * keycodes at all.
+ */
+#define LORIE_SPARE_KEYS 64
+
+static struct {
+	KeyCode keycode;
+	KeySym keysym;
+	unsigned lastUse;
+} spareKeys[LORIE_SPARE_KEYS];
+static int spareKeysCount = 0;
+static unsigned char spareKeySlot[256]; /* slot + 1, 0 if keycode is not spare */
+static XkbDescPtr spareKeysXkb = NULL;
+static unsigned spareKeysGeneration = 0;
+static unsigned spareKeysClock = 0;
+
+static void lorieCollectSpareKeys(XkbDescPtr xkb) {
+	unsigned char oldSlot[256];
+	__typeof__(spareKeys) old;
 	unsigned int key;
+	size_t i;
 
-	XkbEventCauseRec cause;
-	XkbChangesRec changes;
+	memcpy(old, spareKeys, sizeof(old));
+	memcpy(oldSlot, spareKeySlot, sizeof(oldSlot));
+	memset(spareKeySlot, 0, sizeof(spareKeySlot));
+	spareKeysCount = 0;
+
+	/* Keys bound by us before keymap change are still ours if they have the same symbol */
+	for (key = xkb->max_key_code; key >= xkb->min_key_code && spareKeysCount < LORIE_SPARE_KEYS; key--) {
+		KeySym keysym = NoSymbol, lower, upper;
+		unsigned lastUse = 0;
+
+		if (XkbKeyNumGroups(xkb, key) != 0) {
+			if (!oldSlot[key])
+				continue;
+
+			XkbConvertCase(old[oldSlot[key] - 1].keysym, &lower, &upper);
+			if (XkbKeySymsPtr(xkb, key)[0] != lower)
+				continue;
+
+			keysym = old[oldSlot[key] - 1].keysym;
+			lastUse = old[oldSlot[key] - 1].lastUse;
+		}
+
+		spareKeys[spareKeysCount].keycode = key;
+		spareKeys[spareKeysCount].keysym = keysym;
+		spareKeys[spareKeysCount].lastUse = lastUse;
+		spareKeySlot[key] = ++spareKeysCount;
+	}
+
+	if (spareKeysCount == 0) {
+		for (i = 0; i < ARRAY_SIZE(fakeKeys); i++) {
+			spareKeys[spareKeysCount].keycode = fakeKeys[i];
+			spareKeys[spareKeysCount].keysym = NoSymbol;
+			spareKeys[spareKeysCount].lastUse = 0;
+			spareKeySlot[fakeKeys[i]] = ++spareKeysCount;
+		}
+	}
+
+	spareKeysXkb = xkb;
+	spareKeysGeneration = keymapGeneration;
+}
+
+static void lorieExtendKeyRange(KeyCode *first, unsigned char *num, KeyCode key) {
+	unsigned last;
+
+	if (*num == 0) {
+		*first = key;
+		*num = 1;
+		return;
+	}
+
+	last = max(*first + *num - 1, key);
+	*first = min(*first, key);
+	*num = last - *first + 1;
+}
+
+static KeyCode lorieBindSpareKey(DeviceIntPtr master, XkbDescPtr xkb, KeySym keysym, unsigned batchStart, XkbChangesPtr changes) {
+	unsigned int key;
+	int i, slot = -1;
 
 	int types[1];
 	KeySym *syms;
 	KeySym upper, lower;
 
-	master = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT);
-	xkb = master->key->xkbInfo->desc;
+	/* Keys bound in this batch and keys which are still down must not be recycled */
+	for (i = 0; i < spareKeysCount; i++) {
+		if (spareKeys[i].lastUse > batchStart || pressedKeys[spareKeys[i].keycode] != NoSymbol ||
+				key_is_down(master, spareKeys[i].keycode, KEY_PROCESSED))
+			continue;
 
-	static int curFakeKeyIdx = 0;
-	key = fakeKeys[curFakeKeyIdx++];
-	if (curFakeKeyIdx >= ARRAY_SIZE(fakeKeys))
-		curFakeKeyIdx = 0;
+		if (slot == -1 || spareKeys[i].lastUse < spareKeys[slot].lastUse)
+			slot = i;
+	}
 
-	memset(&changes, 0, sizeof(changes));
-	memset(&cause, 0, sizeof(cause));
+	if (slot == -1)
+		return 0;
 
-	XkbSetCauseUnknown(&cause)
+	key = spareKeys[slot].keycode;
+	spareKeys[slot].keysym = keysym;
+	spareKeys[slot].lastUse = ++spareKeysClock;
 
 	/*
 	 * Tools like xkbcomp get confused if there isn't a name
@@ -624,27 +863,76 @@ static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
 		xkb->names->keys[key].name[2] = '0' + (key /  10) % 10;
 		xkb->names->keys[key].name[3] = '0' + (key /   1) % 10;
 
-		changes.names.changed |= XkbKeyNamesMask;
-		changes.names.first_key = key;
-		changes.names.num_keys = 1;
+		changes->names.changed |= XkbKeyNamesMask;
+		lorieExtendKeyRange(&changes->names.first_key, &changes->names.num_keys, key);
 	}
 
 	XkbConvertCase(keysym, &lower, &upper);
 	types[XkbGroup1Index] = XkbAlphabeticIndex;
 
-	XkbChangeTypesOfKey(xkb, (int) key, 1, XkbGroup1Mask, types, &changes.map);
+	XkbChangeTypesOfKey(xkb, (int) key, 1, XkbGroup1Mask, types, &changes->map);
 
 	syms = XkbKeySymsPtr(xkb, key);
 	syms[0] = lower;
 	syms[1] = upper;
 
-	changes.map.changed |= XkbKeySymsMask;
-	changes.map.first_key_sym = key;
-	changes.map.num_key_syms = 1;
+	changes->map.changed |= XkbKeySymsMask;
+	lorieExtendKeyRange(&changes->map.first_key_sym, &changes->map.num_key_syms, key);
+
+	return key;
+}
+
+/*
+ * Binds keysyms to spare keycodes with a single keymap change
+ * notification, returns number of keysyms bound (from the start of
+ * the list).
+ */
+int lorieBindKeysyms(const KeySym *keysyms, int count) {
+	DeviceIntPtr master;
+	XkbDescPtr xkb;
+	unsigned batchStart;
+	int bound;
+
+	XkbEventCauseRec cause;
+	XkbChangesRec changes;
+
+	master = GetMaster(lorieKeyboard, KEYBOARD_OR_FLOAT);
+	xkb = master->key->xkbInfo->desc;
+
+	if (spareKeysXkb != xkb || spareKeysGeneration != keymapGeneration)
+		lorieCollectSpareKeys(xkb);
+
+	memset(&changes, 0, sizeof(changes));
+	memset(&cause, 0, sizeof(cause));
+
+	XkbSetCauseUnknown(&cause)
+
+	batchStart = spareKeysClock;
+	for (bound = 0; bound < count; bound++)
+		if (lorieBindSpareKey(master, xkb, keysyms[bound], batchStart, &changes) == 0)
+			break;
+
+	if (bound == 0)
+		return 0;
 
 	XkbSendNotification(master, &changes, &cause);
+	lorieInvalidateKeysymIndex();
+	spareKeysGeneration = keymapGeneration;
 
-	return key;
+	return bound;
+}
+
+static KeyCode lorieAddKeysym(KeySym keysym, unused unsigned state) {
+	int i;
+
+	if (lorieBindKeysyms(&keysym, 1) == 0)
+		return 0;
+
+	for (i = 0; i < spareKeysCount; i++)
+		if (spareKeys[i].keysym == keysym && spareKeys[i].lastUse == spareKeysClock)
+			return spareKeys[i].keycode;
+
+	return 0;
 }
 
 /*
@@ -870,6 +1158,8 @@ void lorieKeysymKeyboardEvent(KeySym keysym, int down) {
     }
 
     pressedKeys[keycode] = keysym;
+    if (spareKeySlot[keycode])
+        spareKeys[spareKeySlot[keycode] - 1].lastUse = ++spareKeysClock;
 
     /* Undo any fake level three shift */
     if (level_three_press != 0)
@@ -896,3 +1186,9 @@ void lorieKeysymKeyboardEvent(KeySym keysym, int down) {
      */
     mieqProcessInputEvents();
 }
+
+/* Returns TRUE if keysym can be typed without adding it to keymap */
+Bool lorieKeysymIsMapped(KeySym keysym) {
+	unsigned new_state;
+	return lorieKeysymToKeycode(keysym, lorieGetKeyboardState(), &new_state) != 0;
+}
@@ -9,15 +9,23 @@
 #include <jni.h>
 #include <android/log.h>
 #include <android/native_window_jni.h>
+#include <android/sharedmem.h>
 #include <sys/stat.h>
 #include <sys/socket.h>
 #include <sys/prctl.h>
 #include <sys/ioctl.h>
+#include <sys/uio.h>
+#include <sys/mman.h>
+#include <sys/timerfd.h>
+#include <poll.h>
+#include <limits.h>
 #include <libgen.h>
 #include <globals.h>
 #include <xkbsrv.h>
+#include <X11/keysym.h>
 #include <errno.h>
 #include <wchar.h>
+#include <stdatomic.h>
 #include <inpututils.h>
 #include <randrstr.h>
 #include "renderer.h"
@@ -25,6 +33,9 @@
 
 #define log(prio, ...) __android_log_print(ANDROID_LOG_ ## prio, "LorieNative", __VA_ARGS__)
 
+lorieInputHistoryMode lorieInputHistory = INPUT_HISTORY_COALESCE;
+static int inputFramerate = 60; // Used for resampling of input history
+
 static int argc = 0;
 static char** argv = NULL;
 static int conn_fd = -1;
@@ -33,6 +44,8 @@ extern DeviceIntPtr lorieMouse, lorieTouch, lorieKeyboard;
 extern ScreenPtr pScreenPtr;
 extern int ucs2keysym(long ucs);
 void lorieKeysymKeyboardEvent(KeySym keysym, int down);
+Bool lorieKeysymIsMapped(KeySym keysym);
+int lorieBindKeysyms(const KeySym *keysyms, int count);
 
 char *xtrans_unix_path_x11 = NULL;
 char *xtrans_unix_dir_x11 = NULL;
@@ -47,6 +60,15 @@ typedef enum {
     EVENT_CLIPBOARD_ANNOUNCE,
     EVENT_CLIPBOARD_REQUEST,
     EVENT_CLIPBOARD_SEND,
+    EVENT_BATCH,
+    EVENT_RING_OFFER,
+    EVENT_RING_ACK,
+    EVENT_RING_DOORBELL,
+    EVENT_VSYNC,
+    EVENT_CLIPBOARD_CHUNK,
+    EVENT_TEXT,
+    EVENT_MESSAGE_SUBSCRIBE,
+    EVENT_MESSAGE,
 } eventType;
 typedef union {
     uint8_t type;
@@ -57,11 +79,13 @@ typedef union {
     struct {
         uint8_t t;
         uint16_t type, id, x, y;
+        uint32_t time; // MotionEvent time in milliseconds, 0 if unknown
     } touch;
     struct {
         uint8_t t;
         float x, y;
         uint8_t detail, down, relative;
+        uint32_t time; // MotionEvent time in milliseconds, 0 if unknown
     } mouse;
     struct {
         uint8_t t;
@@ -78,20 +102,127 @@ typedef union {
     } clipboardEnable;
     struct {
         uint8_t t;
-        uint32_t count;
+        uint32_t mimes; // Mask of available lorieClipboardMime types
+        uint64_t hash; // lorieClipboardHash of text content, 0 if it is unknown
+    } clipboardAnnounce;
+    struct {
+        uint8_t t;
+        uint8_t mime;
+    } clipboardRequest;
+    struct {
+        uint8_t t;
+        uint8_t mime; // Used only by EVENT_CLIPBOARD_SEND
+        uint32_t count; // Total size for EVENT_CLIPBOARD_SEND, payload size for EVENT_CLIPBOARD_CHUNK
     } clipboardSend;
+    struct {
+        uint8_t t;
+        uint32_t count; // Size of UTF-8 payload following the event
+    } text;
+    struct {
+        uint8_t t;
+        uint16_t count;
+    } batch;
+    struct {
+        uint8_t t;
+        uint8_t ok;
+    } ringAck;
+    struct {
+        uint8_t t;
+        uint32_t period, phase; // nanoseconds, phase is vsync time modulo period in CLOCK_MONOTONIC
+    } vsync;
+    struct {
+        uint8_t t;
+        uint8_t version; // LORIE_MESSAGE_VERSION of activity
+        uint32_t mask; // Mask of lorieMessageType the activity handles
+    } messageSubscribe;
+    struct {
+        uint8_t t;
+        uint8_t type, version; // lorieMessageType and version of its payload format
+        uint32_t count; // Size of payload following the event
+    } message;
 } lorieEvent;
 
+/*
+ * Messages from X server to activity. Right after connecting activity subscribes to types it handles with
+ * EVENT_MESSAGE_SUBSCRIBE and server sends only those, each one as EVENT_MESSAGE followed by payload.
+ * Every message carries version of its payload format and receiver skips types and versions it does not know,
+ * so both sides can be extended without breaking each other.
+ */
+#define LORIE_MESSAGE_VERSION 1
+#define LORIE_MESSAGE_MAX_SIZE (4 * 1024 * 1024)
+typedef enum {
+    MESSAGE_CURSOR, // lorieCursorMessage followed by width * height premultiplied RGBA pixels, 0x0 means no cursor
+    MESSAGE_BELL, // lorieBellMessage
+    MESSAGE_SCREEN_MODE, // lorieScreenModeMessage
+    MESSAGE_RENDER_STATS, // Text in the format of CmdEntryPoint.getRenderStats
+    MESSAGE_COUNT,
+} lorieMessageType;
+typedef struct {
+    uint16_t width, height, xhot, yhot;
+} lorieCursorMessage;
+typedef struct {
+    int16_t volume; // percent
+    uint16_t pitch, duration; // Hz, ms
+} lorieBellMessage;
+typedef struct {
+    uint16_t width, height, framerate; // framerate is 0 if it is unknown
+} lorieScreenModeMessage;
+
+// Events accumulated on the activity side between startEventBatch and flushEventBatch.
+// They are sent as a single EVENT_BATCH frame: header with event count followed by events.
+#define MAX_BATCH_EVENTS 128
 static struct {
-    jclass self;
-    jmethodID forName;
-    jmethodID decode;
-} Charset = {0};
+    jboolean active;
+    uint16_t count;
+    lorieEvent events[MAX_BATCH_EVENTS];
+} batch = {0};
+
+// Optional transport for fixed-size events: single-producer/single-consumer ring in shared memory.
+// Activity is the producer, X server's input thread is the consumer. Socket is still used for
+// negotiation (EVENT_RING_OFFER carries the memory fd, EVENT_RING_ACK confirms it), for events
+// carrying payload and as a doorbell: EVENT_RING_DOORBELL is sent only when the consumer
+// announced it is going to sleep, so it is not sent while the consumer keeps up.
+#define LORIE_RING_MAGIC 0x4C524E47 // LRNG
+#define LORIE_RING_SIZE 1024 // must be power of 2
+typedef struct {
+    uint32_t magic, size;
+    _Atomic uint32_t head __attribute__((aligned(64))); // Written by consumer only
+    _Atomic uint32_t tail __attribute__((aligned(64))); // Written by producer only
+    _Atomic uint32_t waiting; // Consumer drained the ring and waits for doorbell
+    lorieEvent events[LORIE_RING_SIZE];
+} lorieRing;
+
+static lorieRing *serverRing = NULL;
+static Bool serverRingStarted = FALSE; // First doorbell separates events sent before ring activation
+static struct {
+    lorieRing *ring;
+    jboolean active;
+} clientRing = {0};
 
 static struct {
+    JavaVM *vm;
     jclass self;
-    jmethodID toString;
-} CharBuffer = {0};
+    jmethodID serverReady;
+} CmdEntryPoint = {0};
+
+static struct {
+    jmethodID setClipboardText;
+    jmethodID setClipboardMimes;
+    jmethodID receiveClipboardData;
+    jmethodID requestClipboard;
+    jmethodID setXCursor;
+    jmethodID ringXBell;
+    jmethodID xScreenModeChanged;
+    jmethodID setXRenderStats;
+} LorieView = {0};
+
+// Incoming clipboard content is decoded to UTF-16 right here and the buffer is reused between transfers.
+// Hash of content known to be the same on both sides lets us skip setting Android clipboard to the value it already has.
+static struct {
+    jchar *buffer;
+    size_t capacity;
+    uint64_t hash;
+} activityClipboardCache = {0};
 
 static void* startServer(unused void* cookie) {
     lorieSetVM((JavaVM*) cookie);
@@ -127,7 +258,7 @@ static jclass FindMethodOrDie(JNIEnv *env, jclass clazz, const char* name, const
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_termux_x11_CmdEntryPoint_start(JNIEnv *env, unused jclass cls, jobjectArray args) {
+Java_com_termux_x11_CmdEntryPoint_start(JNIEnv *env, jclass cls, jobjectArray args) {
     pthread_t t;
     JavaVM* vm = NULL;
     // execv's argv array is a bit incompatible with Java's String[], so we do some converting here...
@@ -244,6 +375,9 @@ Java_com_termux_x11_CmdEntryPoint_start(JNIEnv *env, unused jclass cls, jobjectA
     }
 
     (*env)->GetJavaVM(env, &vm);
+    CmdEntryPoint.vm = vm;
+    CmdEntryPoint.self = (*env)->NewGlobalRef(env, cls);
+    CmdEntryPoint.serverReady = FindMethodOrDie(env, cls, "serverReady", "()V", JNI_TRUE);
 
     pthread_create(&t, NULL, startServer, vm);
     return JNI_TRUE;
@@ -259,6 +393,13 @@ Java_com_termux_x11_CmdEntryPoint_windowChanged(JNIEnv *env, unused jobject cls,
     QueueWorkProc(lorieChangeWindow, NULL, surface ? (*env)->NewGlobalRef(env, surface) : NULL);
 }
 
+// Called on X server thread when it is ready to accept connections.
+void lorieServerReady(void) {
+    JNIEnv *env = NULL;
+    if (CmdEntryPoint.vm && (*CmdEntryPoint.vm)->GetEnv(CmdEntryPoint.vm, (void**) &env, JNI_VERSION_1_6) == JNI_OK)
+        (*env)->CallStaticVoidMethod(env, CmdEntryPoint.self, CmdEntryPoint.serverReady);
+}
+
 static Bool sendConfigureNotify(unused ClientPtr pClient, void *closure) {
     // This must be done only on X server thread.
     lorieEvent* e = closure;
@@ -268,151 +409,1031 @@ static Bool sendConfigureNotify(unused ClientPtr pClient, void *closure) {
     return TRUE;
 }
 
-static Bool handleClipboardAnnounce(unused ClientPtr pClient, __unused void *closure) {
+static Bool sendVsyncNotify(unused ClientPtr pClient, void *closure) {
+    // This must be done only on X server thread.
+    lorieEvent* e = closure;
+    lorieVsyncNotify(e->vsync.period, e->vsync.phase);
+    free(e);
+    return TRUE;
+}
+
+// Frame must never be left half-transferred, the other side would read its payload as event headers.
+// Waiting for a frame to start is short, but once any byte of it is transferred the peer gets FRAME_STALL_TIMEOUT
+// to make progress. If it does not, connection is shut down, so both sides see disconnection instead of garbage.
+#define FRAME_START_TIMEOUT 100
+#define FRAME_STALL_TIMEOUT 3000
+
+static Bool waitFrame(int fd, short events, Bool started) {
+    struct pollfd pfd = { .fd = fd, .events = events };
+    int ret;
+    while ((ret = poll(&pfd, 1, started ? FRAME_STALL_TIMEOUT : FRAME_START_TIMEOUT)) < 0 && errno == EINTR);
+    if (ret > 0)
+        return TRUE;
+
+    if (started) {
+        log(ERROR, "Peer stalled in the middle of frame, shutting connection down");
+        shutdown(fd, SHUT_RDWR);
+    }
+    return FALSE;
+}
+
+// Reads the rest of frame, header is already read so it is always started.
+static Bool readFully(int fd, void *buf, size_t size) {
+    while (size) {
+        ssize_t len = read(fd, buf, size);
+        if (len < 0 && errno == EAGAIN) {
+            if (!waitFrame(fd, POLLIN, TRUE))
+                return FALSE;
+            continue;
+        }
+        if (len < 0 && errno == EINTR)
+            continue;
+        if (len <= 0) {
+            shutdown(fd, SHUT_RDWR);
+            return FALSE;
+        }
+        buf = (char*) buf + len;
+        size -= len;
+    }
+    return TRUE;
+}
+
+static void advanceIov(struct iovec **iov, int *iovcnt, size_t len) {
+    while (*iovcnt && len >= (*iov)->iov_len) {
+        len -= (*iov)->iov_len;
+        (*iov)++;
+        (*iovcnt)--;
+    }
+    if (*iovcnt) {
+        (*iov)->iov_base = (char*) (*iov)->iov_base + len;
+        (*iov)->iov_len -= len;
+    }
+}
+
+static Bool writeFully(int fd, struct iovec *iov, int iovcnt) {
+    Bool started = FALSE;
+    while (iovcnt) {
+        ssize_t len = writev(fd, iov, min(iovcnt, IOV_MAX));
+        if (len < 0 && errno == EAGAIN) {
+            // Socket is non-blocking on this side, but frame must not be split.
+            if (!waitFrame(fd, POLLOUT, started))
+                return FALSE;
+            continue;
+        }
+        if (len < 0 && errno == EINTR)
+            continue;
+        if (len < 0) {
+            if (started)
+                shutdown(fd, SHUT_RDWR);
+            return FALSE;
+        }
+
+        started = TRUE;
+        advanceIov(&iov, &iovcnt, len);
+    }
+    return TRUE;
+}
+
+/*
+ * Everything X server sends to activity goes through this queue, so X main thread and input thread do not interleave
+ * their frames and neither of them blocks on the socket. Frames are appended whole under the lock and written
+ * as far as socket accepts, the rest is flushed by X main thread when the socket becomes writable.
+ */
+#define SEND_QUEUE_MAX_SIZE (CLIPBOARD_MAX_SIZE + 2 * LORIE_MESSAGE_MAX_SIZE)
+#define SEND_QUEUE_KEEP_SIZE (256 * 1024)
+static struct {
+    pthread_mutex_t lock;
+    char *data;
+    size_t size, offset, capacity;
+    Bool watchRequested;
+    int watched; // Used by X main thread only
+} sendQueue = { .lock = PTHREAD_MUTEX_INITIALIZER, .watched = -1 };
+
+// Caller must hold sendQueue.lock.
+static void sendQueueFlush(void) {
+    while (conn_fd != -1 && sendQueue.offset < sendQueue.size) {
+        ssize_t len = send(conn_fd, sendQueue.data + sendQueue.offset, sendQueue.size - sendQueue.offset, MSG_DONTWAIT | MSG_NOSIGNAL);
+        if (len < 0 && errno == EINTR)
+            continue;
+        if (len <= 0)
+            break; // Disconnection is handled by input thread
+        sendQueue.offset += len;
+    }
+
+    if (sendQueue.offset == sendQueue.size) {
+        sendQueue.offset = sendQueue.size = 0;
+        // Do not keep big buffer after sending large clipboard content.
+        if (sendQueue.capacity > SEND_QUEUE_KEEP_SIZE) {
+            free(sendQueue.data);
+            sendQueue.data = NULL;
+            sendQueue.capacity = 0;
+        }
+    }
+}
+
+static Bool watchSendQueue(unused ClientPtr pClient, unused void *closure);
+
+static void sendQueueWritable(unused int fd, unused int ready, unused void *data) {
+    pthread_mutex_lock(&sendQueue.lock);
+    sendQueueFlush();
+    pthread_mutex_unlock(&sendQueue.lock);
+    watchSendQueue(NULL, NULL);
+}
+
+// Starts or stops waiting for socket to become writable, must run on X main thread.
+static Bool watchSendQueue(unused ClientPtr pClient, unused void *closure) {
+    int fd;
+
+    pthread_mutex_lock(&sendQueue.lock);
+    sendQueue.watchRequested = FALSE;
+    fd = sendQueue.size ? conn_fd : -1;
+    pthread_mutex_unlock(&sendQueue.lock);
+
+    if (fd != sendQueue.watched) {
+        if (sendQueue.watched != -1)
+            RemoveNotifyFd(sendQueue.watched);
+        if (fd != -1)
+            SetNotifyFd(fd, sendQueueWritable, X_NOTIFY_WRITE, NULL);
+        sendQueue.watched = fd;
+    }
+    return TRUE;
+}
+
+// Socket is closed on X main thread, so it can not be replaced by other fd while it is watched for writing.
+static Bool closeConnection(unused ClientPtr pClient, void *closure) {
+    int fd = (int) (int64_t) closure;
+    if (sendQueue.watched == fd) {
+        RemoveNotifyFd(fd);
+        sendQueue.watched = -1;
+    }
+    close(fd);
+    return TRUE;
+}
+
+static Bool queueSend(struct iovec *iov, int iovcnt) {
+    size_t total = 0;
+    Bool watch = FALSE;
+
+    for (int i = 0; i < iovcnt; i++)
+        total += iov[i].iov_len;
+
+    pthread_mutex_lock(&sendQueue.lock);
+    if (conn_fd == -1) {
+        pthread_mutex_unlock(&sendQueue.lock);
+        return FALSE;
+    }
+
+    if (sendQueue.size - sendQueue.offset + total > SEND_QUEUE_MAX_SIZE) {
+        pthread_mutex_unlock(&sendQueue.lock);
+        log(ERROR, "Activity does not read X server events, dropping frame of %zu bytes", total);
+        return FALSE;
+    }
+
+    // Nothing is waiting, so frame goes to socket directly and only the rest of it is copied.
+    while (sendQueue.size == sendQueue.offset && iovcnt) {
+        struct msghdr msg = { .msg_iov = iov, .msg_iovlen = min(iovcnt, IOV_MAX) };
+        ssize_t len = sendmsg(conn_fd, &msg, MSG_DONTWAIT | MSG_NOSIGNAL);
+        if (len < 0 && errno == EINTR)
+            continue;
+        if (len <= 0)
+            break;
+        total -= len;
+        advanceIov(&iov, &iovcnt, len);
+    }
+
+    if (total) {
+        if (sendQueue.offset) {
+            memmove(sendQueue.data, sendQueue.data + sendQueue.offset, sendQueue.size - sendQueue.offset);
+            sendQueue.size -= sendQueue.offset;
+            sendQueue.offset = 0;
+        }
+
+        if (sendQueue.size + total > sendQueue.capacity) {
+            size_t capacity = max(sendQueue.size + total, sendQueue.capacity * 2);
+            char *data = realloc(sendQueue.data, capacity);
+            if (!data) {
+                // Part of the frame may be already sent, so connection can not be used anymore.
+                log(ERROR, "Failed to allocate %zu bytes for X server events, shutting connection down", capacity);
+                shutdown(conn_fd, SHUT_RDWR);
+                pthread_mutex_unlock(&sendQueue.lock);
+                return FALSE;
+            }
+            sendQueue.data = data;
+            sendQueue.capacity = capacity;
+        }
+
+        for (; iovcnt; iov++, iovcnt--) {
+            memcpy(sendQueue.data + sendQueue.size, iov->iov_base, iov->iov_len);
+            sendQueue.size += iov->iov_len;
+        }
+
+        watch = !sendQueue.watchRequested;
+        sendQueue.watchRequested = TRUE;
+    }
+    pthread_mutex_unlock(&sendQueue.lock);
+
+    // Frames are queued from input thread too, X main thread starts waiting for socket.
+    if (watch)
+        QueueWorkProc(watchSendQueue, NULL, NULL);
+    return TRUE;
+}
+
+static void skipPayload(int fd, uint32_t count) {
+    char buf[4096];
+    while (count) {
+        uint32_t n = min(count, sizeof(buf));
+        if (!readFully(fd, buf, n))
+            break;
+        count -= n;
+    }
+}
+
+/*
+ * Clipboard content is sent as EVENT_CLIPBOARD_SEND carrying the total size followed by EVENT_CLIPBOARD_CHUNK events
+ * carrying at most CLIPBOARD_CHUNK_SIZE bytes each. Receiver collects chunks in heap buffer, so neither side needs to
+ * hold the whole content on stack or read it with a single blocking call.
+ */
+#define CLIPBOARD_CHUNK_SIZE 65536
+typedef struct {
+    char *data;
+    uint8_t mime;
+    uint32_t size, received;
+} clipboardTransfer;
+
+// Builds the whole transfer as one frame: EVENT_CLIPBOARD_SEND followed by chunk headers interleaved with content.
+// Returns iov count or 0 if memory could not be allocated, caller frees both arrays.
+static int clipboardFrame(uint8_t mime, const char *data, size_t size, lorieEvent **events, struct iovec **iovecs) {
+    size_t chunks = (size + CLIPBOARD_CHUNK_SIZE - 1) / CLIPBOARD_CHUNK_SIZE;
+    lorieEvent *e = *events = calloc(chunks + 1, sizeof(*e));
+    struct iovec *iov = *iovecs = calloc(2 * chunks + 1, sizeof(*iov));
+    if (!e || !iov) {
+        errno = ENOMEM;
+        return 0;
+    }
+
+    e[0].clipboardSend = (typeof(e->clipboardSend)) { .t = EVENT_CLIPBOARD_SEND, .mime = mime, .count = size };
+    iov[0] = (struct iovec) { .iov_base = &e[0], .iov_len = sizeof(*e) };
+    for (size_t i = 0; i < chunks; i++) {
+        size_t offset = i * CLIPBOARD_CHUNK_SIZE;
+        e[i + 1].clipboardSend = (typeof(e->clipboardSend)) { .t = EVENT_CLIPBOARD_CHUNK, .mime = mime, .count = min(size - offset, CLIPBOARD_CHUNK_SIZE) };
+        iov[2 * i + 1] = (struct iovec) { .iov_base = &e[i + 1], .iov_len = sizeof(*e) };
+        iov[2 * i + 2] = (struct iovec) { .iov_base = (char*) data + offset, .iov_len = e[i + 1].clipboardSend.count };
+    }
+    return (int) (2 * chunks + 1);
+}
+
+// X server side. Whole content is queued at once, so it is not interleaved with other frames and is dropped as a whole if it can not fit.
+static Bool queueClipboard(uint8_t mime, const char *data, size_t size) {
+    lorieEvent *e = NULL;
+    struct iovec *iov = NULL;
+    Bool ret = FALSE;
+    int iovcnt;
+
+    if (size > CLIPBOARD_MAX_SIZE) {
+        log(ERROR, "Clipboard content is too big (%zu bytes), not sending it", size);
+        return TRUE;
+    }
+
+    if ((iovcnt = clipboardFrame(mime, data, size, &e, &iov)))
+        ret = queueSend(iov, iovcnt);
+    free(e);
+    free(iov);
+    return ret;
+}
+
+// Activity side. It has no X main loop to flush queue, so content is written directly, as a single frame.
+static Bool writeClipboard(int fd, uint8_t mime, const char *data, size_t size) {
+    lorieEvent *e = NULL;
+    struct iovec *iov = NULL;
+    Bool ret = FALSE;
+    int iovcnt;
+
+    if (size > CLIPBOARD_MAX_SIZE) {
+        log(ERROR, "Clipboard content is too big (%zu bytes), not sending it", size);
+        return TRUE;
+    }
+
+    if ((iovcnt = clipboardFrame(mime, data, size, &e, &iov)))
+        ret = writeFully(fd, iov, iovcnt);
+    free(e);
+    free(iov);
+    return ret;
+}
+
+// Both functions return complete null-terminated content which is owned by caller or NULL if more chunks are expected.
+// Size and type of returned content stay in the transfer until the next one starts.
+static char* clipboardTransferStart(clipboardTransfer *t, uint8_t mime, uint32_t size) {
+    free(t->data);
+    t->mime = mime;
+    t->received = 0;
+    t->size = size;
+    t->data = size <= CLIPBOARD_MAX_SIZE ? calloc(1, size + 1) : NULL;
+    if (!t->data)
+        log(ERROR, "Failed to allocate %u bytes for clipboard content, dropping it", size);
+
+    if (t->data && size == 0) {
+        char *data = t->data;
+        t->data = NULL;
+        return data;
+    }
+
+    return NULL;
+}
+
+static char* clipboardTransferChunk(clipboardTransfer *t, int fd, uint32_t count) {
+    if (!t->data || count > t->size - t->received) {
+        // Chunk does not belong to transfer we can accept, it must be skipped to keep the stream in sync.
+        skipPayload(fd, count);
+        return NULL;
+    }
+
+    if (!readFully(fd, t->data + t->received, count)) {
+        log(ERROR, "Failed to read clipboard chunk of %u bytes: %s", count, strerror(errno));
+        free(t->data);
+        t->data = NULL;
+        return NULL;
+    }
+
+    t->received += count;
+    if (t->received == t->size) {
+        char *data = t->data;
+        t->data = NULL;
+        return data;
+    }
+
+    return NULL;
+}
+
+typedef struct {
+    uint32_t mimes;
+    uint64_t hash;
+} clipboardAnnounce;
+
+static Bool handleClipboardAnnounce(unused ClientPtr pClient, void *closure) {
+    // This must be done only on X server thread.
+    clipboardAnnounce *a = closure;
+    lorieHandleClipboardAnnounce(a->mimes, a->hash);
+    free(a);
+    return TRUE;
+}
+
+static Bool handleClipboardRequest(unused ClientPtr pClient, void *closure) {
     // This must be done only on X server thread.
-    lorieHandleClipboardAnnounce();
+    lorieHandleClipboardRequest((int) (uintptr_t) closure);
     return TRUE;
 }
 
+typedef struct {
+    uint8_t mime;
+    uint32_t size;
+    char *data;
+} clipboardData;
+
 static Bool handleClipboardData(unused ClientPtr pClient, void *closure) {
     // This must be done only on X server thread.
-    lorieHandleClipboardData(closure);
+    clipboardData *d = closure;
+    lorieHandleClipboardData(d->mime, d->data, d->size);
+    free(d);
     return TRUE;
 }
 
-void handleLorieEvents(int fd, __unused int ready, __unused void *ignored) {
-    ValuatorMask mask;
-    lorieEvent e = {0};
-    valuator_mask_zero(&mask);
+static clipboardTransfer serverClipboard = {0};
 
-    if (ready & X_NOTIFY_ERROR) {
-        InputThreadUnregisterDev(fd);
-        close(fd);
-        conn_fd = -1;
-        lorieEnableClipboardSync(FALSE);
+static void queueClipboardData(char *data) {
+    clipboardData *d = data ? calloc(1, sizeof(*d)) : NULL;
+    if (!d) {
+        free(data);
         return;
     }
 
-    again:
-    if (read(fd, &e, sizeof(e)) == sizeof(e)) {
-        switch(e.type) {
-            case EVENT_SCREEN_SIZE: {
-                lorieEvent *copy = calloc(1, sizeof(lorieEvent));
-                *copy = e;
-                QueueWorkProc(sendConfigureNotify, NULL, copy);
-                break;
-            }
-            case EVENT_TOUCH: {
-                double x, y;
-                DDXTouchPointInfoPtr touch = TouchFindByDDXID(lorieTouch, e.touch.id, FALSE);
-
-                x = (float) e.touch.x * 0xFFFF / (float) pScreenPtr->GetScreenPixmap(pScreenPtr)->drawable.width;
-                y = (float) e.touch.y * 0xFFFF / (float) pScreenPtr->GetScreenPixmap(pScreenPtr)->drawable.height;
-
-                // Avoid duplicating events
-                if (touch && touch->active) {
-                    double oldx, oldy;
-                    if (e.touch.type == XI_TouchUpdate &&
-                        valuator_mask_fetch_double(touch->valuators, 0, &oldx) &&
-                        valuator_mask_fetch_double(touch->valuators, 1, &oldy) &&
-                        oldx == x && oldy == y)
-                        break;
-                }
+    d->mime = serverClipboard.mime;
+    d->size = serverClipboard.size;
+    d->data = data;
+    QueueWorkProc(handleClipboardData, NULL, d);
+}
+
+/*
+ * Text sent with EVENT_TEXT is typed by input thread itself. Characters are typed in bursts paced by timer instead of
+ * sender sleeping after every character. Burst is small enough to fit X server's event queue even if every character
+ * needs fake modifier presses. Keysyms missing from layout found in the next burst are bound to spare keycodes with
+ * a single keymap change, and the burst is delayed to let clients fetch the new keymap before it is typed.
+ */
+#define TEXT_BURST 32
+#define TEXT_INTERVAL_NS 4000000 // 4 ms
+#define TEXT_REMAP_DELAY_NS 20000000 // 20 ms
+#define TEXT_MAX_SIZE (16 * 1024 * 1024)
+static struct {
+    int timer;
+    char *data;
+    size_t size, offset;
+} textQueue = { .timer = -1 };
+
+static size_t decodeUtf8(const uint8_t *in, size_t size, uint32_t *code) {
+    size_t len = *in < 0x80 ? 1 : (*in & 0xe0) == 0xc0 ? 2 : (*in & 0xf0) == 0xe0 ? 3 : (*in & 0xf8) == 0xf0 ? 4 : 0;
+
+    // Invalid and truncated sequences are skipped byte by byte.
+    *code = 0;
+    if (len == 0 || len > size)
+        return 1;
+
+    *code = len == 1 ? *in : *in & (0x7f >> len);
+    for (size_t i = 1; i < len; i++) {
+        if ((in[i] & 0xc0) != 0x80) {
+            *code = 0;
+            return 1;
+        }
+        *code = (*code << 6) | (in[i] & 0x3f);
+    }
+
+    return len;
+}
+
+static void scheduleText(long delay) {
+    struct itimerspec spec = { .it_value = { .tv_sec = delay / 1000000000, .tv_nsec = delay % 1000000000 } };
+    timerfd_settime(textQueue.timer, 0, &spec, NULL);
+}
+
+static KeySym textKeysym(uint32_t code) {
+    return code == '\n' ? XK_Return : code == '\t' ? XK_Tab : code == '\b' ? XK_BackSpace : ucs2keysym((long) code);
+}
+
+static Bool bindMissingKeysyms(void) {
+    KeySym missing[TEXT_BURST];
+    int count = 0, n = 0;
+
+    for (size_t offset = textQueue.offset; offset < textQueue.size && n < TEXT_BURST;) {
+        uint32_t code;
+        int i;
+
+        offset += decodeUtf8((uint8_t*) textQueue.data + offset, textQueue.size - offset, &code);
+        if (code == 0)
+            continue;
+
+        KeySym ks = textKeysym(code);
+        for (i = 0; i < count && missing[i] != ks; i++);
+        if (i == count && !lorieKeysymIsMapped(ks))
+            missing[count++] = ks;
+        n++;
+    }
+
+    return count && lorieBindKeysyms(missing, count) > 0;
+}
+
+static void typeText(int fd, __unused int ready, __unused void *data) {
+    uint64_t expirations;
+    int typed = 0;
+
+    if (fd != -1)
+        read(fd, &expirations, sizeof(expirations));
+
+    // Everything is typed at once if there is no timer to pace it.
+    while (textQueue.offset < textQueue.size && (typed < TEXT_BURST || textQueue.timer == -1)) {
+        uint32_t code;
+        size_t len = decodeUtf8((uint8_t*) textQueue.data + textQueue.offset, textQueue.size - textQueue.offset, &code);
+        KeySym ks;
+
+        if (code == 0) {
+            textQueue.offset += len;
+            continue;
+        }
+
+        ks = textKeysym(code);
+        // Keys typed in this burst may be recycled by binding, so it is done only at the start of the next one.
+        if (textQueue.timer != -1 && !lorieKeysymIsMapped(ks) && (typed > 0 || bindMissingKeysyms())) {
+            scheduleText(TEXT_REMAP_DELAY_NS);
+            return;
+        }
+
+        lorieKeysymKeyboardEvent(ks, TRUE);
+        lorieKeysymKeyboardEvent(ks, FALSE);
+        textQueue.offset += len;
+        typed++;
+    }
 
-                // Sometimes activity part does not send XI_TouchBegin and sends only XI_TouchUpdate.
-                if (e.touch.type == XI_TouchUpdate && (!touch || !touch->active))
-                    e.touch.type = XI_TouchBegin;
+    if (textQueue.offset < textQueue.size) {
+        scheduleText(TEXT_INTERVAL_NS);
+        return;
+    }
+
+    free(textQueue.data);
+    textQueue.data = NULL;
+    textQueue.size = textQueue.offset = 0;
+}
+
+static void queueText(int fd, const char *text, uint32_t size) {
+    Bool idle = textQueue.offset == textQueue.size;
+    char *data;
+
+    if (textQueue.offset) {
+        memmove(textQueue.data, textQueue.data + textQueue.offset, textQueue.size - textQueue.offset);
+        textQueue.size -= textQueue.offset;
+        textQueue.offset = 0;
+    }
+
+    data = textQueue.size + size <= TEXT_MAX_SIZE ? realloc(textQueue.data, textQueue.size + size ?: 1) : NULL;
+    if (!data) {
+        log(ERROR, "Failed to queue %u bytes of text, dropping it", size);
+        if (!text)
+            skipPayload(fd, size);
+        return;
+    }
+
+    textQueue.data = data;
+    if (text)
+        memcpy(data + textQueue.size, text, size);
+    else if (!readFully(fd, data + textQueue.size, size)) {
+        log(ERROR, "Failed to read %u bytes of text: %s", size, strerror(errno));
+        return;
+    }
+    textQueue.size += size;
+
+    if (idle)
+        typeText(-1, 0, NULL);
+}
+
+static uint32_t subscribedMessages = 0;
+
+// The latest cursor is kept to be sent right after subscription and to skip setting the same cursor again.
+static struct {
+    lorieCursorMessage header;
+    uint8_t *data;
+} lastCursor = {0};
+
+static void sendMessage(uint8_t type, const void *header, uint32_t headerSize, const void *data, uint32_t size) {
+    lorieEvent e = { .message = { .t = EVENT_MESSAGE, .type = type, .version = LORIE_MESSAGE_VERSION, .count = headerSize + size } };
+    struct iovec iov[3] = {
+        { .iov_base = &e, .iov_len = sizeof(e) },
+        { .iov_base = (void*) header, .iov_len = headerSize },
+        { .iov_base = (void*) data, .iov_len = size },
+    };
+
+    // Messages are sent from X main thread, queue keeps them from interleaving with input thread replies.
+    if (subscribedMessages & (1 << type))
+        queueSend(iov, 3);
+}
+
+static Bool handleMessageSubscribe(unused ClientPtr pClient, void *closure) {
+    ScreenPtr pScreen = screenInfo.screens[0];
+    lorieScreenModeMessage mode = { .width = pScreen->width, .height = pScreen->height };
+
+    subscribedMessages = (uint32_t) (uintptr_t) closure;
+    // Activity which wants cursor images draws cursor itself.
+    lorieSetHardwareCursor(subscribedMessages & (1 << MESSAGE_CURSOR) ? TRUE : FALSE);
+
+    if (lastCursor.data)
+        sendMessage(MESSAGE_CURSOR, &lastCursor.header, sizeof(lastCursor.header),
+                    lastCursor.data, lastCursor.header.width * lastCursor.header.height * 4);
+    sendMessage(MESSAGE_SCREEN_MODE, &mode, sizeof(mode), NULL, 0);
+    lorieSendRenderStats();
+    return TRUE;
+}
+
+void lorieSendCursor(int width, int height, int xhot, int yhot, const void *data) {
+    lorieCursorMessage header = { .width = data ? width : 0, .height = data ? height : 0, .xhot = xhot, .yhot = yhot };
+    size_t size = header.width * header.height * 4;
+
+    if (lastCursor.data && !memcmp(&header, &lastCursor.header, sizeof(header)) && (!size || !memcmp(data, lastCursor.data, size)))
+        return;
+
+    free(lastCursor.data);
+    lastCursor.header = header;
+    // Allocated even for empty cursor, NULL data means nothing was set yet.
+    if ((lastCursor.data = malloc(size ?: 1)) && size)
+        memcpy(lastCursor.data, data, size);
+    sendMessage(MESSAGE_CURSOR, &header, sizeof(header), data, size);
+}
 
-                if (e.touch.type == XI_TouchEnd && (!touch || !touch->active))
+void lorieSendBell(int volume, int pitch, int duration) {
+    lorieBellMessage bell = { .volume = volume, .pitch = pitch, .duration = duration };
+    sendMessage(MESSAGE_BELL, &bell, sizeof(bell), NULL, 0);
+}
+
+void lorieSendScreenMode(int width, int height, int framerate) {
+    lorieScreenModeMessage mode = { .width = width, .height = height, .framerate = framerate };
+    sendMessage(MESSAGE_SCREEN_MODE, &mode, sizeof(mode), NULL, 0);
+}
+
+void lorieSendRenderStats(void) {
+    char buf[4096];
+    int len;
+
+    if (!(subscribedMessages & (1 << MESSAGE_RENDER_STATS)))
+        return;
+
+    len = renderer_stats_dump(buf, sizeof(buf), FALSE);
+    sendMessage(MESSAGE_RENDER_STATS, buf, min(max(len, 0), sizeof(buf) - 1), NULL, 0);
+}
+
+static void handleLorieEvent(int fd, lorieEvent *e) {
+    ValuatorMask mask;
+    valuator_mask_zero(&mask);
+
+    switch(e->type) {
+        case EVENT_SCREEN_SIZE: {
+            lorieEvent *copy = calloc(1, sizeof(lorieEvent));
+            if (e->screenSize.framerate > 0)
+                inputFramerate = e->screenSize.framerate;
+            *copy = *e;
+            QueueWorkProc(sendConfigureNotify, NULL, copy);
+            break;
+        }
+        case EVENT_VSYNC: {
+            lorieEvent *copy = calloc(1, sizeof(lorieEvent));
+            *copy = *e;
+            QueueWorkProc(sendVsyncNotify, NULL, copy);
+            break;
+        }
+        case EVENT_TOUCH: {
+            double x, y;
+            DDXTouchPointInfoPtr touch = TouchFindByDDXID(lorieTouch, e->touch.id, FALSE);
+
+            x = (float) e->touch.x * 0xFFFF / (float) pScreenPtr->GetScreenPixmap(pScreenPtr)->drawable.width;
+            y = (float) e->touch.y * 0xFFFF / (float) pScreenPtr->GetScreenPixmap(pScreenPtr)->drawable.height;
+
+            // Avoid duplicating events
+            if (touch && touch->active) {
+                double oldx, oldy;
+                if (e->touch.type == XI_TouchUpdate &&
+                    valuator_mask_fetch_double(touch->valuators, 0, &oldx) &&
+                    valuator_mask_fetch_double(touch->valuators, 1, &oldy) &&
+                    oldx == x && oldy == y)
                     break;
+            }
 
-                __android_log_print(ANDROID_LOG_ERROR, "tx11-request", "touch event: %d %d %d %d", e.touch.type, e.touch.id, e.touch.x, e.touch.y);
-                valuator_mask_set_double(&mask, 0, x);
-                valuator_mask_set_double(&mask, 1, y);
-                QueueTouchEvents(lorieTouch, e.touch.type, e.touch.id, 0, &mask);
+            // Sometimes activity part does not send XI_TouchBegin and sends only XI_TouchUpdate.
+            if (e->touch.type == XI_TouchUpdate && (!touch || !touch->active))
+                e->touch.type = XI_TouchBegin;
+
+            if (e->touch.type == XI_TouchEnd && (!touch || !touch->active))
                 break;
+
+            __android_log_print(ANDROID_LOG_ERROR, "tx11-request", "touch event: %d %d %d %d", e->touch.type, e->touch.id, e->touch.x, e->touch.y);
+            valuator_mask_set_double(&mask, 0, x);
+            valuator_mask_set_double(&mask, 1, y);
+            QueueTouchEvents(lorieTouch, e->touch.type, e->touch.id, 0, &mask);
+            break;
+        }
+        case EVENT_MOUSE: {
+            int flags;
+            switch(e->mouse.detail) {
+                case 0: // BUTTON_UNDEFINED
+                    flags = (e->mouse.relative) ? POINTER_RELATIVE | POINTER_ACCELERATE : POINTER_ABSOLUTE | POINTER_SCREEN | POINTER_NORAW;
+                    valuator_mask_set_double(&mask, 0, (double) e->mouse.x);
+                    valuator_mask_set_double(&mask, 1, (double) e->mouse.y);
+                    QueuePointerEvents(lorieMouse, MotionNotify, 0, flags, &mask);
+                    break;
+                case 1: // BUTTON_LEFT
+                case 2: // BUTTON_MIDDLE
+                case 3: // BUTTON_RIGHT
+                    QueuePointerEvents(lorieMouse, e->mouse.down ? ButtonPress : ButtonRelease, e->mouse.detail, POINTER_RELATIVE, NULL);
+                    break;
+                case 4: // BUTTON_SCROLL
+                    if (e->mouse.x) {
+                        valuator_mask_zero(&mask);
+                        valuator_mask_set_double(&mask, 2, (double) e->mouse.x / 120);
+                        QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
+                    }
+                    if (e->mouse.y) {
+                        valuator_mask_zero(&mask);
+                        valuator_mask_set_double(&mask, 3, (double) e->mouse.y / 120);
+                        QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
+                    }
+                    break;
             }
-            case EVENT_MOUSE: {
-                int flags;
-                switch(e.mouse.detail) {
-                    case 0: // BUTTON_UNDEFINED
-                        flags = (e.mouse.relative) ? POINTER_RELATIVE | POINTER_ACCELERATE : POINTER_ABSOLUTE | POINTER_SCREEN | POINTER_NORAW;
-                        valuator_mask_set_double(&mask, 0, (double) e.mouse.x);
-                        valuator_mask_set_double(&mask, 1, (double) e.mouse.y);
-                        QueuePointerEvents(lorieMouse, MotionNotify, 0, flags, &mask);
-                        break;
-                    case 1: // BUTTON_LEFT
-                    case 2: // BUTTON_MIDDLE
-                    case 3: // BUTTON_RIGHT
-                        QueuePointerEvents(lorieMouse, e.mouse.down ? ButtonPress : ButtonRelease, e.mouse.detail, POINTER_RELATIVE, NULL);
-                        break;
-                    case 4: // BUTTON_SCROLL
-                        if (e.mouse.x) {
-                            valuator_mask_zero(&mask);
-                            valuator_mask_set_double(&mask, 2, (double) e.mouse.x / 120);
-                            QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
-                        }
-                        if (e.mouse.y) {
-                            valuator_mask_zero(&mask);
-                            valuator_mask_set_double(&mask, 3, (double) e.mouse.y / 120);
-                            QueuePointerEvents(lorieMouse, MotionNotify, 0, POINTER_RELATIVE, &mask);
-                        }
-                        break;
-                }
+            break;
+        }
+        case EVENT_KEY:
+            QueueKeyboardEvents(lorieKeyboard, e->key.state ? KeyPress : KeyRelease, e->key.key);
+            break;
+        case EVENT_UNICODE: {
+            if (textQueue.offset < textQueue.size) {
+                // Must not overtake text which is still being typed.
+                char utf8[4];
+                size_t len = e->unicode.code < 0x80 ? 1 : e->unicode.code < 0x800 ? 2 : e->unicode.code < 0x10000 ? 3 : 4;
+                utf8[0] = (char) (len == 1 ? e->unicode.code : (0xf00 >> len) | (e->unicode.code >> (6 * (len - 1))));
+                for (size_t i = 1; i < len; i++)
+                    utf8[i] = (char) (0x80 | ((e->unicode.code >> (6 * (len - 1 - i))) & 0x3f));
+                queueText(fd, utf8, len);
                 break;
             }
-            case EVENT_KEY:
-                QueueKeyboardEvents(lorieKeyboard, e.key.state ? KeyPress : KeyRelease, e.key.key);
-                break;
-            case EVENT_UNICODE: {
-                int ks = ucs2keysym((long) e.unicode.code);
-                __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "Trying to input keysym %d\n", ks);
-                lorieKeysymKeyboardEvent(ks, TRUE);
-                lorieKeysymKeyboardEvent(ks, FALSE);
-                break;
+
+            int ks = ucs2keysym((long) e->unicode.code);
+            __android_log_print(ANDROID_LOG_DEBUG, "LorieNative", "Trying to input keysym %d\n", ks);
+            lorieKeysymKeyboardEvent(ks, TRUE);
+            lorieKeysymKeyboardEvent(ks, FALSE);
+            break;
+        }
+        case EVENT_CLIPBOARD_ENABLE:
+            lorieEnableClipboardSync(e->clipboardEnable.enable);
+            break;
+        case EVENT_CLIPBOARD_ANNOUNCE: {
+            clipboardAnnounce *a = calloc(1, sizeof(*a));
+            if (a) {
+                a->mimes = e->clipboardAnnounce.mimes;
+                a->hash = e->clipboardAnnounce.hash;
+                QueueWorkProc(handleClipboardAnnounce, NULL, a);
             }
-            case EVENT_CLIPBOARD_ENABLE:
-                lorieEnableClipboardSync(e.clipboardEnable.enable);
+            break;
+        }
+        case EVENT_CLIPBOARD_REQUEST:
+            if (e->clipboardRequest.mime < CLIPBOARD_MIME_COUNT)
+                QueueWorkProc(handleClipboardRequest, NULL, (void*) (uintptr_t) e->clipboardRequest.mime);
+            break;
+        case EVENT_CLIPBOARD_SEND:
+            queueClipboardData(clipboardTransferStart(&serverClipboard, e->clipboardSend.mime, e->clipboardSend.count));
+            break;
+        case EVENT_CLIPBOARD_CHUNK:
+            queueClipboardData(clipboardTransferChunk(&serverClipboard, fd, e->clipboardSend.count));
+            break;
+        case EVENT_TEXT:
+            queueText(fd, NULL, e->text.count);
+            break;
+        case EVENT_MESSAGE_SUBSCRIBE:
+            QueueWorkProc(handleMessageSubscribe, NULL, (void*) (uintptr_t) e->messageSubscribe.mask);
+            break;
+    }
+}
+
+static inline Bool isFixedSizeEvent(uint8_t type) {
+    // Batches and ring contain only fixed-size events, anything carrying payload is sent separately.
+    return (type < EVENT_BATCH && type != EVENT_CLIPBOARD_SEND) || type == EVENT_VSYNC;
+}
+
+/*
+ * Events read during one wakeup of input thread are collected here and coalesced before being queued to X server.
+ * In the case if X server falls behind this bounds latency of input instead of replaying the whole backlog.
+ */
+#define MAX_PENDING_EVENTS 512
+static lorieEvent pendingEvents[MAX_PENDING_EVENTS];
+static int pendingCount = 0;
+
+static inline Bool sameFrame(uint32_t time1, uint32_t time2) {
+    // Samples without timestamps are always collapsed.
+    if (lorieInputHistory == INPUT_HISTORY_COALESCE || !time1 || !time2)
+        return TRUE;
+
+    if (lorieInputHistory == INPUT_HISTORY_REPLAY)
+        return FALSE;
+
+    return (uint64_t) time1 * inputFramerate / 1000 == (uint64_t) time2 * inputFramerate / 1000;
+}
+
+static int coalesceEvents(lorieEvent *events, int count) {
+    Bool keep[MAX_PENDING_EVENTS], updated[256] = {0};
+    uint32_t updateTime[256];
+    int i, out = 0;
+
+    // Only the last XI_TouchUpdate of every touch (of every frame in the case of resampling) is needed,
+    // but updates must not cross XI_TouchBegin/XI_TouchEnd.
+    for (i = count - 1; i >= 0; i--) {
+        uint16_t id = events[i].touch.id;
+        keep[i] = TRUE;
+        if (events[i].type != EVENT_TOUCH || id >= ARRAY_SIZE(updated))
+            continue;
+
+        if (events[i].touch.type != XI_TouchUpdate)
+            updated[id] = FALSE;
+        else if (updated[id] && sameFrame(events[i].touch.time, updateTime[id]))
+            keep[i] = FALSE;
+        else {
+            updated[id] = TRUE;
+            updateTime[id] = events[i].touch.time;
+        }
+    }
+
+    for (i = 0; i < count; i++) {
+        lorieEvent *e = &events[i], *last = out ? &events[out - 1] : NULL;
+        if (!keep[i])
+            continue;
+
+        if (last && e->type == EVENT_MOUSE && last->type == EVENT_MOUSE && e->mouse.detail == last->mouse.detail) {
+            if (e->mouse.detail == 0 && !e->mouse.relative && !last->mouse.relative && sameFrame(e->mouse.time, last->mouse.time)) {
+                // Absolute motion, only the latest position matters.
+                last->mouse.x = e->mouse.x;
+                last->mouse.y = e->mouse.y;
+                last->mouse.time = e->mouse.time;
+                continue;
+            }
+
+            if ((e->mouse.detail == 0 && e->mouse.relative && last->mouse.relative) || e->mouse.detail == 4) {
+                // Relative motion or scroll, deltas are summed.
+                last->mouse.x += e->mouse.x;
+                last->mouse.y += e->mouse.y;
+                continue;
+            }
+        }
+
+        events[out++] = *e;
+    }
+
+    return out;
+}
+
+static void dispatchPendingEvents(int fd) {
+    pendingCount = coalesceEvents(pendingEvents, pendingCount);
+    for (int i = 0; i < pendingCount; i++)
+        handleLorieEvent(fd, &pendingEvents[i]);
+    pendingCount = 0;
+}
+
+static void queueLorieEvent(int fd, lorieEvent *e) {
+    if (pendingCount == MAX_PENDING_EVENTS)
+        dispatchPendingEvents(fd);
+    pendingEvents[pendingCount++] = *e;
+}
+
+static void handleLorieBatch(int fd, uint16_t count) {
+    lorieEvent events[MAX_BATCH_EVENTS];
+    while (count) {
+        uint16_t n = min(count, MAX_BATCH_EVENTS);
+        if (!readFully(fd, events, n * sizeof(lorieEvent))) {
+            log(ERROR, "Failed to read batch of %d events: %s", n, strerror(errno));
+            return;
+        }
+
+        for (int i = 0; i < n; i++)
+            if (isFixedSizeEvent(events[i].type))
+                queueLorieEvent(fd, &events[i]);
+        count -= n;
+    }
+}
+
+static void releaseServerRing(void) {
+    if (serverRing)
+        munmap(serverRing, sizeof(lorieRing));
+    serverRing = NULL;
+}
+
+static void acceptRing(int fd, int ringFd) {
+    lorieEvent ack = { .ringAck = { .t = EVENT_RING_ACK, .ok = FALSE } };
+    lorieRing *ring = MAP_FAILED;
+
+    if (ringFd == -1)
+        log(ERROR, "Input ring was offered without shared memory fd");
+    else if (ASharedMemory_getSize(ringFd) < sizeof(lorieRing))
+        log(ERROR, "Input ring shared memory region is too small");
+    else if ((ring = mmap(NULL, sizeof(lorieRing), PROT_READ | PROT_WRITE, MAP_SHARED, ringFd, 0)) == MAP_FAILED)
+        log(ERROR, "Failed to map input ring: %s", strerror(errno));
+    else if (ring->magic != LORIE_RING_MAGIC || ring->size != LORIE_RING_SIZE) {
+        log(ERROR, "Input ring has unexpected layout, ignoring it");
+        munmap(ring, sizeof(lorieRing));
+        ring = MAP_FAILED;
+    }
+
+    if (ring != MAP_FAILED) {
+        releaseServerRing();
+        atomic_store(&ring->waiting, 1);
+        serverRing = ring;
+        serverRingStarted = FALSE;
+        ack.ringAck.ok = TRUE;
+    }
+
+    if (ringFd != -1)
+        close(ringFd);
+    queueSend(&(struct iovec) { .iov_base = &ack, .iov_len = sizeof(ack) }, 1);
+}
+
+static void drainRing(int fd) {
+    lorieRing *ring = serverRing;
+    if (!ring)
+        return;
+
+    while (TRUE) {
+        uint32_t head = atomic_load_explicit(&ring->head, memory_order_relaxed);
+        uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_acquire);
+
+        if (tail - head > LORIE_RING_SIZE) {
+            log(ERROR, "Input ring is corrupted (head %u, tail %u), skipping pending events", head, tail);
+            atomic_store_explicit(&ring->head, tail, memory_order_release);
+            continue;
+        }
+
+        if (head == tail) {
+            // Tell producer we need a doorbell and check once more in the case if it has not seen the flag.
+            atomic_store(&ring->waiting, 1);
+            if (atomic_load(&ring->tail) == head)
+                return;
+            atomic_store(&ring->waiting, 0);
+            continue;
+        }
+
+        for (; head != tail; head++) {
+            lorieEvent e = ring->events[head & (LORIE_RING_SIZE - 1)];
+            atomic_store_explicit(&ring->head, head + 1, memory_order_release);
+            if (isFixedSizeEvent(e.type))
+                queueLorieEvent(fd, &e);
+        }
+    }
+}
+
+static ssize_t recvEvent(int fd, lorieEvent *e, int *passedFd) {
+    char control[CMSG_SPACE(sizeof(int))] = {0};
+    struct iovec iov = { .iov_base = e, .iov_len = sizeof(*e) };
+    struct msghdr msg = { .msg_iov = &iov, .msg_iovlen = 1, .msg_control = control, .msg_controllen = sizeof(control) };
+    struct cmsghdr *cmsg;
+    ssize_t len = recvmsg(fd, &msg, 0);
+
+    *passedFd = -1;
+    for (cmsg = len > 0 ? CMSG_FIRSTHDR(&msg) : NULL; cmsg; cmsg = CMSG_NXTHDR(&msg, cmsg))
+        if (cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_RIGHTS && cmsg->cmsg_len == CMSG_LEN(sizeof(int)))
+            memcpy(passedFd, CMSG_DATA(cmsg), sizeof(int));
+
+    return len;
+}
+
+void handleLorieEvents(int fd, __unused int ready, __unused void *ignored) {
+    lorieEvent e = {0};
+    int passedFd;
+
+    if (ready & X_NOTIFY_ERROR) {
+        InputThreadUnregisterDev(fd);
+        pthread_mutex_lock(&sendQueue.lock);
+        conn_fd = -1;
+        sendQueue.size = sendQueue.offset = 0;
+        pthread_mutex_unlock(&sendQueue.lock);
+        QueueWorkProc(closeConnection, NULL, (void*) (int64_t) fd);
+        QueueWorkProc(handleMessageSubscribe, NULL, (void*) 0);
+        releaseServerRing();
+        lorieEnableClipboardSync(FALSE);
+        free(serverClipboard.data);
+        serverClipboard.data = NULL;
+        scheduleText(0);
+        free(textQueue.data);
+        textQueue.data = NULL;
+        textQueue.size = textQueue.offset = 0;
+        return;
+    }
+
+    again:
+    if (recvEvent(fd, &e, &passedFd) == sizeof(e)) {
+        // Events from the ring were produced before this one.
+        if (serverRingStarted)
+            drainRing(fd);
+
+        switch (e.type) {
+            case EVENT_BATCH:
+                handleLorieBatch(fd, e.batch.count);
                 break;
-            case EVENT_CLIPBOARD_ANNOUNCE:
-                QueueWorkProc(handleClipboardAnnounce, NULL, NULL);
+            case EVENT_RING_OFFER:
+                dispatchPendingEvents(fd);
+                acceptRing(fd, passedFd);
+                passedFd = -1;
                 break;
-            case EVENT_CLIPBOARD_SEND: {
-                char *data = calloc(1, e.clipboardSend.count + 1);
-                read(conn_fd, data, e.clipboardSend.count);
-                data[e.clipboardSend.count] = 0;
-                QueueWorkProc(handleClipboardData, NULL, data);
-            }
+            case EVENT_RING_DOORBELL:
+                serverRingStarted = TRUE;
+                drainRing(fd);
+                break;
+            default:
+                if (isFixedSizeEvent(e.type))
+                    queueLorieEvent(fd, &e);
+                else {
+                    dispatchPendingEvents(fd);
+                    handleLorieEvent(fd, &e);
+                }
         }
 
+        if (passedFd != -1)
+            close(passedFd);
+
         int n;
         if (ioctl(fd, FIONREAD, &n) >= 0 && n > sizeof(e))
             goto again;
-    }
+    } else if (passedFd != -1)
+        close(passedFd);
+
+    dispatchPendingEvents(fd);
 }
 
-void lorieSendClipboardData(const char* data) {
-    if (data && conn_fd != -1) {
-        size_t len = strlen(data);
-        lorieEvent e = { .clipboardSend = { .t = EVENT_CLIPBOARD_SEND, .count = len } };
-        write(conn_fd, &e, sizeof(e));
-        write(conn_fd, data, len);
-    }
+void lorieAnnounceClipboard(uint32_t mimes, uint64_t hash) {
+    lorieEvent e = { .clipboardAnnounce = { .t = EVENT_CLIPBOARD_ANNOUNCE, .mimes = mimes, .hash = hash } };
+    queueSend(&(struct iovec) { .iov_base = &e, .iov_len = sizeof(e) }, 1);
 }
 
-void lorieRequestClipboard(void) {
-    if (conn_fd != -1) {
-        lorieEvent e = { .type = EVENT_CLIPBOARD_REQUEST };
-        write(conn_fd, &e, sizeof(e));
-    }
+void lorieSendClipboardData(int mime, const char* data, size_t size) {
+    if (data && conn_fd != -1 && !queueClipboard(mime, data, size))
+        log(ERROR, "Failed to send clipboard content: %s", strerror(errno));
+}
+
+void lorieRequestClipboard(int mime) {
+    lorieEvent e = { .clipboardRequest = { .t = EVENT_CLIPBOARD_REQUEST, .mime = mime } };
+    queueSend(&(struct iovec) { .iov_base = &e, .iov_len = sizeof(e) }, 1);
 }
 
 static Bool addFd(unused ClientPtr pClient, void *closure) {
+    if (textQueue.timer == -1) {
+        textQueue.timer = timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+        if (textQueue.timer != -1)
+            InputThreadRegisterDev(textQueue.timer, typeText, NULL);
+    }
+
     InputThreadRegisterDev((int) (int64_t) closure, handleLorieEvents, NULL);
+    pthread_mutex_lock(&sendQueue.lock);
     conn_fd = (int) (int64_t) closure;
+    pthread_mutex_unlock(&sendQueue.lock);
     return TRUE;
 }
 
+
 JNIEXPORT jobject JNICALL
 Java_com_termux_x11_CmdEntryPoint_getXConnection(JNIEnv *env, unused jobject cls) {
     int client[2];
@@ -420,6 +1441,7 @@ Java_com_termux_x11_CmdEntryPoint_getXConnection(JNIEnv *env, unused jobject cls
     jmethodID adoptFd = (*env)->GetStaticMethodID(env, ParcelFileDescriptorClass, "adoptFd", "(I)Landroid/os/ParcelFileDescriptor;");
     socketpair(AF_UNIX, SOCK_STREAM, 0, client);
     fcntl(client[0], F_SETFL, fcntl(client[0], F_GETFL, 0) | O_NONBLOCK);
+    fcntl(client[1], F_SETFL, fcntl(client[1], F_GETFL, 0) | O_NONBLOCK);
     QueueWorkProc(addFd, NULL, (void*) (int64_t) client[1]);
 
     return (*env)->CallStaticObjectMethod(env, ParcelFileDescriptorClass, adoptFd, client[0]);
@@ -450,8 +1472,15 @@ Java_com_termux_x11_CmdEntryPoint_getLogcatOutput(JNIEnv *env, unused jobject cl
     return NULL;
 }
 
+JNIEXPORT jstring JNICALL
+Java_com_termux_x11_CmdEntryPoint_getRenderStats(JNIEnv *env, unused jobject cls, jboolean reset) {
+    char buf[2048];
+    renderer_stats_dump(buf, sizeof(buf), reset);
+    return (*env)->NewStringUTF(env, buf);
+}
+
 JNIEXPORT jboolean JNICALL
-Java_com_termux_x11_CmdEntryPoint_connected(__unused JNIEnv *env, __unused jclass clazz) {
+Java_com_termux_x11_LorieView_connected(__unused JNIEnv *env, __unused jclass clazz) {
     return conn_fd != -1;
 }
 
@@ -470,60 +1499,384 @@ static inline void checkConnection(JNIEnv* env) {
 
         close(conn_fd);
         conn_fd = -1;
+
+        if (clientRing.ring)
+            munmap(clientRing.ring, sizeof(lorieRing));
+        clientRing.ring = NULL;
+        clientRing.active = JNI_FALSE;
+    }
+}
+
+static Bool ringDoorbell(void) {
+    // Consumer is going to sleep and will not look at the ring until the doorbell.
+    if (atomic_exchange(&clientRing.ring->waiting, 0)) {
+        lorieEvent e = { .type = EVENT_RING_DOORBELL };
+        struct iovec iov = { .iov_base = &e, .iov_len = sizeof(e) };
+        if (!writeFully(conn_fd, &iov, 1)) {
+            // Consumer still waits, next event must ring again.
+            atomic_store(&clientRing.ring->waiting, 1);
+            return FALSE;
+        }
+    }
+    return TRUE;
+}
+
+static Bool ringPush(lorieEvent* e) {
+    lorieRing *ring = clientRing.ring;
+    uint32_t tail = atomic_load_explicit(&ring->tail, memory_order_relaxed);
+
+    if (tail - atomic_load_explicit(&ring->head, memory_order_acquire) >= LORIE_RING_SIZE)
+        return FALSE;
+
+    ring->events[tail & (LORIE_RING_SIZE - 1)] = *e;
+    atomic_store(&ring->tail, tail + 1);
+    return TRUE;
+}
+
+static void offerRing(void) {
+    int fd = ASharedMemory_create("lorie-input-ring", sizeof(lorieRing));
+    lorieRing *ring = fd < 0 ? MAP_FAILED : mmap(NULL, sizeof(lorieRing), PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    lorieEvent e = { .type = EVENT_RING_OFFER };
+    char control[CMSG_SPACE(sizeof(int))] = {0};
+    struct iovec iov = { .iov_base = &e, .iov_len = sizeof(e) };
+    struct msghdr msg = { .msg_iov = &iov, .msg_iovlen = 1, .msg_control = control, .msg_controllen = sizeof(control) };
+    struct cmsghdr *cmsg = CMSG_FIRSTHDR(&msg);
+
+    if (ring == MAP_FAILED) {
+        log(ERROR, "Failed to create input ring, falling back to socket: %s", strerror(errno));
+        if (fd >= 0)
+            close(fd);
+        return;
+    }
+
+    ring->magic = LORIE_RING_MAGIC;
+    ring->size = LORIE_RING_SIZE;
+    atomic_store(&ring->head, 0);
+    atomic_store(&ring->tail, 0);
+    atomic_store(&ring->waiting, 0);
+
+    cmsg->cmsg_level = SOL_SOCKET;
+    cmsg->cmsg_type = SCM_RIGHTS;
+    cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+    memcpy(CMSG_DATA(cmsg), &fd, sizeof(int));
+
+    if (sendmsg(conn_fd, &msg, 0) != sizeof(e)) {
+        log(ERROR, "Failed to offer input ring, falling back to socket: %s", strerror(errno));
+        munmap(ring, sizeof(lorieRing));
+    } else
+        // Ring will be used after X server acknowledges it, until then events go through socket.
+        clientRing.ring = ring;
+
+    close(fd);
+}
+
+static void flushBatch(JNIEnv* env) {
+    if (clientRing.active) {
+        // Events are already in the ring, only wake up the consumer.
+        ringDoorbell();
+        return;
+    }
+
+    if (batch.count && conn_fd != -1) {
+        lorieEvent header = { .batch = { .t = EVENT_BATCH, .count = batch.count } };
+        struct iovec iov[] = {
+                { .iov_base = &header, .iov_len = sizeof(header) },
+                { .iov_base = batch.events, .iov_len = batch.count * sizeof(lorieEvent) },
+        };
+        if (!writeFully(conn_fd, iov, 2))
+            log(ERROR, "Failed to send batch of %d events: %s", batch.count, strerror(errno));
+        checkConnection(env);
+    }
+    batch.count = 0;
+}
+
+static void sendEvent(JNIEnv* env, lorieEvent* e) {
+    if (clientRing.active) {
+        if (ringPush(e)) {
+            if (!batch.active)
+                ringDoorbell();
+            return;
+        }
+
+        // Consumer does not keep up. X server drains the ring before handling events coming through
+        // socket, so sending it there keeps the order, while dropping it could leave a key pressed.
+        if (!ringDoorbell())
+            log(ERROR, "Input ring is full and X server can not be woken up, dropping event");
+        else {
+            struct iovec iov = { .iov_base = e, .iov_len = sizeof(*e) };
+            if (!writeFully(conn_fd, &iov, 1))
+                log(ERROR, "Input ring is full and sending event through socket failed: %s", strerror(errno));
+        }
+        checkConnection(env);
+        return;
+    }
+
+    if (batch.active) {
+        batch.events[batch.count++] = *e;
+        if (batch.count == MAX_BATCH_EVENTS)
+            flushBatch(env);
+        return;
+    }
+
+    write(conn_fd, e, sizeof(*e));
+    checkConnection(env);
+}
+
+// Cursor images are requested only in hardware cursor mode, X server draws cursor itself otherwise.
+// Render statistics are pushed periodically, so they are requested only while somebody shows them.
+static uint32_t activityMessages = ((1 << MESSAGE_COUNT) - 1) & ~(1 << MESSAGE_CURSOR) & ~(1 << MESSAGE_RENDER_STATS);
+
+static void subscribeMessages(void) {
+    lorieEvent e = { .messageSubscribe = { .t = EVENT_MESSAGE_SUBSCRIBE, .version = LORIE_MESSAGE_VERSION, .mask = activityMessages } };
+    if (conn_fd != -1)
+        write(conn_fd, &e, sizeof(e));
+}
+
+static void setActivityMessage(int type, jboolean enable) {
+    uint32_t messages = enable ? activityMessages | (1 << type) : activityMessages & ~(1 << type);
+    if (messages != activityMessages) {
+        activityMessages = messages;
+        subscribeMessages();
     }
 }
 
 JNIEXPORT void JNICALL
-Java_com_termux_x11_LorieView_connect(unused JNIEnv* env, unused jobject cls, jint fd) {
-    if (!Charset.self) {
-        // Init clipboard-related JNI stuff
-        Charset.self = FindClassOrDie(env, "java/nio/charset/Charset");
-        Charset.forName = FindMethodOrDie(env, Charset.self, "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;", JNI_TRUE);
-        Charset.decode = FindMethodOrDie(env, Charset.self, "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/CharBuffer;", JNI_FALSE);
+Java_com_termux_x11_LorieView_setHardwareCursor(unused JNIEnv* env, unused jclass cls, jboolean enable) {
+    setActivityMessage(MESSAGE_CURSOR, enable);
+}
+
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_setXRenderStatsUpdates(unused JNIEnv* env, unused jclass cls, jboolean enable) {
+    setActivityMessage(MESSAGE_RENDER_STATS, enable);
+}
 
-        CharBuffer.self = FindClassOrDie(env,  "java/nio/CharBuffer");
-        CharBuffer.toString = FindMethodOrDie(env, CharBuffer.self, "toString", "()Ljava/lang/String;", JNI_FALSE);
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_connect(unused JNIEnv* env, jclass cls, jint fd, jboolean sharedMemoryTransport) {
+    if (!LorieView.setClipboardText) {
+        // Init clipboard-related JNI stuff
+        LorieView.setClipboardText = FindMethodOrDie(env, cls, "setClipboardText", "(Ljava/lang/String;)V", JNI_FALSE);
+        LorieView.setClipboardMimes = FindMethodOrDie(env, cls, "setClipboardMimes", "(I)V", JNI_FALSE);
+        LorieView.receiveClipboardData = FindMethodOrDie(env, cls, "receiveClipboardData", "(I[B)V", JNI_FALSE);
+        LorieView.requestClipboard = FindMethodOrDie(env, cls, "requestClipboard", "(I)V", JNI_FALSE);
+        LorieView.setXCursor = FindMethodOrDie(env, cls, "setXCursor", "(IIII[B)V", JNI_FALSE);
+        LorieView.ringXBell = FindMethodOrDie(env, cls, "ringXBell", "(III)V", JNI_FALSE);
+        LorieView.xScreenModeChanged = FindMethodOrDie(env, cls, "xScreenModeChanged", "(III)V", JNI_FALSE);
+        LorieView.setXRenderStats = FindMethodOrDie(env, cls, "setXRenderStats", "(Ljava/lang/String;)V", JNI_FALSE);
     }
 
+    if (clientRing.ring)
+        munmap(clientRing.ring, sizeof(lorieRing));
+    clientRing.ring = NULL;
+    clientRing.active = JNI_FALSE;
+
     conn_fd = fd;
     fcntl(fd, F_SETFL, fcntl(fd, F_GETFL, 0) | O_NONBLOCK);
+
+    subscribeMessages();
+    if (sharedMemoryTransport)
+        offerRing();
     checkConnection(env);
     log(DEBUG, "XCB connection is successfull");
 }
 
+static clipboardTransfer activityClipboard = {0};
+
+static jstring clipboardToString(JNIEnv *env, const char *data, size_t size) {
+    const uint8_t *in = (const uint8_t*) data, *end = in + size;
+    size_t len = 0;
+    jstring str;
+
+    // UTF-16 never takes more code units than UTF-8 takes bytes.
+    if (activityClipboardCache.capacity < size + 1) {
+        jchar *buffer = realloc(activityClipboardCache.buffer, (size + 1) * sizeof(jchar));
+        if (!buffer) {
+            log(ERROR, "Failed to allocate buffer for clipboard content (%zu bytes)", size);
+            return NULL;
+        }
+        activityClipboardCache.buffer = buffer;
+        activityClipboardCache.capacity = size + 1;
+    }
+
+    while (in < end) {
+        uint32_t c = *in++, count = c < 0x80 ? 0 : c >= 0xc2 && c < 0xe0 ? 1 : c >= 0xe0 && c < 0xf0 ? 2 : c >= 0xf0 && c < 0xf5 ? 3 : 4;
+        // Ranges of the second byte exclude overlong sequences, surrogates and code points above U+10FFFF.
+        uint8_t lo = c == 0xe0 ? 0xa0 : c == 0xf0 ? 0x90 : 0x80, hi = c == 0xed ? 0x9f : c == 0xf4 ? 0x8f : 0xbf;
+        if (count == 4) {
+            // Invalid leading byte
+            activityClipboardCache.buffer[len++] = 0xfffd;
+            continue;
+        }
+
+        if (count)
+            c &= 0x3f >> count;
+        for (; count && in < end && *in >= lo && *in <= hi; count--, lo = 0x80, hi = 0xbf)
+            c = (c << 6) | (*in++ & 0x3f);
+
+        if (count)
+            // Invalid or truncated sequence, replaced as a whole
+            activityClipboardCache.buffer[len++] = 0xfffd;
+        else if (c >= 0x10000) {
+            activityClipboardCache.buffer[len++] = 0xd800 + ((c - 0x10000) >> 10);
+            activityClipboardCache.buffer[len++] = 0xdc00 + ((c - 0x10000) & 0x3ff);
+        } else
+            activityClipboardCache.buffer[len++] = c;
+    }
+
+    str = (*env)->NewString(env, activityClipboardCache.buffer, (jsize) len);
+
+    // Do not keep huge buffer after pasting something like a log file.
+    if (activityClipboardCache.capacity > CLIPBOARD_CHUNK_SIZE) {
+        free(activityClipboardCache.buffer);
+        activityClipboardCache.buffer = NULL;
+        activityClipboardCache.capacity = 0;
+    }
+
+    return str;
+}
+
+static void handleMessage(JNIEnv *env, jobject thiz, lorieEvent *e) {
+    uint32_t count = e->message.count;
+    char *data;
+
+    if (e->message.type >= MESSAGE_COUNT || e->message.version != LORIE_MESSAGE_VERSION || count > LORIE_MESSAGE_MAX_SIZE
+        || !(data = malloc(count + 1))) {
+        log(DEBUG, "Skipping message %d of version %d (%u bytes)", e->message.type, e->message.version, count);
+        skipPayload(conn_fd, count);
+        return;
+    }
+
+    if (!readFully(conn_fd, data, count)) {
+        log(ERROR, "Failed to read message %d: %s", e->message.type, strerror(errno));
+        free(data);
+        return;
+    }
+
+    data[count] = 0;
+    switch (e->message.type) {
+        case MESSAGE_CURSOR: {
+            lorieCursorMessage cursor;
+            jbyteArray pixels;
+            if (count < sizeof(cursor))
+                break;
+
+            memcpy(&cursor, data, sizeof(cursor));
+            if (count - sizeof(cursor) != (size_t) cursor.width * cursor.height * 4)
+                break;
+
+            if ((pixels = (*env)->NewByteArray(env, (jsize) (count - sizeof(cursor))))) {
+                (*env)->SetByteArrayRegion(env, pixels, 0, (jsize) (count - sizeof(cursor)), (jbyte*) data + sizeof(cursor));
+                (*env)->CallVoidMethod(env, thiz, LorieView.setXCursor, cursor.width, cursor.height, cursor.xhot, cursor.yhot, pixels);
+                (*env)->DeleteLocalRef(env, pixels);
+            }
+            break;
+        }
+        case MESSAGE_BELL: {
+            lorieBellMessage bell;
+            if (count >= sizeof(bell)) {
+                memcpy(&bell, data, sizeof(bell));
+                (*env)->CallVoidMethod(env, thiz, LorieView.ringXBell, bell.volume, bell.pitch, bell.duration);
+            }
+            break;
+        }
+        case MESSAGE_SCREEN_MODE: {
+            lorieScreenModeMessage mode;
+            if (count >= sizeof(mode)) {
+                memcpy(&mode, data, sizeof(mode));
+                (*env)->CallVoidMethod(env, thiz, LorieView.xScreenModeChanged, mode.width, mode.height, mode.framerate);
+            }
+            break;
+        }
+        case MESSAGE_RENDER_STATS: {
+            jstring stats = (*env)->NewStringUTF(env, data);
+            if (stats) {
+                (*env)->CallVoidMethod(env, thiz, LorieView.setXRenderStats, stats);
+                (*env)->DeleteLocalRef(env, stats);
+            }
+            break;
+        }
+    }
+
+    free(data);
+}
+
 JNIEXPORT void JNICALL
 Java_com_termux_x11_LorieView_handleXEvents(JNIEnv *env, jobject thiz) {
     checkConnection(env);
     if (conn_fd != -1) {
         lorieEvent e = {0};
+        ssize_t len;
 
         again:
-        if (read(conn_fd, &e, sizeof(e)) == sizeof(e)) {
+        // Remaining chunks of clipboard are delivered by the next fd listener calls, but header is never split.
+        len = read(conn_fd, &e, sizeof(e));
+        if (len == sizeof(e) || (len > 0 && readFully(conn_fd, (char*) &e + len, sizeof(e) - len))) {
             switch(e.type) {
-                case EVENT_CLIPBOARD_SEND: {
-                    char clipboard[e.clipboardSend.count + 1];
-                    read(conn_fd, clipboard, sizeof(clipboard));
-                    clipboard[e.clipboardSend.count] = 0;
-                    log(DEBUG, "Clipboard content (%zu symbols) is %s", strlen(clipboard), clipboard);
-                    jmethodID id = (*env)->GetMethodID(env, (*env)->GetObjectClass(env, thiz), "setClipboardText","(Ljava/lang/String;)V");
-                    jobject bb = (*env)->NewDirectByteBuffer(env, clipboard, strlen(clipboard));
-                    jobject charset = (*env)->CallStaticObjectMethod(env, Charset.self, Charset.forName, (*env)->NewStringUTF(env, "UTF-8"));
-                    jobject cb = (*env)->CallObjectMethod(env, charset, Charset.decode, bb);
-                    (*env)->DeleteLocalRef(env, bb);
-
-                    jstring str = (*env)->CallObjectMethod(env, cb, CharBuffer.toString);
-                    (*env)->CallVoidMethod(env, thiz, id, str);
+                case EVENT_CLIPBOARD_SEND:
+                case EVENT_CLIPBOARD_CHUNK: {
+                    char *clipboard = e.type == EVENT_CLIPBOARD_SEND
+                            ? clipboardTransferStart(&activityClipboard, e.clipboardSend.mime, e.clipboardSend.count)
+                            : clipboardTransferChunk(&activityClipboard, conn_fd, e.clipboardSend.count);
+                    if (!clipboard)
+                        break;
+
+                    if (activityClipboard.mime != CLIPBOARD_MIME_TEXT) {
+                        // Other types are fetched only when some Android app reads them.
+                        jbyteArray bytes = (*env)->NewByteArray(env, (jsize) activityClipboard.size);
+                        if (bytes) {
+                            (*env)->SetByteArrayRegion(env, bytes, 0, (jsize) activityClipboard.size, (jbyte*) clipboard);
+                            (*env)->CallVoidMethod(env, thiz, LorieView.receiveClipboardData, (jint) activityClipboard.mime, bytes);
+                            (*env)->DeleteLocalRef(env, bytes);
+                        }
+                        free(clipboard);
+                        break;
+                    }
+
+                    size_t size = strlen(clipboard);
+                    uint64_t hash = lorieClipboardHash(clipboard, size);
+                    if (hash == activityClipboardCache.hash) {
+                        log(DEBUG, "Got clipboard content (%zu bytes), it is unchanged", size);
+                        free(clipboard);
+                        break;
+                    }
+
+                    log(DEBUG, "Got clipboard content (%zu bytes)", size);
+                    jstring str = clipboardToString(env, clipboard, size);
+                    free(clipboard);
+                    if (!str)
+                        break;
+
+                    (*env)->CallVoidMethod(env, thiz, LorieView.setClipboardText, str);
+                    (*env)->DeleteLocalRef(env, str);
+                    activityClipboardCache.hash = hash;
+                    break;
+                }
+                case EVENT_CLIPBOARD_ANNOUNCE: {
+                    // Text is sent right after announcement, it must be set again even if it is unchanged.
+                    activityClipboardCache.hash = 0;
+                    (*env)->CallVoidMethod(env, thiz, LorieView.setClipboardMimes, (jint) e.clipboardAnnounce.mimes);
                     break;
                 }
                 case EVENT_CLIPBOARD_REQUEST: {
-                    (*env)->CallVoidMethod(env, thiz, (*env)->GetMethodID(env, (*env)->GetObjectClass(env, thiz), "requestClipboard", "()V"));
+                    (*env)->CallVoidMethod(env, thiz, LorieView.requestClipboard, (jint) e.clipboardRequest.mime);
+                    break;
+                }
+                case EVENT_MESSAGE:
+                    handleMessage(env, thiz, &e);
+                    break;
+                case EVENT_RING_ACK: {
+                    clientRing.active = clientRing.ring && e.ringAck.ok;
+                    if (clientRing.ring && !e.ringAck.ok) {
+                        log(ERROR, "X server rejected input ring, falling back to socket");
+                        munmap(clientRing.ring, sizeof(lorieRing));
+                        clientRing.ring = NULL;
+                    }
                     break;
                 }
             }
         }
 
         int n;
-        if (ioctl(conn_fd, FIONREAD, &n) >= 0 && n > sizeof(e))
+        if (ioctl(conn_fd, FIONREAD, &n) >= 0 && n >= sizeof(e))
             goto again;
     }
 }
@@ -552,28 +1905,48 @@ JNIEXPORT void JNICALL
 Java_com_termux_x11_LorieView_setClipboardSyncEnabled(unused JNIEnv* env, unused jobject cls, jboolean enable, __unused jboolean ignored) {
     if (conn_fd != -1) {
         lorieEvent e = { .clipboardEnable = { .t = EVENT_CLIPBOARD_ENABLE, .enable = enable } };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        sendEvent(env, &e);
     }
 }
 
 JNIEXPORT void JNICALL
-Java_com_termux_x11_LorieView_sendClipboardAnnounce(JNIEnv *env, __unused jobject thiz) {
+Java_com_termux_x11_LorieView_sendClipboardAnnounce(JNIEnv *env, __unused jobject thiz, jint mimes, jstring text) {
     if (conn_fd != -1) {
-        lorieEvent e = { .type = EVENT_CLIPBOARD_ANNOUNCE };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        lorieEvent e = { .clipboardAnnounce = { .t = EVENT_CLIPBOARD_ANNOUNCE, .mimes = mimes } };
+        if (text) {
+            // X server skips grabbing selection and requesting data if it already has the same text.
+            // String is hashed in place, copying big clipboard to UTF-8 array on every change is too expensive.
+            jsize length = (*env)->GetStringLength(env, text);
+            const jchar* str = (*env)->GetStringCritical(env, text, NULL);
+            if (str) {
+                e.clipboardAnnounce.hash = lorieClipboardHashUTF16(str, length);
+                (*env)->ReleaseStringCritical(env, text, str);
+            }
+        }
+        // Android clipboard was changed by someone else.
+        activityClipboardCache.hash = 0;
+        sendEvent(env, &e);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_sendClipboardRequest(JNIEnv *env, __unused jobject thiz, jint mime) {
+    if (conn_fd != -1 && mime >= 0 && mime < CLIPBOARD_MIME_COUNT) {
+        lorieEvent e = { .clipboardRequest = { .t = EVENT_CLIPBOARD_REQUEST, .mime = mime } };
+        sendEvent(env, &e);
     }
 }
 
 JNIEXPORT void JNICALL
-Java_com_termux_x11_LorieView_sendClipboardEvent(JNIEnv *env, unused jobject thiz, jbyteArray text) {
+Java_com_termux_x11_LorieView_sendClipboardEvent(JNIEnv *env, unused jobject thiz, jint mime, jbyteArray text) {
     if (conn_fd != -1 && text) {
         jsize length = (*env)->GetArrayLength(env, text);
         jbyte* str = (*env)->GetByteArrayElements(env, text, NULL);
-        lorieEvent e = { .clipboardSend = { .t = EVENT_CLIPBOARD_SEND, .count = length } };
-        write(conn_fd, &e, sizeof(e));
-        write(conn_fd, str, length);
+        flushBatch(env);
+        if (mime == CLIPBOARD_MIME_TEXT)
+            activityClipboardCache.hash = lorieClipboardHash((const char*) str, length);
+        if (!writeClipboard(conn_fd, mime, (const char*) str, length))
+            log(ERROR, "Failed to send clipboard content: %s", strerror(errno));
         (*env)->ReleaseByteArrayElements(env, text, str, JNI_ABORT);
         checkConnection(env);
     }
@@ -583,26 +1956,31 @@ JNIEXPORT void JNICALL
 Java_com_termux_x11_LorieView_sendWindowChange(unused JNIEnv* env, unused jobject cls, jint width, jint height, jint framerate) {
     if (conn_fd != -1) {
         lorieEvent e = { .screenSize = { .t = EVENT_SCREEN_SIZE, .width = width, .height = height, .framerate = framerate } };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        sendEvent(env, &e);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_sendVsync(unused JNIEnv* env, unused jobject cls, jlong frameTimeNanos, jlong periodNanos) {
+    if (conn_fd != -1 && periodNanos > 0 && periodNanos < 1000000000) {
+        lorieEvent e = { .vsync = { .t = EVENT_VSYNC, .period = periodNanos, .phase = frameTimeNanos % periodNanos } };
+        sendEvent(env, &e);
     }
 }
 
 JNIEXPORT void JNICALL
-Java_com_termux_x11_LorieView_sendMouseEvent(unused JNIEnv* env, unused jobject cls, jfloat x, jfloat y, jint which_button, jboolean button_down, jboolean relative) {
+Java_com_termux_x11_LorieView_sendMouseEvent(unused JNIEnv* env, unused jobject cls, jfloat x, jfloat y, jint which_button, jboolean button_down, jboolean relative, jlong time) {
     if (conn_fd != -1) {
-        lorieEvent e = { .mouse = { .t = EVENT_MOUSE, .x = x, .y = y, .detail = which_button, .down = button_down, .relative = relative } };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        lorieEvent e = { .mouse = { .t = EVENT_MOUSE, .x = x, .y = y, .detail = which_button, .down = button_down, .relative = relative, .time = time } };
+        sendEvent(env, &e);
     }
 }
 
 JNIEXPORT void JNICALL
-Java_com_termux_x11_LorieView_sendTouchEvent(unused JNIEnv* env, unused jobject cls, jint action, jint id, jint x, jint y) {
+Java_com_termux_x11_LorieView_sendTouchEvent(unused JNIEnv* env, unused jobject cls, jint action, jint id, jint x, jint y, jlong time) {
     if (conn_fd != -1 && action != -1) {
-        lorieEvent e = { .touch = { .t = EVENT_TOUCH, .type = action, .id = id, .x = x, .y = y } };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        lorieEvent e = { .touch = { .t = EVENT_TOUCH, .type = action, .id = id, .x = x, .y = y, .time = time } };
+        sendEvent(env, &e);
     }
 }
 
@@ -612,8 +1990,7 @@ Java_com_termux_x11_LorieView_sendKeyEvent(unused JNIEnv* env, unused jobject cl
         int code = (scan_code) ?: android_to_linux_keycode[key_code];
         log(DEBUG, "Sending key: %d (%d %d %d)", code + 8, scan_code, key_code, key_down);
         lorieEvent e = { .key = { .t = EVENT_KEY, .key = code + 8, .state = key_down } };
-        write(conn_fd, &e, sizeof(e));
-        checkConnection(env);
+        sendEvent(env, &e);
     }
 
     return true;
@@ -624,29 +2001,23 @@ Java_com_termux_x11_LorieView_sendTextEvent(JNIEnv *env, unused jobject thiz, jb
     if (conn_fd != -1 && text) {
         jsize length = (*env)->GetArrayLength(env, text);
         jbyte *str = (*env)->GetByteArrayElements(env, text, NULL);
-        char *p = (char*) str;
-        mbstate_t state = { 0 };
-        log(DEBUG, "Parsing text: %.*s", length, str);
-
-        while (*p) {
-            wchar_t wc;
-            size_t len = mbrtowc(&wc, p, MB_CUR_MAX, &state);
-
-            if (len == (size_t)-1 || len == (size_t)-2) {
-                log(ERROR, "Invalid UTF-8 sequence encountered");
+        size_t size = strnlen((char*) str, length);
+        log(DEBUG, "Sending text (%zu bytes)", size);
+        flushBatch(env);
+
+        // X server types it itself, text is only split to chunks on character boundaries.
+        for (size_t offset = 0; offset < size;) {
+            size_t count = min(size - offset, CLIPBOARD_CHUNK_SIZE);
+            while (offset + count < size && count > 1 && (str[offset + count] & 0xc0) == 0x80)
+                count--;
+
+            lorieEvent e = { .text = { .t = EVENT_TEXT, .count = count } };
+            struct iovec iov[2] = {{ .iov_base = &e, .iov_len = sizeof(e) }, { .iov_base = (char*) str + offset, .iov_len = count }};
+            if (!writeFully(conn_fd, iov, 2)) {
+                log(ERROR, "Failed to send text: %s", strerror(errno));
                 break;
             }
-
-            if (len == 0)
-                break;
-
-            log(DEBUG, "Sending unicode event: %lc (U+%X)", wc, wc);
-            lorieEvent e = { .unicode = { .t = EVENT_UNICODE, .code = wc } };
-            write(conn_fd, &e, sizeof(e));
-            p += len;
-            if (p - (char*) str >= length)
-                break;
-            usleep(30000);
+            offset += count;
         }
 
         (*env)->ReleaseByteArrayElements(env, text, str, JNI_ABORT);
@@ -659,12 +2030,21 @@ Java_com_termux_x11_LorieView_sendUnicodeEvent(JNIEnv *env, unused jobject thiz,
     if (conn_fd != -1) {
         log(DEBUG, "Sending unicode event: %lc (U+%X)", code, code);
         lorieEvent e = { .unicode = { .t = EVENT_UNICODE, .code = code } };
-        write(conn_fd, &e, sizeof(e));
-
-        checkConnection(env);
+        sendEvent(env, &e);
     }
 }
 
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_startEventBatch(unused JNIEnv* env, unused jobject thiz) {
+    batch.active = JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_termux_x11_LorieView_flushEventBatch(JNIEnv* env, unused jobject thiz) {
+    batch.active = JNI_FALSE;
+    flushBatch(env);
+}
+
 void abort(void) {
     _exit(134);
 }
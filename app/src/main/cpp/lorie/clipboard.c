@@ -26,6 +26,7 @@
 #include <X11/Xatom.h>
 #include <windowstr.h>
 #include <selection.h>
+#include <property.h>
 #include <propertyst.h>
 #include <xacestr.h>
 
@@ -155,9 +156,10 @@ static const char *lorieUtf8ToLatin1(const char *src) {
     }
 
     // Reserve space
-    unsigned char out[sz + 1];
-    memset(out, 0, sz + 1);
+    unsigned char *out = calloc(1, sz + 1);
     size_t position = 0;
+    if (out == NULL)
+        return NULL;
 
     // And convert
     in = src;
@@ -176,7 +178,7 @@ static const char *lorieUtf8ToLatin1(const char *src) {
             out[position++] = (unsigned char)ucs;
     }
 
-    return strdup((const char*) out);
+    return (const char*) out;
 }
 
 /* end utility functions */
@@ -186,9 +188,43 @@ extern ScreenPtr pScreenPtr;
 
 static int (*origProcSendEvent)(ClientPtr) = NULL;
 static int (*origProcConvertSelection)(ClientPtr) = NULL;
-static Atom xaTIMESTAMP = 0, xaTEXT = 0, xaCLIPBOARD = 0, xaTARGETS = 0, xaSTRING = 0, xaUTF8_STRING = 0;
+static Atom xaTIMESTAMP = 0, xaTEXT = 0, xaCLIPBOARD = 0, xaTARGETS = 0, xaSTRING = 0, xaUTF8_STRING = 0, xaINCR = 0;
+static Atom lorieMimeAtoms[CLIPBOARD_MIME_COUNT] = {0};
+static const char* lorieMimeNames[CLIPBOARD_MIME_COUNT] = {
+    [CLIPBOARD_MIME_TEXT] = "UTF8_STRING",
+    [CLIPBOARD_MIME_HTML] = "text/html",
+    [CLIPBOARD_MIME_URI_LIST] = "text/uri-list",
+    [CLIPBOARD_MIME_PNG] = "image/png",
+};
 static Bool clipboardEnabled = FALSE;
-static const char* cachedData = NULL;
+
+/* Types announced by Android side and content already fetched from it */
+static uint32_t announcedMimes = 0;
+static uint64_t announcedHash = 0;
+static struct {
+    char* data;
+    size_t size;
+} cachedData[CLIPBOARD_MIME_COUNT] = {0};
+
+/* Latin-1 version of cached text, it is converted once for all STRING and TEXT requests */
+static struct {
+    char* data;
+    size_t size;
+} cachedLatin1 = {0};
+
+/* What was sent to Android side last time, unchanged content is not sent again */
+static uint32_t sentMimes = 0, pendingMimes = 0;
+static uint64_t sentHash = 0;
+
+/* Text target X selection owner supports, it is used when Android side requests text */
+static Atom lorieTextTarget = None;
+
+/* Content X selection owner sends with INCR mechanism */
+static struct {
+    Atom property;
+    char* data;
+    size_t size;
+} lorieIncoming = {0};
 
 struct LorieDataTarget {
     ClientPtr client;
@@ -200,16 +236,31 @@ struct LorieDataTarget {
     struct LorieDataTarget* next;
 } *lorieDataTargetHead;
 
+/* Data bigger than core protocol request size is sent in chunks of this size using INCR mechanism (ICCCM 2.7.2) */
+#define LORIE_INCR_CHUNK_SIZE (MAX_REQUEST_SIZE << 2)
+
+struct LorieIncrTransfer {
+    Window requestor;
+    Atom property;
+    Atom type;
+    char* data;
+    size_t size;
+    size_t offset;
+    Bool pending;
+    struct LorieIncrTransfer* next;
+} *lorieIncrTransferHead;
+
 void lorieEnableClipboardSync(Bool enable) {
     clipboardEnabled = enable;
 }
 
 /* functions related to clipboard receiving */
 
-static void lorieSelectionRequest(Atom selection, Atom target) {
+static Bool lorieSelectionRequest(Atom selection, Atom target) {
     Selection *pSel;
 
-    if (clipboardEnabled && dixLookupSelection(&pSel, selection, serverClient, DixGetAttrAccess) == Success) {
+    if (clipboardEnabled && dixLookupSelection(&pSel, selection, serverClient, DixGetAttrAccess) == Success &&
+        pSel->client != NullClient && pSel->client != serverClient) {
         xEvent event = {0};
         event.u.u.type = SelectionRequest;
         event.u.selectionRequest.owner = pSel->window;
@@ -219,7 +270,31 @@ static void lorieSelectionRequest(Atom selection, Atom target) {
         event.u.selectionRequest.target = target;
         event.u.selectionRequest.property = target;
         WriteEventsToClient(pSel->client, 1, &event);
+        return TRUE;
+    }
+
+    return FALSE;
+}
+
+static void lorieSendText(const char* text, size_t size) {
+    uint64_t hash = lorieClipboardHash(text, size);
+
+    /* Text requested right after TARGETS goes together with announcement, the rest are replies to Android requests */
+    if (pendingMimes) {
+        if (pendingMimes == sentMimes && hash == sentHash) {
+            log(DEBUG, "Clipboard content is unchanged, not sending it\n");
+            pendingMimes = 0;
+            return;
+        }
+
+        lorieAnnounceClipboard(pendingMimes, hash);
+        sentMimes = pendingMimes;
+        pendingMimes = 0;
     }
+
+    log(DEBUG, "Sending clipboard to clients (%zu bytes)\n", size);
+    lorieSendClipboardData(CLIPBOARD_MIME_TEXT, text, size);
+    sentHash = hash;
 }
 
 static Bool lorieHasAtom(Atom atom, const Atom list[], size_t size) {
@@ -230,47 +305,151 @@ static Bool lorieHasAtom(Atom atom, const Atom list[], size_t size) {
     return FALSE;
 }
 
-static void lorieHandleSelection(Atom target) {
-    PropertyPtr prop;
-    if (target != xaTARGETS && target != xaSTRING && target != xaUTF8_STRING)
-        return;
+static int lorieMimeForTarget(Atom target) {
+    if (target == xaSTRING || target == xaTEXT || target == xaUTF8_STRING)
+        return CLIPBOARD_MIME_TEXT;
 
-    if (dixLookupProperty(&prop, pScreenPtr->root, target, serverClient, DixReadAccess) != Success)
-        return;
+    for (int i = 0; i < CLIPBOARD_MIME_COUNT; i++)
+        if (lorieMimeAtoms[i] == target)
+            return i;
 
-    log(DEBUG, "Selection notification for CLIPBOARD (target %s, type %s)\n", NameForAtom(target), NameForAtom(prop->type));
+    return -1;
+}
 
-    if (target == xaTARGETS && prop->type == XA_ATOM && prop->format == 32) {
-        if (lorieHasAtom(xaUTF8_STRING, (const Atom*)prop->data, prop->size))
-            lorieSelectionRequest(xaCLIPBOARD, xaUTF8_STRING);
-        else if (lorieHasAtom(xaSTRING, (const Atom*)prop->data, prop->size))
-            lorieSelectionRequest(xaCLIPBOARD, xaSTRING);
-    } else if (target == xaSTRING && prop->type == xaSTRING && prop->format == 8) {
-        if (prop->format != 8 || prop->type != xaSTRING)
-            return;
+/* Announcement waits for text only while it is fetched, if owner refused it or sent something unusable, the rest is announced anyway */
+static void lorieTextFetchFinished(Atom target) {
+    if (pendingMimes && lorieMimeForTarget(target) == CLIPBOARD_MIME_TEXT) {
+        log(DEBUG, "Failed to fetch clipboard text, announcing clipboard without it\n");
+        lorieAnnounceClipboard(pendingMimes, 0);
+        sentMimes = pendingMimes;
+        sentHash = 0;
+        pendingMimes = 0;
+    }
+}
 
-        char filtered[prop->size + 1], utf8[(prop->size + 1) * 2];
-        memset(filtered, 0, sizeof(filtered));
-        memset(utf8, 0, sizeof(utf8));
+static void lorieSendSelection(Atom target, Atom type, int format, const char* data, size_t size) {
+    int mime = lorieMimeForTarget(target);
+
+    if (target == xaTARGETS && type == XA_ATOM && format == 32) {
+        uint32_t mimes = 0;
+
+        lorieTextTarget = None;
+        if (lorieHasAtom(xaUTF8_STRING, (const Atom*) data, size))
+            lorieTextTarget = xaUTF8_STRING;
+        else if (lorieHasAtom(xaSTRING, (const Atom*) data, size))
+            lorieTextTarget = xaSTRING;
+
+        for (int i = 0; i < CLIPBOARD_MIME_COUNT; i++)
+            if (lorieHasAtom(lorieMimeAtoms[i], (const Atom*) data, size) || (i == CLIPBOARD_MIME_TEXT && lorieTextTarget))
+                mimes |= 1 << i;
+
+        /* Text is sent right away with announcement, other types are fetched when some Android app asks for them */
+        pendingMimes = 0;
+        if (lorieTextTarget && lorieSelectionRequest(xaCLIPBOARD, lorieTextTarget))
+            pendingMimes = mimes;
+        else if (mimes) {
+            lorieAnnounceClipboard(mimes, 0);
+            sentMimes = mimes;
+            sentHash = 0;
+        }
+    } else if (target == xaSTRING && type == xaSTRING && format == 8) {
+        char *filtered = calloc(1, size + 1), *utf8 = calloc(2, size + 1);
+        if (filtered == NULL || utf8 == NULL) {
+            free(filtered);
+            free(utf8);
+            return;
+        }
 
-        lorieConvertLF(prop->data,  filtered, prop->size);
+        lorieConvertLF(data,  filtered, size);
         lorieLatin1ToUTF8((unsigned char*) utf8, (unsigned char*) filtered);
-        log(DEBUG, "Sending clipboard to clients (%zu bytes)\n", strlen(utf8));
-        lorieSendClipboardData(utf8);
-    } else if (target == xaUTF8_STRING && prop->type == xaUTF8_STRING && prop->format == 8) {
-        char filtered[prop->size + 1];
+        lorieSendText(utf8, strlen(utf8));
+        free(filtered);
+        free(utf8);
+    } else if (target == xaUTF8_STRING && type == xaUTF8_STRING && format == 8) {
+        char *filtered;
 
-        if (!lorieCheckUTF8(prop->data, prop->size)) {
+        if (!lorieCheckUTF8((const unsigned char*) data, size)) {
             dprintf(2, "Invalid UTF-8 sequence in clipboard\n");
             return;
         }
 
-        memset(filtered, 0, prop->size + 1);
-        lorieConvertLF(prop->data, filtered, prop->size);
+        filtered = calloc(1, size + 1);
+        if (filtered == NULL)
+            return;
+
+        lorieConvertLF(data, filtered, size);
+        lorieSendText(filtered, strlen(filtered));
+        free(filtered);
+    } else if (mime > CLIPBOARD_MIME_TEXT && format == 8) {
+        log(DEBUG, "Sending %s clipboard to clients (%zu bytes)\n", lorieMimeNames[mime], size);
+        lorieSendClipboardData(mime, data, size);
+    }
+}
+
+static void lorieHandleSelection(Atom target) {
+    PropertyPtr prop;
+    if (target != xaTARGETS && lorieMimeForTarget(target) < 0)
+        return;
+
+    if (dixLookupProperty(&prop, pScreenPtr->root, target, serverClient, DixReadAccess) != Success) {
+        lorieTextFetchFinished(target);
+        return;
+    }
+
+    log(DEBUG, "Selection notification for CLIPBOARD (target %s, type %s)\n", NameForAtom(target), NameForAtom(prop->type));
+
+    if (prop->type == xaINCR) {
+        /* Deleting the property tells selection owner to start sending chunks */
+        free(lorieIncoming.data);
+        lorieIncoming.data = NULL;
+        lorieIncoming.size = 0;
+        lorieIncoming.property = target;
+        DeleteProperty(serverClient, pScreenPtr->root, target);
+        return;
+    }
+
+    lorieSendSelection(target, prop->type, prop->format, prop->data, prop->size);
+    lorieTextFetchFinished(target);
+}
+
+static Bool lorieReceiveIncrChunk(__unused ClientPtr pClient, __unused void *closure) {
+    PropertyPtr prop;
+    size_t size;
+    Atom property = lorieIncoming.property;
+
+    if (property == None || dixLookupProperty(&prop, pScreenPtr->root, property, serverClient, DixReadAccess) != Success)
+        return TRUE;
+
+    size = prop->size * (prop->format / 8);
+    if (size == 0) {
+        /* Zero-length chunk marks the end of transfer */
+        log(DEBUG, "INCR transfer of %zu bytes is finished", lorieIncoming.size);
+        lorieIncoming.property = None;
+        lorieSendSelection(property, prop->type, prop->format, lorieIncoming.data ?: "", lorieIncoming.size / (prop->format / 8 ?: 1));
+        lorieTextFetchFinished(property);
+        free(lorieIncoming.data);
+        lorieIncoming.data = NULL;
+        lorieIncoming.size = 0;
+    } else {
+        char* data = lorieIncoming.size + size <= CLIPBOARD_MAX_SIZE ? realloc(lorieIncoming.data, lorieIncoming.size + size + 1) : NULL;
+        if (data == NULL) {
+            log(ERROR, "Failed to receive clipboard content with INCR, dropping it");
+            free(lorieIncoming.data);
+            lorieIncoming.data = NULL;
+            lorieIncoming.size = 0;
+            lorieIncoming.property = None;
+            lorieTextFetchFinished(property);
+            return TRUE;
+        }
 
-        log(DEBUG, "Sending clipboard to clients (%zu bytes)\n", strlen(filtered));
-        lorieSendClipboardData(filtered);
+        memcpy(data + lorieIncoming.size, prop->data, size);
+        lorieIncoming.data = data;
+        lorieIncoming.size += size;
+        lorieIncoming.data[lorieIncoming.size] = 0;
     }
+
+    DeleteProperty(serverClient, pScreenPtr->root, property);
+    return TRUE;
 }
 
 static int lorieProcSendEvent(ClientPtr client) {
@@ -279,8 +458,13 @@ static int lorieProcSendEvent(ClientPtr client) {
     __typeof__(stuff->event.u.selectionNotify)* e = &stuff->event.u.selectionNotify;
 
     if (clipboardEnabled && e->requestor == pScreenPtr->root->drawable.id &&
-        stuff->event.u.u.type == SelectionNotify && e->selection == xaCLIPBOARD && e->target == e->property)
-        lorieHandleSelection(e->target);
+        stuff->event.u.u.type == SelectionNotify && e->selection == xaCLIPBOARD) {
+        if (e->target == e->property)
+            lorieHandleSelection(e->target);
+        else if (e->property == None)
+            /* Owner refused the conversion */
+            lorieTextFetchFinished(e->target);
+    }
 
     return origProcSendEvent(client);
 }
@@ -292,11 +476,119 @@ static void lorieSelectionCallback(__unused CallbackListPtr *callbacks, __unused
         lorieSelectionRequest(xaCLIPBOARD, xaTARGETS);
 }
 
+void lorieHandleClipboardRequest(int mime) {
+    Atom target = mime == CLIPBOARD_MIME_TEXT ? lorieTextTarget : lorieMimeAtoms[mime];
+
+    /* Android side must not wait for content nobody is going to send */
+    if (target == None || !lorieSelectionRequest(xaCLIPBOARD, target))
+        lorieSendClipboardData(mime, "", 0);
+}
+
 /* end functions related to clipboard receiving */
 
 /* functions related to clipboard announcing and sending */
 
-static int lorieConvertSelection(ClientPtr client, Atom selection, Atom target, Atom property, Window requestor, CARD32 time, const char* data) {
+static Bool lorieSendIncrChunks(__unused ClientPtr pClient, __unused void *closure) {
+    struct LorieIncrTransfer **pTransfer = &lorieIncrTransferHead;
+
+    while (*pTransfer != NULL) {
+        struct LorieIncrTransfer *transfer = *pTransfer;
+        size_t len = min(transfer->size - transfer->offset, LORIE_INCR_CHUNK_SIZE);
+        WindowPtr pWin;
+
+        if (!transfer->pending) {
+            pTransfer = &transfer->next;
+            continue;
+        }
+
+        transfer->pending = FALSE;
+
+        /* Zero-length chunk marks the end of transfer */
+        if (dixLookupWindow(&pWin, transfer->requestor, serverClient, DixSetAttrAccess) != Success ||
+            dixChangeWindowProperty(serverClient, pWin, transfer->property, transfer->type, 8, PropModeReplace,
+                                    len, transfer->data + transfer->offset, TRUE) != Success || len == 0) {
+            *pTransfer = transfer->next;
+            free(transfer->data);
+            free(transfer);
+            continue;
+        }
+
+        transfer->offset += len;
+        pTransfer = &transfer->next;
+    }
+
+    return TRUE;
+}
+
+static void loriePropertyCallback(__unused CallbackListPtr *callbacks, __unused void * data, void * args) {
+    PropertyStateRec *rec = (PropertyStateRec *) args;
+    struct LorieIncrTransfer *transfer;
+
+    if (rec->state == PropertyNewValue && lorieIncoming.property != None &&
+        rec->win == pScreenPtr->root && rec->prop->propertyName == lorieIncoming.property) {
+        /* Selection owner sent the next chunk */
+        QueueWorkProc(lorieReceiveIncrChunk, NULL, NULL);
+        return;
+    }
+
+    if (rec->state != PropertyDelete)
+        return;
+
+    /* Requestor deleted the property, so it is ready for the next chunk. Property can not be changed right here
+     * because PropertyNotify for the new value would be delivered before the one for deletion. */
+    for (transfer = lorieIncrTransferHead; transfer != NULL; transfer = transfer->next) {
+        if (transfer->requestor == rec->win->drawable.id && transfer->property == rec->prop->propertyName && !transfer->pending) {
+            transfer->pending = TRUE;
+            QueueWorkProc(lorieSendIncrChunks, NULL, NULL);
+        }
+    }
+}
+
+static int lorieStartIncrTransfer(WindowPtr pWin, Atom property, Atom type, const char* data, size_t size) {
+    struct LorieIncrTransfer **pTransfer = &lorieIncrTransferHead, *transfer;
+    CARD32 lowerBound = size;
+    WindowPtr pRequestor;
+    int rc;
+
+    /* Drop transfers abandoned by requestors and the one this transfer replaces */
+    while (*pTransfer != NULL) {
+        transfer = *pTransfer;
+        if ((transfer->requestor == pWin->drawable.id && transfer->property == property) ||
+            dixLookupWindow(&pRequestor, transfer->requestor, serverClient, DixGetAttrAccess) != Success) {
+            *pTransfer = transfer->next;
+            free(transfer->data);
+            free(transfer);
+        } else
+            pTransfer = &transfer->next;
+    }
+
+    transfer = calloc(1, sizeof(struct LorieIncrTransfer));
+    if (transfer == NULL || (transfer->data = malloc(size)) == NULL) {
+        free(transfer);
+        return BadAlloc;
+    }
+
+    rc = dixChangeWindowProperty(serverClient, pWin, property, xaINCR, 32, PropModeReplace, 1, &lowerBound, TRUE);
+    if (rc != Success) {
+        free(transfer->data);
+        free(transfer);
+        return rc;
+    }
+
+    log(DEBUG, "Starting INCR transfer of %zu bytes", size);
+
+    memcpy(transfer->data, data, size);
+    transfer->requestor = pWin->drawable.id;
+    transfer->property = property;
+    transfer->type = type;
+    transfer->size = size;
+    transfer->next = lorieIncrTransferHead;
+    lorieIncrTransferHead = transfer;
+
+    return Success;
+}
+
+static int lorieConvertSelection(ClientPtr client, Atom selection, Atom target, Atom property, Window requestor, CARD32 time, const char* data, size_t dataSize) {
     Selection *pSel;
     WindowPtr pWin;
     int rc;
@@ -332,13 +624,23 @@ static int lorieConvertSelection(ClientPtr client, Atom selection, Atom target,
     /* FIXME: MULTIPLE target */
 
     if (target == xaTARGETS) {
-        Atom targets[] = { xaTARGETS, xaTIMESTAMP,
-                           xaSTRING, xaTEXT, xaUTF8_STRING };
+        Atom targets[5 + CLIPBOARD_MIME_COUNT] = { xaTARGETS, xaTIMESTAMP };
+        int count = 2;
+
+        for (int i = 0; i < CLIPBOARD_MIME_COUNT; i++) {
+            if (!(announcedMimes & (1 << i)))
+                continue;
+
+            if (i == CLIPBOARD_MIME_TEXT) {
+                targets[count++] = xaSTRING;
+                targets[count++] = xaTEXT;
+            }
+            targets[count++] = lorieMimeAtoms[i];
+        }
 
         rc = dixChangeWindowProperty(serverClient, pWin, realProperty,
                                      XA_ATOM, 32, PropModeReplace,
-                                     sizeof(targets)/sizeof(targets[0]),
-                                     targets, TRUE);
+                                     count, targets, TRUE);
         if (rc != Success)
             return rc;
     } else if (target == xaTIMESTAMP) {
@@ -349,13 +651,19 @@ static int lorieConvertSelection(ClientPtr client, Atom selection, Atom target,
         if (rc != Success)
             return rc;
     } else {
+        int mime = lorieMimeForTarget(target);
+
         if (data == NULL) {
             struct LorieDataTarget* ldt;
+            Bool requested = FALSE;
 
-            if ((target != xaSTRING) && (target != xaTEXT) &&
-                (target != xaUTF8_STRING))
+            if (mime < 0 || !(announcedMimes & (1 << mime)))
                 return BadMatch;
 
+            /* Content of every type is fetched from Android side only once */
+            for (ldt = lorieDataTargetHead; ldt != NULL; ldt = ldt->next)
+                requested |= lorieMimeForTarget(ldt->target) == mime;
+
             ldt = calloc(1, sizeof(struct LorieDataTarget));
             if (ldt == NULL)
                 return BadAlloc;
@@ -370,33 +678,50 @@ static int lorieConvertSelection(ClientPtr client, Atom selection, Atom target,
             ldt->next = lorieDataTargetHead;
             lorieDataTargetHead = ldt;
 
-            log(DEBUG, "Requesting clipboard data from client");
-            lorieRequestClipboard();
+            if (!requested) {
+                log(DEBUG, "Requesting %s clipboard data from client", lorieMimeNames[mime]);
+                lorieRequestClipboard(mime);
+            }
 
             return Success;
         } else {
-            if ((target == xaSTRING) || (target == xaTEXT)) {
-                const char* latin1 = lorieUtf8ToLatin1(data);
-                if (latin1 == NULL)
-                    return BadAlloc;
-
-                rc = dixChangeWindowProperty(serverClient, pWin, realProperty,
-                                             XA_STRING, 8, PropModeReplace,
-                                             strlen(latin1), latin1, TRUE);
-
-                free((void*) latin1);
+            const char* bytes;
+            Atom type;
+            size_t size;
 
-                if (rc != Success)
-                    return rc;
+            if ((target == xaSTRING) || (target == xaTEXT)) {
+                if (cachedLatin1.data == NULL) {
+                    cachedLatin1.data = (char*) lorieUtf8ToLatin1(data);
+                    if (cachedLatin1.data == NULL)
+                        return BadAlloc;
+                    cachedLatin1.size = strlen(cachedLatin1.data);
+                }
+
+                bytes = cachedLatin1.data;
+                size = cachedLatin1.size;
+                type = XA_STRING;
             } else if (target == xaUTF8_STRING) {
-                rc = dixChangeWindowProperty(serverClient, pWin, realProperty,
-                                             xaUTF8_STRING, 8, PropModeReplace,
-                                             strlen(data), data, TRUE);
-                if (rc != Success)
-                    return rc;
+                bytes = data;
+                size = dataSize;
+                type = xaUTF8_STRING;
+            } else if (mime > CLIPBOARD_MIME_TEXT && dataSize > 0) {
+                /* Android side sends empty content if it failed to get it */
+                bytes = data;
+                size = dataSize;
+                type = target;
             } else {
                 return BadMatch;
             }
+
+            if (size > LORIE_INCR_CHUNK_SIZE)
+                rc = lorieStartIncrTransfer(pWin, realProperty, type, bytes, size);
+            else
+                rc = dixChangeWindowProperty(serverClient, pWin, realProperty,
+                                             type, 8, PropModeReplace,
+                                             size, bytes, TRUE);
+
+            if (rc != Success)
+                return rc;
         }
     }
 
@@ -433,12 +758,15 @@ static int lorieProcConvertSelection(ClientPtr client) {
     /* Do we own this selection? */
     rc = dixLookupSelection(&pSel, stuff->selection, client, DixReadAccess);
     if (rc == Success && pSel->client == serverClient && pSel->window == pScreenPtr->root->drawable.id) {
-        /* cachedData will be NULL for the first request, but can then be
-         * reused once we've gotten the data once from the client */
+        int mime = lorieMimeForTarget(stuff->target);
+
+        /* cachedData will be NULL for the first request of every type, but can
+         * then be reused once we've gotten the data once from the client */
         rc = lorieConvertSelection(client, stuff->selection,
                                    stuff->target, stuff->property,
                                    stuff->requestor, stuff->time,
-                                   cachedData);
+                                   mime >= 0 ? cachedData[mime].data : NULL,
+                                   mime >= 0 ? cachedData[mime].size : 0);
         if (rc != Success) {
             xEvent event;
 
@@ -509,13 +837,44 @@ static int lorieOwnSelection(Atom selection) {
     return Success;
 }
 
-void lorieHandleClipboardAnnounce(void) {
-    // The data has changed in some way, so whatever is in our cache is now stale
-    free((void*) cachedData);
-    cachedData = NULL;
+static void lorieDropCachedData(int mime) {
+    free(cachedData[mime].data);
+    cachedData[mime].data = NULL;
+    cachedData[mime].size = 0;
 
+    if (mime == CLIPBOARD_MIME_TEXT) {
+        free(cachedLatin1.data);
+        cachedLatin1.data = NULL;
+        cachedLatin1.size = 0;
+    }
+}
+
+void lorieHandleClipboardAnnounce(uint32_t mimes, uint64_t hash) {
+    Selection *pSel;
+    ClientPtr owner = dixLookupSelection(&pSel, xaCLIPBOARD, serverClient, DixGetAttrAccess) == Success ? pSel->client : NullClient;
     int rc;
 
+    mimes = mimes ?: 1 << CLIPBOARD_MIME_TEXT;
+
+    /* Android side announces the same content again (i.e. after focus change) or gives back what it got from X */
+    if (hash && ((owner == serverClient && mimes == announcedMimes && hash == announcedHash) ||
+                 (owner != NullClient && owner != serverClient && mimes == sentMimes && hash == sentHash))) {
+        log(DEBUG, "Remote clipboard content is unchanged, ignoring announcement");
+        return;
+    }
+
+    // The data has changed in some way, so whatever is in our cache is now stale.
+    // Text is kept if it is the same, so it will not be requested again.
+    for (int i = 0; i < CLIPBOARD_MIME_COUNT; i++)
+        if (i != CLIPBOARD_MIME_TEXT || !hash || hash != announcedHash)
+            lorieDropCachedData(i);
+    announcedMimes = mimes;
+    announcedHash = hash;
+
+    /* Next X selection must be sent to Android side even if it is the same as before */
+    sentMimes = 0;
+    sentHash = 0;
+
     log(DEBUG, "Remote clipboard announced, grabbing local ownership");
 
     rc = lorieOwnSelection(xaCLIPBOARD);
@@ -523,38 +882,49 @@ void lorieHandleClipboardAnnounce(void) {
         log(ERROR, "Could not set CLIPBOARD selection");
 }
 
-void lorieHandleClipboardData(const char* data) {
-    struct LorieDataTarget* next;
+void lorieHandleClipboardData(int mime, char* data, size_t size) {
+    struct LorieDataTarget **pLdt = &lorieDataTargetHead, *ldt;
+
+    if (mime < 0 || mime >= CLIPBOARD_MIME_COUNT) {
+        free(data);
+        return;
+    }
 
-    log(DEBUG, "Got remote clipboard data, sending to X11 clients");
+    log(DEBUG, "Got remote %s clipboard data, sending to X11 clients", lorieMimeNames[mime]);
 
-    free((void*) cachedData);
-    cachedData = data;
+    lorieDropCachedData(mime);
+    cachedData[mime].data = data;
+    /* Text is NUL-terminated and is sent to X clients up to the first NUL */
+    cachedData[mime].size = mime == CLIPBOARD_MIME_TEXT ? strlen(data) : size;
 
-    while (lorieDataTargetHead != NULL) {
+    while ((ldt = *pLdt) != NULL) {
         int rc;
         xEvent event;
 
-        rc = lorieConvertSelection(lorieDataTargetHead->client,
-                                   lorieDataTargetHead->selection,
-                                   lorieDataTargetHead->target,
-                                   lorieDataTargetHead->property,
-                                   lorieDataTargetHead->requestor,
-                                   lorieDataTargetHead->time,
-                                 cachedData);
+        if (lorieMimeForTarget(ldt->target) != mime) {
+            pLdt = &ldt->next;
+            continue;
+        }
+
+        rc = lorieConvertSelection(ldt->client,
+                                   ldt->selection,
+                                   ldt->target,
+                                   ldt->property,
+                                   ldt->requestor,
+                                   ldt->time,
+                                   data, size);
         if (rc != Success) {
             event.u.u.type = SelectionNotify;
-            event.u.selectionNotify.time = lorieDataTargetHead->time;
-            event.u.selectionNotify.requestor = lorieDataTargetHead->requestor;
-            event.u.selectionNotify.selection = lorieDataTargetHead->selection;
-            event.u.selectionNotify.target = lorieDataTargetHead->target;
+            event.u.selectionNotify.time = ldt->time;
+            event.u.selectionNotify.requestor = ldt->requestor;
+            event.u.selectionNotify.selection = ldt->selection;
+            event.u.selectionNotify.target = ldt->target;
             event.u.selectionNotify.property = None;
-            WriteEventsToClient(lorieDataTargetHead->client, 1, &event);
+            WriteEventsToClient(ldt->client, 1, &event);
         }
 
-        next = lorieDataTargetHead->next;
-        free(lorieDataTargetHead);
-        lorieDataTargetHead = next;
+        *pLdt = ldt->next;
+        free(ldt);
     }
 }
 
@@ -562,7 +932,9 @@ void lorieHandleClipboardData(const char* data) {
 
 void lorieInitClipboard(void) {
 #define ATOM(name) xa##name = MakeAtom(#name, strlen(#name), TRUE)
-    ATOM(TIMESTAMP); ATOM(TEXT); ATOM(CLIPBOARD); ATOM(TARGETS); ATOM(STRING); ATOM(UTF8_STRING);
+    ATOM(TIMESTAMP); ATOM(TEXT); ATOM(CLIPBOARD); ATOM(TARGETS); ATOM(STRING); ATOM(UTF8_STRING); ATOM(INCR);
+    for (int i = 0; i < CLIPBOARD_MIME_COUNT; i++)
+        lorieMimeAtoms[i] = MakeAtom(lorieMimeNames[i], strlen(lorieMimeNames[i]), TRUE);
 
     if (!origProcConvertSelection) {
         origProcConvertSelection = ProcVector[X_ConvertSelection];
@@ -576,4 +948,7 @@ void lorieInitClipboard(void) {
 
     if (!AddCallback(&SelectionCallback, lorieSelectionCallback, NULL))
         FatalError("Adding SelectionCallback failed\n");
+
+    if (!AddCallback(&PropertyStateCallback, loriePropertyCallback, NULL))
+        FatalError("Adding PropertyStateCallback failed\n");
 }
\ No newline at end of file
@@ -9,12 +9,16 @@
 #include <android/hardware_buffer.h>
 #include <sys/stat.h>
 #include <errno.h>
+#include <dlfcn.h>
+#include <drm_fourcc.h>
 #include "screenint.h"
 #include "lorie.h"
 #include "renderer.h"
 
 #define log(prio, ...) __android_log_print(ANDROID_LOG_ ## prio, "LorieNative", __VA_ARGS__)
 
+#include "dri3formats.h"
+
 /*
  * Design is pretty simple.
  * We need somehow attach Android's HardwareBuffers and turnip's textures to X11 pixmaps.
@@ -49,7 +53,7 @@
 static DevPrivateKeyRec lorieGCPrivateKey;
 static DevPrivateKeyRec lorieScrPrivateKey;
 static DevPrivateKeyRec lorieAHBPixPrivateKey;
-static DevPrivateKeyRec lorieMmappedPixPrivateKey;
+static DevPrivateKeyRec lorieImportPixPrivateKey;
 
 typedef struct {
     const GCOps *ops;
@@ -63,8 +67,13 @@ typedef struct {
 
 typedef struct {
     AHardwareBuffer* buffer;
+    Bool yuv;
+    uint32_t *converted; // RGB copy of YUV buffer, fb can not read YUV directly
 } LorieAHBPixPrivRec, *LorieAHBPixPrivPtr;
 
+// Available since Android 10, YUV buffers are not accepted without it.
+static int (*AHardwareBuffer_lockPlanes_ptr)(AHardwareBuffer*, uint64_t, int32_t, const ARect*, AHardwareBuffer_Planes*) = NULL;
+
 static Bool FalseNoop() { return FALSE; }
 
 #define lorieGCPriv(pGC) LorieGCPrivPtr pGCPriv = dixLookupPrivate(&(pGC)->devPrivates, &lorieGCPrivateKey)
@@ -108,6 +117,67 @@ static Bool FalseNoop() { return FALSE; }
 static const GCOps lorieGCOps;
 static const GCFuncs lorieGCFuncs;
 
+#define clamp(v) ((v) < 0 ? 0 : (v) > 255 ? 255 : (v))
+
+/*
+ * Converts BT.601 limited range YUV 4:2:0 to X RGB. Chroma planes may be interleaved (NV12, NV21) or not (I420, YV12),
+ * pixelStride of planes tells us that. Fixed-point math keeps the inner loop simple enough to be vectorized by compiler.
+ */
+static void lorieConvertYUV(const AHardwareBuffer_Planes *planes, uint32_t *dst, uint32_t dstStride, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+        const uint8_t *Y = (uint8_t*) planes->planes[0].data + y * planes->planes[0].rowStride;
+        const uint8_t *U = (uint8_t*) planes->planes[1].data + (y / 2) * planes->planes[1].rowStride;
+        const uint8_t *V = (uint8_t*) planes->planes[2].data + (y / 2) * planes->planes[2].rowStride;
+        uint32_t *line = dst + y * dstStride;
+        uint32_t ys = planes->planes[0].pixelStride, us = planes->planes[1].pixelStride, vs = planes->planes[2].pixelStride;
+
+        for (int x = x0; x < x1; x++) {
+            int c = 298 * (Y[x * ys] - 16) + 128, d = U[(x / 2) * us] - 128, e = V[(x / 2) * vs] - 128;
+            int r = (c + 409 * e) >> 8, g = (c - 100 * d - 208 * e) >> 8, b = (c + 516 * d) >> 8;
+            line[x] = 0xFF000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+        }
+    }
+}
+
+#undef clamp
+
+// Converts the given area of YUV buffer to RGB and makes pixmap point to converted data.
+// Returns FALSE if pixmap could not be converted, it is left without data then and must not be accessed.
+static Bool lorieConvertYUVPixmap(PixmapPtr pixmap, LorieAHBPixPrivPtr priv, int x, int y, int w, int h) {
+    AHardwareBuffer_Planes planes = {0};
+    ARect rect = {
+        .left = max(x, 0),
+        .top = max(y, 0),
+        .right = min(x + w, pixmap->drawable.width),
+        .bottom = min(y + h, pixmap->drawable.height),
+    };
+    int error;
+
+    if (!priv->converted && !(priv->converted = calloc(pixmap->drawable.width * pixmap->drawable.height, sizeof(uint32_t)))) {
+        log(ERROR, "DRI3: failed to allocate buffer for YUV conversion");
+        return FALSE;
+    }
+
+    if (rect.left < rect.right && rect.top < rect.bottom) {
+        if ((error = AHardwareBuffer_lockPlanes_ptr(priv->buffer, AHARDWAREBUFFER_USAGE_CPU_READ_OFTEN, -1, &rect, &planes)) != 0) {
+            log(ERROR, "DRI3: AHardwareBuffer_lockPlanes failed: %d", error);
+            return FALSE;
+        }
+
+        if (planes.planeCount != 3) {
+            log(ERROR, "DRI3: YUV AHardwareBuffer has %d planes instead of 3", planes.planeCount);
+            AHardwareBuffer_unlock(priv->buffer, NULL);
+            return FALSE;
+        }
+
+        lorieConvertYUV(&planes, priv->converted, pixmap->drawable.width, rect.left, rect.top, rect.right, rect.bottom);
+        AHardwareBuffer_unlock(priv->buffer, NULL);
+    }
+
+    pixmap->drawable.pScreen->ModifyPixmapHeader(pixmap, 0, 0, 0, 0, 0, priv->converted);
+    return TRUE;
+}
+
 static void lorieValidateGC(GCPtr pGC, unsigned long stateChanges, DrawablePtr pDrawable) {
     LORIE_GC_FUNC_PROLOGUE(pGC)
     (*pGC->funcs->ValidateGC) (pGC, stateChanges, pDrawable);
@@ -189,24 +259,29 @@ static RegionPtr lorieCopyArea(DrawablePtr pSrc, DrawablePtr pDst, GCPtr pGC, in
     loriePixFromDrawable(pDst, 1);
     loriePixPriv(pDst, 1);
     RegionPtr r = NULL;
-    Bool wasLocked = TRUE;
+    Bool wasLocked = TRUE, ready = TRUE;
     if (pPixPriv0 && !pPixPriv1) {
         wasLocked = pSrcPix0->devPrivate.ptr != NULL;
-        if (!wasLocked) {
+        if (!wasLocked && pPixPriv0->yuv)
+            ready = lorieConvertYUVPixmap(pSrcPix0, pPixPriv0, srcx, srcy, w, h);
+        else if (!wasLocked) {
             void *addr = NULL;
             int error;
             if ((error = AHardwareBuffer_lock(pPixPriv0->buffer, AHARDWAREBUFFER_USAGE_CPU_READ_OFTEN, -1, NULL, &addr)) != 0)
                 log(ERROR, "DRI3: AHardwareBuffer_lock failed: %d", error);
             if (addr)
                 pSrc->pScreen->ModifyPixmapHeader(pSrcPix0, 0, 0, 0, 0, 0, addr);
+            ready = addr != NULL;
         }
     }
 
-    if (!pPixPriv1)
+    // fb would dereference NULL data of pixmap which could not be locked or converted.
+    if (!pPixPriv1 && ready)
         r = (*pGC->ops->CopyArea) (pSrc, pDst, pGC, srcx, srcy, w, h, dstx, dsty);
 
     if (!wasLocked) {
-        AHardwareBuffer_unlock(pPixPriv0->buffer, NULL);
+        if (!pPixPriv0->yuv && ready)
+            AHardwareBuffer_unlock(pPixPriv0->buffer, NULL);
         pSrcPix0->devPrivate.ptr = NULL;
     }
     LORIE_GC_OP_EPILOGUE(pGC)
@@ -399,149 +474,283 @@ lorieCreateGC(GCPtr pGC) {
     return ret;
 }
 
+/*
+ * Imported buffers are cached, so swapchains cycling through the same few buffers do not mmap or import them on
+ * every PixmapFromBuffers request. Raw buffers are identified by inode, offset and size of mapping (only for fds
+ * with unique inodes, ashmem and anon inodes share one), AHardwareBuffers by their system-wide id.
+ * Imports are refcounted by pixmaps using them, unused ones are kept for a while and evicted in LRU order.
+ */
+#define LORIE_IMPORT_CACHE_SIZE 16 // Unused imports kept in cache
+#define LORIE_IMPORT_IDLE_TIMEOUT 1000 // ms
+
+typedef struct LorieImport {
+    CARD64 modifier;
+    Bool cached;
+    dev_t dev;
+    ino_t ino;
+    CARD32 offset, stride, height;
+    uint64_t id;
+    void *addr;
+    size_t size;
+    AHardwareBuffer *buffer;
+    AHardwareBuffer_Desc desc;
+    CARD8 depth;
+    int refcnt;
+    CARD32 idleSince;
+    struct LorieImport *next;
+} LorieImportRec, *LorieImportPtr;
+
+static LorieImportPtr lorieImports = NULL;
+static OsTimerPtr lorieImportsTimer = NULL;
+static int (*AHardwareBuffer_getId_ptr)(const AHardwareBuffer*, uint64_t*) = NULL;
+
+static void lorieImportDestroy(LorieImportPtr import) {
+    if (import->addr)
+        munmap(import->addr, import->size);
+    if (import->buffer)
+        AHardwareBuffer_release(import->buffer);
+    free(import);
+}
+
+// Drops unused imports which are too old or do not fit cache, returns time to the next check or 0 if there is nothing to wait for.
+static CARD32 lorieImportsEvict(void) {
+    CARD32 now = GetTimeInMillis(), next = 0;
+    int idle = 0;
+
+    // Newest imports are at the head of list.
+    for (LorieImportPtr *pImport = &lorieImports; *pImport;) {
+        LorieImportPtr import = *pImport;
+        if (import->refcnt == 0 && (++idle > LORIE_IMPORT_CACHE_SIZE || now - import->idleSince >= LORIE_IMPORT_IDLE_TIMEOUT)) {
+            *pImport = import->next;
+            lorieImportDestroy(import);
+            continue;
+        }
+
+        if (import->refcnt == 0 && (!next || LORIE_IMPORT_IDLE_TIMEOUT - (now - import->idleSince) < next))
+            next = LORIE_IMPORT_IDLE_TIMEOUT - (now - import->idleSince);
+        pImport = &import->next;
+    }
+
+    return next;
+}
+
+static CARD32 lorieImportsTimerCallback(unused OsTimerPtr timer, unused CARD32 time, unused void *arg) {
+    return lorieImportsEvict();
+}
+
+static LorieImportPtr lorieImportLookup(Bool (*matches)(LorieImportPtr, const void*), const void *key) {
+    for (LorieImportPtr *pImport = &lorieImports; *pImport; pImport = &(*pImport)->next) {
+        LorieImportPtr import = *pImport;
+        if (matches(import, key)) {
+            // Move it to the head of list.
+            *pImport = import->next;
+            import->next = lorieImports;
+            lorieImports = import;
+            import->refcnt++;
+            return import;
+        }
+    }
+
+    return NULL;
+}
+
+static void lorieImportAdd(LorieImportPtr import) {
+    import->refcnt = 1;
+    if (import->cached) {
+        import->next = lorieImports;
+        lorieImports = import;
+    }
+}
+
+static void lorieImportRelease(LorieImportPtr import) {
+    if (--import->refcnt > 0)
+        return;
+
+    if (!import->cached) {
+        lorieImportDestroy(import);
+        return;
+    }
+
+    import->idleSince = GetTimeInMillis();
+    lorieImportsTimer = TimerSet(lorieImportsTimer, 0, lorieImportsEvict() ?: LORIE_IMPORT_IDLE_TIMEOUT, lorieImportsTimerCallback, NULL);
+}
+
+static Bool lorieRawImportMatches(LorieImportPtr import, const void *key) {
+    const LorieImportRec *k = key;
+    return import->modifier == k->modifier && import->dev == k->dev && import->ino == k->ino
+            && import->offset == k->offset && import->stride == k->stride && import->height == k->height;
+}
+
+static Bool lorieAHBImportMatches(LorieImportPtr import, const void *key) {
+    const LorieImportRec *k = key;
+    return import->modifier == k->modifier && import->id == k->id && import->depth == k->depth;
+}
+
 static Bool
 lorieDestroyPixmap(PixmapPtr pPixmap) {
     Bool ret;
-    void *ptr = NULL;
+    LorieImportPtr import = NULL;
     LorieAHBPixPrivPtr pPixPriv = NULL;
-    size_t size = 0;
     ScreenPtr pScreen = pPixmap->drawable.pScreen;
     lorieScrPriv(pScreen);
 
     if (pPixmap->refcnt == 1 && pPixmap->drawable.width && pPixmap->drawable.height) {
-        ptr = dixLookupPrivate(&pPixmap->devPrivates, &lorieMmappedPixPrivateKey);
+        import = dixLookupPrivate(&pPixmap->devPrivates, &lorieImportPixPrivateKey);
         pPixPriv = dixLookupPrivate(&pPixmap->devPrivates, &lorieAHBPixPrivateKey);
-        size = pPixmap->devKind * pPixmap->drawable.height;
     }
 
     unwrap(pScrPriv, pScreen, DestroyPixmap)
     ret = (*pScreen->DestroyPixmap) (pPixmap);
     wrap(pScrPriv, pScreen, DestroyPixmap, lorieDestroyPixmap)
 
-    if (ptr)
-        munmap(ptr, size);
+    // Buffer belongs to import.
+    if (pPixPriv)
+        free(pPixPriv->converted);
+    free(pPixPriv);
 
-    if (pPixPriv) {
-        if (pPixPriv->buffer)
-            AHardwareBuffer_release(pPixPriv->buffer);
-        free(pPixPriv);
-    }
+    if (import)
+        lorieImportRelease(import);
 
     return ret;
 }
 
 static PixmapPtr loriePixmapFromFds(ScreenPtr screen, CARD8 num_fds, const int *fds, CARD16 width, CARD16 height,
-                                    const CARD32 *strides, const CARD32 *offsets, CARD8 depth, unused CARD8 bpp, CARD64 modifier) {
-    const CARD64 AHARDWAREBUFFER_SOCKET_FD = 1255;
-    const CARD64 RAW_MMAPPABLE_FD = 1274;
+                                    const CARD32 *strides, const CARD32 *offsets, CARD8 depth, CARD8 bpp, CARD64 modifier) {
     PixmapPtr pixmap = NullPixmap;
     LorieAHBPixPrivPtr pPixPriv = NULL;
-    if (num_fds > 1) {
-        log(ERROR, "DRI3: More than 1 fd");
+    LorieImportPtr import = NULL;
+    LorieImportRec key = { .modifier = modifier, .depth = depth };
+    struct stat info;
+
+    if (!lorieCheckPixmapFromFds(num_fds, depth, bpp, modifier))
         return NULL;
-    }
 
-    if (modifier != RAW_MMAPPABLE_FD && modifier != AHARDWAREBUFFER_SOCKET_FD) {
-        log(ERROR, "DRI3: Modifier is not RAW_MMAPPABLE_FD or AHARDWAREBUFFER_SOCKET_FD");
+    if (fstat(fds[0], &info) != 0) {
+        log(ERROR, "DRI3: fstat failed: %s", strerror(errno));
         return NULL;
     }
 
     if (modifier == RAW_MMAPPABLE_FD) {
-        void *addr = mmap(NULL, strides[0] * height, PROT_READ, MAP_SHARED, fds[0], offsets[0]);
-        if (!addr || addr == MAP_FAILED) {
-            log(ERROR, "DRI3: RAW_MMAPPABLE_FD: mmap failed");
-            return NULL;
+        key.dev = info.st_dev;
+        key.ino = info.st_ino;
+        key.offset = offsets[0];
+        key.stride = strides[0];
+        key.height = height;
+        if (!S_ISREG(info.st_mode) || !(import = lorieImportLookup(lorieRawImportMatches, &key))) {
+            void *addr = mmap(NULL, strides[0] * height, PROT_READ, MAP_SHARED, fds[0], offsets[0]);
+            if (!addr || addr == MAP_FAILED) {
+                log(ERROR, "DRI3: RAW_MMAPPABLE_FD: mmap failed");
+                return NULL;
+            }
+
+            import = calloc(1, sizeof(LorieImportRec));
+            if (!import) {
+                log(ERROR, "DRI3: RAW_MMAPPABLE_FD: failed to allocate LorieImportRec");
+                munmap(addr, strides[0] * height);
+                return NULL;
+            }
+
+            *import = key;
+            import->cached = S_ISREG(info.st_mode);
+            import->addr = addr;
+            import->size = strides[0] * height;
+            lorieImportAdd(import);
         }
 
         pixmap = fbCreatePixmap(screen, 0, 0, depth, 0);
         if (!pixmap) {
             log(ERROR, "DRI3: RAW_MMAPPABLE_FD: failed to create pixmap");
-            munmap(addr, strides[0] * height);
+            lorieImportRelease(import);
             return NULL;
         }
 
-        dixSetPrivate(&pixmap->devPrivates, &lorieMmappedPixPrivateKey, addr);
-        screen->ModifyPixmapHeader(pixmap, width, height, 0, 0, strides[0], addr);
+        dixSetPrivate(&pixmap->devPrivates, &lorieImportPixPrivateKey, import);
+        screen->ModifyPixmapHeader(pixmap, width, height, 0, 0, strides[0], import->addr);
 
         return pixmap;
     } else if (modifier == AHARDWAREBUFFER_SOCKET_FD) {
-        AHardwareBuffer_Desc desc;
-        struct stat info;
+        AHardwareBuffer *buffer = NULL;
         int r;
-        if (fstat(fds[0], &info) != 0) {
-            log(ERROR, "DRI3: fstat failed: %s", strerror(errno));
-            return NULL;
-        }
 
         if (!S_ISSOCK(info.st_mode)) {
             log(ERROR, "DRI3: modifier is AHARDWAREBUFFER_SOCKET_FD but fd is not a socket");
             return NULL;
         }
 
-        pPixPriv = calloc(1, sizeof(LorieAHBPixPrivRec));
-        if (!pPixPriv) {
-            log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: failed to allocate LorieAHBPixPrivRec");
-            return NULL;
-        }
-
-        pixmap = fbCreatePixmap(screen, 0, 0, depth, 0);
-        if (!pixmap) {
-            log(ERROR, "DRI3: failed to create pixmap");
-            goto fail;
-        }
-
-        dixSetPrivate(&pixmap->devPrivates, &lorieAHBPixPrivateKey, pPixPriv);
-
         // Sending signal to other end of socket to send buffer.
+        // Client sends the buffer on every import, but it is imported only once if we already have it.
         uint8_t buf = 1;
         if (write(fds[0], &buf, 1) != 1) {
             log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: failed to write to socket: %s", strerror(errno));
-            goto fail;
+            return NULL;
         }
 
-        if ((r = AHardwareBuffer_recvHandleFromUnixSocket(fds[0], &pPixPriv->buffer)) != 0) {
+        if ((r = AHardwareBuffer_recvHandleFromUnixSocket(fds[0], &buffer)) != 0) {
             log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: failed to obtain AHardwareBuffer from socket: %d", r);
-            goto fail;
+            return NULL;
         }
 
-        if (!pPixPriv->buffer) {
+        if (!buffer) {
             log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: did not receive AHardwareSocket from buffer");
+            return NULL;
+        }
+
+        if (AHardwareBuffer_getId_ptr && AHardwareBuffer_getId_ptr(buffer, &key.id) == 0
+            && (import = lorieImportLookup(lorieAHBImportMatches, &key)))
+            AHardwareBuffer_release(buffer);
+        else {
+            AHardwareBuffer_describe(buffer, &key.desc);
+            if (!lorieCheckAHBFormat(depth, bpp, key.desc.format, AHardwareBuffer_lockPlanes_ptr != NULL)) {
+                AHardwareBuffer_release(buffer);
+                return NULL;
+            }
+
+            import = calloc(1, sizeof(LorieImportRec));
+            if (!import) {
+                log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: failed to allocate LorieImportRec");
+                AHardwareBuffer_release(buffer);
+                return NULL;
+            }
+
+            *import = key;
+            import->cached = key.id != 0;
+            import->buffer = buffer;
+            lorieImportAdd(import);
+        }
+
+        pPixPriv = calloc(1, sizeof(LorieAHBPixPrivRec));
+        if (!pPixPriv) {
+            log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: failed to allocate LorieAHBPixPrivRec");
             goto fail;
         }
 
-        AHardwareBuffer_describe(pPixPriv->buffer, &desc);
-        if (desc.format != AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM
-             && desc.format != AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM
-             && desc.format != AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM) {
-            log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: wrong format of AHardwareBuffer. Must be one of: AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM, AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM (stands for 5).");
+        pixmap = fbCreatePixmap(screen, 0, 0, depth, 0);
+        if (!pixmap) {
+            log(ERROR, "DRI3: failed to create pixmap");
             goto fail;
         }
 
+        pPixPriv->buffer = import->buffer;
+        pPixPriv->yuv = import->desc.format == AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420;
+        dixSetPrivate(&pixmap->devPrivates, &lorieAHBPixPrivateKey, pPixPriv);
+        dixSetPrivate(&pixmap->devPrivates, &lorieImportPixPrivateKey, import);
+
         pixmap->devPrivate.ptr = NULL;
-        screen->ModifyPixmapHeader(pixmap, desc.width, desc.height, 0, 0, desc.stride * 4, NULL);
+        screen->ModifyPixmapHeader(pixmap, import->desc.width, import->desc.height, 0, 0, lorieAHBPixmapStride(&import->desc, bpp), NULL);
         return pixmap;
     }
 
     fail:
-    if (pPixPriv) {
-        if (pPixPriv->buffer)
-            AHardwareBuffer_release(pPixPriv->buffer);
-        free(pPixPriv);
-    }
+    free(pPixPriv);
 
-    if (pixmap)
-        fbDestroyPixmap(pixmap);
+    if (import)
+        lorieImportRelease(import);
 
     return NULL;
 }
 
-static int lorieGetFormats(unused ScreenPtr screen, CARD32 *num_formats, CARD32 **formats) {
-    *num_formats = 0;
-    *formats = NULL;
-    return TRUE;
-}
-
-static int lorieGetModifiers(unused ScreenPtr screen, unused uint32_t format, uint32_t *num_modifiers, uint64_t **modifiers) {
+static int lorieGetDrawableModifiers(unused DrawablePtr draw, unused uint32_t format, uint32_t *num_modifiers, uint64_t **modifiers) {
+    // Drawables do not have any preferences, screen modifiers should be used.
     *num_modifiers = 0;
     *modifiers = NULL;
     return TRUE;
@@ -553,7 +762,7 @@ static dri3_screen_info_rec dri3Info = {
     .pixmap_from_fds = loriePixmapFromFds,
     .get_formats = lorieGetFormats,
     .get_modifiers = lorieGetModifiers,
-    .get_drawable_modifiers = FalseNoop
+    .get_drawable_modifiers = lorieGetDrawableModifiers
 };
 
 Bool lorieInitDri3(ScreenPtr pScreen) {
@@ -567,7 +776,7 @@ Bool lorieInitDri3(ScreenPtr pScreen) {
 
     if (!dixRegisterPrivateKey(&lorieGCPrivateKey, PRIVATE_GC, sizeof(LorieGCPrivRec))
      || !dixRegisterPrivateKey(&lorieAHBPixPrivateKey, PRIVATE_PIXMAP, 0)
-     || !dixRegisterPrivateKey(&lorieMmappedPixPrivateKey, PRIVATE_PIXMAP, 0)
+     || !dixRegisterPrivateKey(&lorieImportPixPrivateKey, PRIVATE_PIXMAP, 0)
      || !dri3_screen_init(pScreen, &dri3Info))
         return FALSE;
 
@@ -575,6 +784,10 @@ Bool lorieInitDri3(ScreenPtr pScreen) {
     if (!pScrPriv)
         return FALSE;
 
+    // Available since Android 12, buffers are not cached without it.
+    AHardwareBuffer_getId_ptr = dlsym(RTLD_DEFAULT, "AHardwareBuffer_getId");
+    AHardwareBuffer_lockPlanes_ptr = dlsym(RTLD_DEFAULT, "AHardwareBuffer_lockPlanes");
+
     wrap(pScrPriv, pScreen, CreateGC, lorieCreateGC)
     wrap(pScrPriv, pScreen, DestroyPixmap, lorieDestroyPixmap)
 
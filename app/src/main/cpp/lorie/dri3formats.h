@@ -0,0 +1,110 @@
+#pragma once
+
+/*
+ * Formats and modifiers of DRI3 imports. Everything here depends only on the table below,
+ * so it is included by dri3.c and by host tests (tests/dri3formats.c) without X server.
+ * Includer provides X types, log macro, <drm_fourcc.h> and <android/hardware_buffer.h>.
+ */
+
+/*
+ * Formats we can import, DRI3 maps depth of client's drawable to one of them.
+ * XRGB2101010 is not here because screen does not have 30-bit pixmap format.
+ * AHardwareBuffer formats matching the given depth are listed as well, buffer of any of these has the same layout
+ * from the point of view of fb, colour channels order is up to client and renderer.
+ * YUV buffers are converted to RGB on CopyArea, so video decoders can hand us their frames as is.
+ */
+static const CARD64 AHARDWAREBUFFER_SOCKET_FD = 1255;
+static const CARD64 RAW_MMAPPABLE_FD = 1274;
+static const struct {
+    CARD32 format;
+    CARD8 depth, bpp;
+    uint32_t ahbFormats[4];
+} lorieFormats[] = {
+    { DRM_FORMAT_RGB565, 16, 16, { AHARDWAREBUFFER_FORMAT_R5G6B5_UNORM } },
+    { DRM_FORMAT_XRGB8888, 24, 32, { AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM, AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM, AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420 } },
+    { DRM_FORMAT_ARGB8888, 32, 32, { AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM, AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM, AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420 } },
+};
+
+static Bool lorieIsSupportedFormat(CARD8 depth, CARD8 bpp, uint32_t ahbFormat) {
+    for (size_t i = 0; i < ARRAY_SIZE(lorieFormats); i++)
+        if (lorieFormats[i].depth == depth && lorieFormats[i].bpp == bpp)
+            for (size_t j = 0; j < ARRAY_SIZE(lorieFormats[i].ahbFormats); j++)
+                if (!ahbFormat || lorieFormats[i].ahbFormats[j] == ahbFormat)
+                    return TRUE;
+
+    return FALSE;
+}
+
+// Checks PixmapFromBuffers request before touching its fds.
+static Bool lorieCheckPixmapFromFds(CARD8 num_fds, CARD8 depth, CARD8 bpp, CARD64 modifier) {
+    if (num_fds > 1) {
+        log(ERROR, "DRI3: More than 1 fd");
+        return FALSE;
+    }
+
+    if (modifier != RAW_MMAPPABLE_FD && modifier != AHARDWAREBUFFER_SOCKET_FD) {
+        log(ERROR, "DRI3: Modifier is not RAW_MMAPPABLE_FD or AHARDWAREBUFFER_SOCKET_FD");
+        return FALSE;
+    }
+
+    if (!lorieIsSupportedFormat(depth, bpp, 0)) {
+        log(ERROR, "DRI3: Unsupported depth %d and bpp %d", depth, bpp);
+        return FALSE;
+    }
+
+    return TRUE;
+}
+
+// Checks format of received AHardwareBuffer, YUV buffers can be converted only with AHardwareBuffer_lockPlanes.
+static Bool lorieCheckAHBFormat(CARD8 depth, CARD8 bpp, uint32_t ahbFormat, Bool canLockPlanes) {
+    if (ahbFormat == AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420 && !canLockPlanes) {
+        log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: YUV AHardwareBuffers require Android 10 or newer.");
+        return FALSE;
+    }
+
+    if (!lorieIsSupportedFormat(depth, bpp, ahbFormat)) {
+        log(ERROR, "DRI3: AHARDWAREBUFFER_SOCKET_FD: wrong format of AHardwareBuffer for depth %d. Must be one of: AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM, AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM (stands for 5), AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420 for depth 24 and 32, AHARDWAREBUFFER_FORMAT_R5G6B5_UNORM for depth 16.", depth);
+        return FALSE;
+    }
+
+    return TRUE;
+}
+
+// Stride of pixmap in bytes, AHardwareBuffer reports it in pixels. YUV buffers are converted to 32 bit RGB copy.
+static CARD32 lorieAHBPixmapStride(const AHardwareBuffer_Desc *desc, CARD8 bpp) {
+    return desc->format == AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420 ? desc->width * 4 : desc->stride * bpp / 8;
+}
+
+// DRI3 takes ownership of arrays returned by these functions.
+static int lorieGetFormats(unused ScreenPtr screen, CARD32 *num_formats, CARD32 **formats) {
+    *num_formats = 0;
+    *formats = calloc(ARRAY_SIZE(lorieFormats), sizeof(CARD32));
+    if (!*formats)
+        return FALSE;
+
+    for (size_t i = 0; i < ARRAY_SIZE(lorieFormats); i++)
+        (*formats)[(*num_formats)++] = lorieFormats[i].format;
+
+    return TRUE;
+}
+
+static int lorieGetModifiers(unused ScreenPtr screen, uint32_t format, uint32_t *num_modifiers, uint64_t **modifiers) {
+    *num_modifiers = 0;
+    *modifiers = NULL;
+
+    for (size_t i = 0; i < ARRAY_SIZE(lorieFormats); i++) {
+        if (lorieFormats[i].format != format)
+            continue;
+
+        // Hardware buffers go first since they can be used by renderer directly.
+        *modifiers = calloc(2, sizeof(uint64_t));
+        if (!*modifiers)
+            return FALSE;
+
+        (*modifiers)[(*num_modifiers)++] = AHARDWAREBUFFER_SOCKET_FD;
+        (*modifiers)[(*num_modifiers)++] = RAW_MMAPPABLE_FD;
+        break;
+    }
+
+    return TRUE;
+}
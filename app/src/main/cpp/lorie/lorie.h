@@ -5,16 +5,88 @@
 #include "linux/input-event-codes.h"
 #define unused __attribute__((unused))
 
+typedef enum {
+    INPUT_HISTORY_COALESCE, // Motion events read at once are collapsed to the latest one
+    INPUT_HISTORY_REPLAY, // All timestamped samples are sent to clients
+    INPUT_HISTORY_RESAMPLE, // Timestamped samples are collapsed to one sample per frame
+} lorieInputHistoryMode;
+
+extern lorieInputHistoryMode lorieInputHistory;
+
+// Clipboard content types, index is sent with requests and data, announcements carry mask of them.
+// Must be kept in sync with LorieView.ClipboardMime.
+typedef enum {
+    CLIPBOARD_MIME_TEXT, // UTF8_STRING, STRING and TEXT targets on X server side
+    CLIPBOARD_MIME_HTML, // text/html
+    CLIPBOARD_MIME_URI_LIST, // text/uri-list
+    CLIPBOARD_MIME_PNG, // image/png
+    CLIPBOARD_MIME_COUNT,
+} lorieClipboardMime;
+#define CLIPBOARD_MAX_SIZE (64 * 1024 * 1024)
+
+// Fingerprint of clipboard text sent with announcements, 0 means content is unknown.
+#define LORIE_CLIPBOARD_HASH_INIT 0xcbf29ce484222325ULL
+static inline uint64_t lorieClipboardHashByte(uint64_t hash, uint8_t c) {
+    // FNV-1a
+    return (hash ^ c) * 0x100000001b3ULL;
+}
+
+static inline uint64_t lorieClipboardHash(const char *data, size_t size) {
+    uint64_t hash = LORIE_CLIPBOARD_HASH_INIT;
+    for (size_t i = 0; i < size; i++)
+        hash = lorieClipboardHashByte(hash, data[i]);
+    return hash;
+}
+
+// Same as lorieClipboardHash of UTF-8 encoded text, so Java strings are hashed without converting them.
+// Unpaired surrogates are hashed as '?', like String.getBytes(UTF_8) encodes them.
+static inline uint64_t lorieClipboardHashUTF16(const uint16_t *data, size_t length) {
+    uint64_t hash = LORIE_CLIPBOARD_HASH_INIT;
+    for (size_t i = 0; i < length; i++) {
+        uint32_t c = data[i];
+        if (c >= 0xd800 && c < 0xdc00 && i + 1 < length && data[i + 1] >= 0xdc00 && data[i + 1] < 0xe000)
+            c = 0x10000 + ((c - 0xd800) << 10) + (data[++i] - 0xdc00);
+        else if (c >= 0xd800 && c < 0xe000)
+            c = '?';
+
+        if (c < 0x80)
+            hash = lorieClipboardHashByte(hash, c);
+        else if (c < 0x800) {
+            hash = lorieClipboardHashByte(hash, 0xc0 | c >> 6);
+            hash = lorieClipboardHashByte(hash, 0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            hash = lorieClipboardHashByte(hash, 0xe0 | c >> 12);
+            hash = lorieClipboardHashByte(hash, 0x80 | (c >> 6 & 0x3f));
+            hash = lorieClipboardHashByte(hash, 0x80 | (c & 0x3f));
+        } else {
+            hash = lorieClipboardHashByte(hash, 0xf0 | c >> 18);
+            hash = lorieClipboardHashByte(hash, 0x80 | (c >> 12 & 0x3f));
+            hash = lorieClipboardHashByte(hash, 0x80 | (c >> 6 & 0x3f));
+            hash = lorieClipboardHashByte(hash, 0x80 | (c & 0x3f));
+        }
+    }
+    return hash;
+}
+
 void lorieSetVM(JavaVM* vm);
+void lorieServerReady(void);
 Bool lorieChangeScreenName(ClientPtr pClient, void *closure);
 Bool lorieChangeWindow(ClientPtr pClient, void *closure);
 void lorieConfigureNotify(int width, int height, int framerate);
+void lorieVsyncNotify(uint32_t period, uint32_t phase);
+void lorieSetHardwareCursor(Bool enable);
 void lorieEnableClipboardSync(Bool enable);
-void lorieSendClipboardData(const char* data);
+void lorieAnnounceClipboard(uint32_t mimes, uint64_t hash);
+void lorieSendClipboardData(int mime, const char* data, size_t size);
 void lorieInitClipboard(void);
-void lorieRequestClipboard(void);
-void lorieHandleClipboardAnnounce(void);
-void lorieHandleClipboardData(const char* data);
+void lorieRequestClipboard(int mime);
+void lorieHandleClipboardAnnounce(uint32_t mimes, uint64_t hash);
+void lorieHandleClipboardRequest(int mime);
+void lorieHandleClipboardData(int mime, char* data, size_t size);
+void lorieSendCursor(int width, int height, int xhot, int yhot, const void *data);
+void lorieSendBell(int volume, int pitch, int duration);
+void lorieSendScreenMode(int width, int height, int framerate);
+void lorieSendRenderStats(void);
 Bool lorieInitDri3(ScreenPtr pScreen);
 
 static int android_to_linux_keycode[304] = {
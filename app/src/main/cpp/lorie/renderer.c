@@ -16,6 +16,8 @@
 #include <android/native_window_jni.h>
 #include <android/log.h>
 #include <dlfcn.h>
+#include <stdatomic.h>
+#include <time.h>
 #include "renderer.h"
 #include "os.h"
 
@@ -133,6 +135,16 @@ static jobject surface = NULL;
 static AHardwareBuffer *buffer = NULL;
 static EGLImageKHR image = NULL;
 static int renderedFrames = 0;
+static uint64_t lastFrameTime = 0;
+static struct {
+    AHardwareBuffer* buffer;
+    EGLImageKHR image;
+    GLuint id;
+} rootBuffers[RENDERER_MAX_BUFFERS];
+static int rootBuffersCount = 0, rootBufferSelected = -1;
+static int unpackSubimage = 0;
+static void* uploadScratch = NULL;
+static size_t uploadScratchSize = 0;
 
 static jmethodID Surface_release = NULL;
 static jmethodID Surface_destroy = NULL;
@@ -144,6 +156,7 @@ static struct {
 static struct {
     GLuint id;
     float x, y, width, height, xhot, yhot;
+    int hidden; // Cursor is drawn by activity
 } cursor;
 
 GLuint g_texture_program = 0, gv_pos = 0, gv_coords = 0;
@@ -424,6 +437,70 @@ void renderer_set_buffer(JNIEnv* env, AHardwareBuffer* buf) {
     log("renderer_set_buffer %p %d %d", buffer, desc.width, desc.height);
 }
 
+static void renderer_unset_buffers(void) {
+    for (int i = 0; i < rootBuffersCount; i++) {
+        if (rootBuffers[i].image)
+            eglDestroyImageKHR(egl_display, rootBuffers[i].image);
+        if (rootBuffers[i].id)
+            glDeleteTextures(1, &rootBuffers[i].id);
+        if (rootBuffers[i].buffer)
+            AHardwareBuffer_release(rootBuffers[i].buffer);
+    }
+
+    memset(rootBuffers, 0, sizeof(rootBuffers));
+    rootBuffersCount = 0;
+    rootBufferSelected = -1;
+}
+
+void renderer_set_buffers(int count, AHardwareBuffer** buffers) {
+    const EGLint imageAttributes[] = {EGL_IMAGE_PRESERVED_KHR, EGL_TRUE, EGL_NONE};
+    EGLClientBuffer clientBuffer;
+    AHardwareBuffer_Desc desc = {0};
+
+    if (eglGetCurrentContext() == EGL_NO_CONTEXT) {
+        loge("There is no current context, `renderer_set_buffers` call is cancelled");
+        return;
+    }
+
+    renderer_unset_buffers();
+
+    // Every buffer gets its own texture and EGLImage so switching between them costs nothing.
+    for (int i = 0; i < count && i < RENDERER_MAX_BUFFERS; i++, rootBuffersCount++) {
+        rootBuffers[i].buffer = buffers[i];
+        AHardwareBuffer_acquire(buffers[i]);
+        AHardwareBuffer_describe(buffers[i], &desc);
+
+        clientBuffer = eglGetNativeClientBufferANDROID(buffers[i]);
+        rootBuffers[i].image = clientBuffer ? eglCreateImageKHR(egl_display, EGL_NO_CONTEXT, EGL_NATIVE_BUFFER_ANDROID, clientBuffer, imageAttributes) : NULL;
+        if (!rootBuffers[i].image) {
+            eglCheckError(__LINE__);
+            loge("Binding root AHardwareBuffer %d to an EGLImage failed.", i);
+            continue;
+        }
+
+        glGenTextures(1, &rootBuffers[i].id); checkGlError();
+        glBindTexture(GL_TEXTURE_2D, rootBuffers[i].id); checkGlError();
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR); checkGlError();
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR); checkGlError();
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE); checkGlError();
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE); checkGlError();
+        glEGLImageTargetTexture2DOES(GL_TEXTURE_2D, rootBuffers[i].image); checkGlError();
+    }
+
+    display.width = (float) desc.width;
+    display.height = (float) desc.height;
+
+    log("renderer_set_buffers %d %d %d", rootBuffersCount, desc.width, desc.height);
+}
+
+int renderer_select_buffer(int index) {
+    if (index < 0 || index >= rootBuffersCount || !rootBuffers[index].id)
+        return FALSE;
+
+    rootBufferSelected = index;
+    return TRUE;
+}
+
 void renderer_set_window(JNIEnv* env, jobject new_surface, AHardwareBuffer* new_buffer) {
     EGLNativeWindowType window;
     if (new_surface && surface && new_surface != surface && (*env)->IsSameObject(env, new_surface, surface)) {
@@ -513,6 +590,10 @@ void renderer_set_window(JNIEnv* env, jobject new_surface, AHardwareBuffer* new_
         gv_pos_bgra = (GLuint) glGetAttribLocation(g_texture_program_bgra, "position"); checkGlError();
         gv_coords_bgra = (GLuint) glGetAttribLocation(g_texture_program_bgra, "texCoords"); checkGlError();
 
+        const char* extensions = (const char*) glGetString(GL_EXTENSIONS);
+        unpackSubimage = extensions && strstr(extensions, "GL_EXT_unpack_subimage");
+        log("Xlorie: GL_EXT_unpack_subimage is %ssupported\n", unpackSubimage ? "" : "not ");
+
         glActiveTexture(GL_TEXTURE0); checkGlError();
         glGenTextures(1, &display.id); checkGlError();
         glGenTextures(1, &cursor.id); checkGlError();
@@ -553,6 +634,65 @@ void renderer_update_root(int w, int h, void* data, uint8_t flip) {
     }
 }
 
+// Uploading too many small rectangles costs more than one full upload, same goes for big damaged area.
+#define DAMAGE_MAX_BOXES 64
+#define DAMAGE_MAX_AREA_PERCENT 50
+
+void renderer_update_root_damage(int w, int h, void* data, uint8_t flip, int nboxes, const renderer_box* boxes) {
+    GLenum format = flip ? GL_RGBA : GL_BGRA_EXT;
+    uint64_t area = 0;
+
+    if (eglGetCurrentContext() == EGL_NO_CONTEXT || !w || !h || !nboxes)
+        return;
+
+    if (display.width != (float) w || display.height != (float) h || nboxes > DAMAGE_MAX_BOXES)
+        return renderer_update_root(w, h, data, flip);
+
+    for (int i = 0; i < nboxes; i++)
+        area += (uint64_t) (boxes[i].x2 - boxes[i].x1) * (boxes[i].y2 - boxes[i].y1);
+    if (area * 100 > (uint64_t) w * h * DAMAGE_MAX_AREA_PERCENT)
+        return renderer_update_root(w, h, data, flip);
+
+    glBindTexture(GL_TEXTURE_2D, display.id); checkGlError();
+    if (unpackSubimage)
+        glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, w);
+
+    for (int i = 0; i < nboxes; i++) {
+        int x1 = max(boxes[i].x1, 0), y1 = max(boxes[i].y1, 0);
+        int x2 = min(boxes[i].x2, w), y2 = min(boxes[i].y2, h);
+        int bw = x2 - x1, bh = y2 - y1;
+        uint8_t *src = (uint8_t*) data + ((size_t) y1 * w + x1) * 4;
+
+        if (bw <= 0 || bh <= 0)
+            continue;
+
+        if (unpackSubimage || bw == w) {
+            // Rows are either taken with the root's stride or are contiguous in memory anyway.
+            glTexSubImage2D(GL_TEXTURE_2D, 0, x1, y1, bw, bh, format, GL_UNSIGNED_BYTE, src);
+        } else {
+            // Plain GLES2 can not unpack rows with custom stride, so we should pack them ourselves.
+            size_t size = (size_t) bw * bh * 4;
+            if (size > uploadScratchSize) {
+                void *scratch = realloc(uploadScratch, size);
+                if (!scratch) {
+                    loge("Failed to allocate damage upload buffer, falling back to full upload");
+                    return renderer_update_root(w, h, data, flip);
+                }
+                uploadScratch = scratch;
+                uploadScratchSize = size;
+            }
+
+            for (int y = 0; y < bh; y++)
+                memcpy((uint8_t*) uploadScratch + (size_t) y * bw * 4, src + (size_t) y * w * 4, bw * 4);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, x1, y1, bw, bh, format, GL_UNSIGNED_BYTE, uploadScratch);
+        }
+        checkGlError();
+    }
+
+    if (unpackSubimage)
+        glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, 0);
+}
+
 void renderer_update_cursor(int w, int h, int xhot, int yhot, void* data) {
     log("Xlorie: updating cursor\n");
     cursor.width = (float) w;
@@ -577,6 +717,10 @@ void renderer_set_cursor_coordinates(int x, int y) {
     cursor.y = (float) y;
 }
 
+void renderer_set_cursor_hidden(int hidden) {
+    cursor.hidden = hidden;
+}
+
 static void draw(GLuint id, float x0, float y0, float x1, float y1, uint8_t flip);
 static void draw_cursor(void);
 
@@ -586,14 +730,23 @@ int renderer_should_redraw(void) {
     return sfc != EGL_NO_SURFACE && eglGetCurrentContext() != EGL_NO_CONTEXT;
 }
 
+static inline uint64_t nanotime(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
 int renderer_redraw(JNIEnv* env, uint8_t flip) {
     int err = EGL_SUCCESS;
+    uint64_t start, drawn, swapped;
 
     if (!sfc || eglGetCurrentContext() == EGL_NO_CONTEXT)
         return FALSE;
 
-    draw(display.id,  -1.f, -1.f, 1.f, 1.f, flip);
+    start = nanotime();
+    draw(rootBufferSelected >= 0 ? rootBuffers[rootBufferSelected].id : display.id,  -1.f, -1.f, 1.f, 1.f, flip);
     draw_cursor();
+    drawn = nanotime();
     if (eglSwapBuffers(egl_display, sfc) != EGL_TRUE) {
         err = eglGetError();
         eglCheckError(__LINE__);
@@ -606,6 +759,14 @@ int renderer_redraw(JNIEnv* env, uint8_t flip) {
         }
     }
 
+    swapped = nanotime();
+    renderer_stat_record(RENDERER_STAT_DRAW, drawn - start);
+    renderer_stat_record(RENDERER_STAT_SWAP, swapped - drawn);
+    // Long pauses are not jank, screen was simply idle.
+    if (lastFrameTime && swapped - lastFrameTime < 1000000000ULL)
+        renderer_stat_record(RENDERER_STAT_INTERVAL, swapped - lastFrameTime);
+    lastFrameTime = swapped;
+
     renderedFrames++;
     return TRUE;
 }
@@ -617,6 +778,88 @@ void renderer_print_fps(float millis) {
     renderedFrames = 0;
 }
 
+/*
+ * Frame timing histograms. Values are recorded in microseconds to logarithmic buckets,
+ * every power of two is split to 4 linear sub-buckets, so the error is at most 25%.
+ * Values are recorded on X server thread and read on binder thread, so everything is atomic.
+ */
+#define STAT_BUCKETS 96
+
+static const char* statNames[RENDERER_STAT_COUNT] = {
+    [RENDERER_STAT_DAMAGE] = "damage",
+    [RENDERER_STAT_LOCK] = "lock",
+    [RENDERER_STAT_UNLOCK] = "unlock",
+    [RENDERER_STAT_DRAW] = "draw",
+    [RENDERER_STAT_SWAP] = "swap",
+    [RENDERER_STAT_FRAME] = "frame",
+    [RENDERER_STAT_INTERVAL] = "interval",
+};
+
+static struct {
+    _Atomic uint32_t buckets[STAT_BUCKETS];
+    _Atomic uint64_t count, total, max;
+} stats[RENDERER_STAT_COUNT];
+
+static inline int stat_bucket(uint64_t us) {
+    int exp;
+    if (us < 4)
+        return (int) us;
+
+    exp = 63 - __builtin_clzll(us);
+    return min(4 * (exp - 1) + (int) ((us >> (exp - 2)) & 3), STAT_BUCKETS - 1);
+}
+
+static inline uint64_t stat_bucket_limit(int bucket) {
+    // Upper bound of bucket, it is lower bound of the next one.
+    bucket++;
+    return bucket < 4 ? bucket : (uint64_t) (4 + bucket % 4) << (bucket / 4 - 1);
+}
+
+void renderer_stat_record(renderer_stat stat, uint64_t nanos) {
+    uint64_t us = nanos / 1000, max;
+    if (stat >= RENDERER_STAT_COUNT)
+        return;
+
+    atomic_fetch_add_explicit(&stats[stat].buckets[stat_bucket(us)], 1, memory_order_relaxed);
+    atomic_fetch_add_explicit(&stats[stat].count, 1, memory_order_relaxed);
+    atomic_fetch_add_explicit(&stats[stat].total, us, memory_order_relaxed);
+    max = atomic_load_explicit(&stats[stat].max, memory_order_relaxed);
+    while (us > max && !atomic_compare_exchange_weak_explicit(&stats[stat].max, &max, us, memory_order_relaxed, memory_order_relaxed));
+}
+
+static float stat_percentile(uint32_t* buckets, uint64_t count, uint64_t max, int percent) {
+    uint64_t target = (count * percent + 99) / 100, seen = 0;
+    if (!count)
+        return 0;
+
+    for (int i = 0; i < STAT_BUCKETS; i++)
+        if ((seen += buckets[i]) >= target)
+            return (float) min(stat_bucket_limit(i), max) / 1000;
+    return 0;
+}
+
+int renderer_stats_dump(char* buf, size_t size, int reset) {
+    uint32_t buckets[STAT_BUCKETS];
+    uint64_t count, total, max;
+    int len = snprintf(buf, size, "%-10s %10s %10s %10s %10s %10s %10s\n", "(ms)", "count", "avg", "p50", "p90", "p99", "max");
+
+    for (int i = 0; i < RENDERER_STAT_COUNT && len >= 0 && len < (int) size; i++) {
+        for (int j = 0; j < STAT_BUCKETS; j++)
+            buckets[j] = reset ? atomic_exchange_explicit(&stats[i].buckets[j], 0, memory_order_relaxed)
+                               : atomic_load_explicit(&stats[i].buckets[j], memory_order_relaxed);
+        count = reset ? atomic_exchange(&stats[i].count, 0) : atomic_load(&stats[i].count);
+        total = reset ? atomic_exchange(&stats[i].total, 0) : atomic_load(&stats[i].total);
+        max = reset ? atomic_exchange(&stats[i].max, 0) : atomic_load(&stats[i].max);
+
+        len += snprintf(buf + len, size - len, "%-10s %10llu %10.3f %10.3f %10.3f %10.3f %10.3f\n", statNames[i],
+                        (unsigned long long) count, count ? (float) total / count / 1000 : 0.f,
+                        stat_percentile(buckets, count, max, 50), stat_percentile(buckets, count, max, 90),
+                        stat_percentile(buckets, count, max, 99), (float) max / 1000);
+    }
+
+    return len;
+}
+
 static GLuint load_shader(GLenum shaderType, const char* pSource) {
     GLint compiled = 0;
     GLuint shader = glCreateShader(shaderType); checkGlError();
@@ -699,7 +942,7 @@ static void draw(GLuint id, float x0, float y0, float x1, float y1, uint8_t flip
 __unused static void draw_cursor(void) {
     float x, y, w, h;
 
-    if (!cursor.width || !cursor.height)
+    if (cursor.hidden || !cursor.width || !cursor.height)
         return;
 
     x = 2.f * (cursor.x - cursor.xhot) / display.width - 1.f;
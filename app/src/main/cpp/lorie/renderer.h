@@ -11,13 +11,37 @@ __unused void renderer_message_func(renderer_message_func_type function);
 
 __unused int renderer_init(JNIEnv* env, int* legacy_drawing, uint8_t* flip);
 __unused void renderer_set_buffer(JNIEnv* env, AHardwareBuffer* buffer);
+__unused void renderer_set_buffers(int count, AHardwareBuffer** buffers);
+__unused int renderer_select_buffer(int index);
 __unused void renderer_set_window(JNIEnv* env, jobject surface, AHardwareBuffer* buffer);
 __unused int renderer_should_redraw(void);
 __unused int renderer_redraw(JNIEnv* env, uint8_t flip);
 __unused void renderer_print_fps(float millis);
 
+typedef enum {
+    RENDERER_STAT_DAMAGE, // Transferring damaged regions to the presented buffer or texture
+    RENDERER_STAT_LOCK, // AHardwareBuffer_lock of root buffer
+    RENDERER_STAT_UNLOCK, // AHardwareBuffer_unlock of root buffer
+    RENDERER_STAT_DRAW, // Issuing draw calls for root window and cursor
+    RENDERER_STAT_SWAP, // eglSwapBuffers
+    RENDERER_STAT_FRAME, // Whole redraw timer callback which ended with new frame
+    RENDERER_STAT_INTERVAL, // Time between two consecutive frames
+    RENDERER_STAT_COUNT,
+} renderer_stat;
+
+__unused void renderer_stat_record(renderer_stat stat, uint64_t nanos);
+__unused int renderer_stats_dump(char* buf, size_t size, int reset);
+
+// Layout matches X server's BoxRec, so damage region rects can be passed as is.
+typedef struct {
+    short x1, y1, x2, y2;
+} renderer_box;
+
 __unused void renderer_update_root(int w, int h, void* data, uint8_t flip);
+__unused void renderer_update_root_damage(int w, int h, void* data, uint8_t flip, int nboxes, const renderer_box* boxes);
 __unused void renderer_update_cursor(int w, int h, int xhot, int yhot, void* data);
 __unused void renderer_set_cursor_coordinates(int x, int y);
+__unused void renderer_set_cursor_hidden(int hidden);
 
+#define RENDERER_MAX_BUFFERS 3
 #define AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM 5 // Stands to HAL_PIXEL_FORMAT_BGRA_8888
\ No newline at end of file
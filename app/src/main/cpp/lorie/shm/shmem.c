@@ -1,3 +1,6 @@
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE // accept4, memfd_create
+#endif
 #ifdef ANDROID
 #include <android/log.h>
 #endif
@@ -9,20 +12,22 @@
 #include <string.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
 #include <sys/mman.h>
 #include <sys/socket.h>
+#include <sys/stat.h>
 #include <sys/syscall.h>
 #include <sys/un.h>
 #include <unistd.h>
 #include <paths.h>
 #include <ctype.h>
+#include <stdatomic.h>
+#include <libgen.h>
 
 #define __u32 uint32_t
 #ifdef ANDROID
 #include <linux/ashmem.h>
-#include <libgen.h>
-
 #endif
 
 #include "shm.h"
@@ -30,10 +35,12 @@
 #define DBG(...)
 #define ANDROID_SHMEM_SOCKNAME "/dev/shm/%08x"
 #define ROUND_UP(N, S) ((((N) + (S) - 1) / (S)) * (S))
+#define SHMEM_BUCKETS 256 // Must be power of 2
 
+// Serializes taking ownership of keys, segment tables have their own locks.
 static pthread_mutex_t mutex = PTHREAD_MUTEX_INITIALIZER;
 
-typedef struct {
+typedef struct shmem {
 	// The shmid (shared memory id) contains the socket address (16 bits)
 	// and a local id (15 bits).
 	int id;
@@ -42,10 +49,17 @@ typedef struct {
 	size_t size;
 	bool markedForDeletion;
 	key_t key;
+	struct shmem *next; // Next segment in the same id bucket
+	struct shmem *addr_next; // Next segment in the same address bucket, valid only while attached
 } shmem_t;
 
-static shmem_t* shmem = NULL;
-static size_t shmem_amount = 0;
+// Segments are hashed by shmid, attached segments are also hashed by address for shmdt.
+// Every bucket has its own lock. If both locks are needed, id lock must be taken first.
+// Segment can be freed only with its id bucket lock held.
+static shmem_t* shmem[SHMEM_BUCKETS] = {0};
+static shmem_t* shmem_attached[SHMEM_BUCKETS] = {0};
+static pthread_mutex_t shmem_locks[SHMEM_BUCKETS] = { [0 ... SHMEM_BUCKETS - 1] = PTHREAD_MUTEX_INITIALIZER };
+static pthread_mutex_t shmem_attached_locks[SHMEM_BUCKETS] = { [0 ... SHMEM_BUCKETS - 1] = PTHREAD_MUTEX_INITIALIZER };
 
 static uint8_t syscall_supported = 0;
 
@@ -98,10 +112,10 @@ static void check_syscall_support(void) {
 
 // The lower 16 bits of (getpid() + i), where i is a sequence number.
 // It is unique among processes as it's only set when bound.
-static int ashv_local_socket_id = 0;
+static _Atomic int ashv_local_socket_id = 0;
 // To handle forks we store which pid the ashv_local_socket_id was
 // created for.
-static int ashv_pid_setup = 0;
+static _Atomic int ashv_pid_setup = 0;
 static pthread_t ashv_listening_thread_id = 0;
 
 static int ancil_send_fd(int sock, int fd)
@@ -171,7 +185,9 @@ static int ashmem_get_size_region(int fd)
 	//if (ret < 0) return ret;
 	return TEMP_FAILURE_RETRY(ioctl(fd, ASHMEM_GET_SIZE, NULL));
 #else
-    return -1;
+	// Host build (tests/), regions are backed by memfd.
+	struct stat st;
+	return fstat(fd, &st) == 0 ? (int) st.st_size : -1;
 #endif
 }
 
@@ -204,26 +220,39 @@ static int ashmem_create_region(char const* name, size_t size)
 error:
 	close(fd);
 	return ret;
+#else
+	int fd = memfd_create(name, MFD_CLOEXEC);
+	if (fd >= 0 && ftruncate(fd, size) != 0) {
+		close(fd);
+		return -1;
+	}
+	return fd;
 #endif
-    return -1;
 }
 
 static void ashv_check_pid()
 {
-	pid_t mypid = getpid();
-	if (ashv_pid_setup == 0) {
-		ashv_pid_setup = mypid;
-	} else if (ashv_pid_setup != mypid) {
-		DBG("%s: Cleaning to new pid=%d from oldpid=%d", __PRETTY_FUNCTION__, mypid, ashv_pid_setup);
-		// We inherited old state across a fork.
-		ashv_pid_setup = mypid;
-		ashv_local_socket_id = 0;
-		ashv_listening_thread_id = 0;
-		shmem_amount = 0;
-		// Unlock if fork left us with held lock from parent thread.
-		pthread_mutex_unlock(&mutex);
-		if (shmem != NULL) free(shmem);
-		shmem = NULL;
+	int mypid = getpid(), setup = 0;
+	// Several threads may get here first, only one of them stores the pid.
+	if (atomic_compare_exchange_strong(&ashv_pid_setup, &setup, mypid) || setup == mypid)
+		return;
+
+	DBG("%s: Cleaning to new pid=%d from oldpid=%d", __PRETTY_FUNCTION__, mypid, ashv_pid_setup);
+	// We inherited old state across a fork.
+	ashv_pid_setup = mypid;
+	ashv_local_socket_id = 0;
+	ashv_listening_thread_id = 0;
+	// Reinitialize locks in the case if fork left us with held lock from parent thread.
+	pthread_mutex_init(&mutex, NULL);
+	for (int i = 0; i < SHMEM_BUCKETS; i++) {
+		pthread_mutex_init(&shmem_locks[i], NULL);
+		pthread_mutex_init(&shmem_attached_locks[i], NULL);
+		while (shmem[i] != NULL) {
+			shmem_t *next = shmem[i]->next;
+			free(shmem[i]);
+			shmem[i] = next;
+		}
+		shmem_attached[i] = NULL;
 	}
 }
 
@@ -240,57 +269,176 @@ static int ashv_socket_id_from_shmid(int shmid)
 	return shmid / 0x10000;
 }
 
-static int ashv_find_local_index(int shmid)
+static inline unsigned int ashv_bucket(int shmid)
 {
-	for (size_t i = 0; i < shmem_amount; i++)
-		if (shmem[i].id == shmid)
-			return i;
-	return -1;
+	return ((unsigned int) shmid ^ ((unsigned int) shmid >> 16)) & (SHMEM_BUCKETS - 1);
+}
+
+static inline unsigned int ashv_addr_bucket(void const* addr)
+{
+	uintptr_t page = (uintptr_t) addr >> 12;
+	return (page ^ (page >> 8) ^ (page >> 16)) & (SHMEM_BUCKETS - 1);
+}
+
+// Caller must hold shmem_locks[ashv_bucket(shmid)].
+static shmem_t* ashv_find_local(int shmid)
+{
+	for (shmem_t *seg = shmem[ashv_bucket(shmid)]; seg != NULL; seg = seg->next)
+		if (seg->id == shmid)
+			return seg;
+	return NULL;
+}
+
+// Caller must hold shmem_locks[ashv_bucket(seg->id)].
+// Returns already present segment with the same id if there is one, new segment is released in this case.
+static shmem_t* ashv_insert(shmem_t *seg)
+{
+	shmem_t *existing = ashv_find_local(seg->id);
+	if (existing != NULL) {
+		close(seg->descriptor);
+		free(seg);
+		return existing;
+	}
+
+	seg->next = shmem[ashv_bucket(seg->id)];
+	shmem[ashv_bucket(seg->id)] = seg;
+	return seg;
+}
+
+// Caller must hold shmem_locks[ashv_bucket(seg->id)].
+static void ashv_attach(shmem_t *seg)
+{
+	unsigned int bucket = ashv_addr_bucket(seg->addr);
+	pthread_mutex_lock(&shmem_attached_locks[bucket]);
+	seg->addr_next = shmem_attached[bucket];
+	shmem_attached[bucket] = seg;
+	pthread_mutex_unlock(&shmem_attached_locks[bucket]);
+}
+
+// Caller must hold shmem_locks[ashv_bucket(seg->id)].
+static void ashv_detach(shmem_t *seg)
+{
+	unsigned int bucket = ashv_addr_bucket(seg->addr);
+	pthread_mutex_lock(&shmem_attached_locks[bucket]);
+	for (shmem_t **p = &shmem_attached[bucket]; *p != NULL; p = &(*p)->addr_next) {
+		if (*p == seg) {
+			*p = seg->addr_next;
+			break;
+		}
+	}
+	seg->addr_next = NULL;
+	pthread_mutex_unlock(&shmem_attached_locks[bucket]);
+}
+
+static int ashv_find_attached_id(void const* addr)
+{
+	unsigned int bucket = ashv_addr_bucket(addr);
+	int shmid = -1;
+	pthread_mutex_lock(&shmem_attached_locks[bucket]);
+	for (shmem_t *seg = shmem_attached[bucket]; seg != NULL; seg = seg->addr_next) {
+		if (seg->addr == addr) {
+			shmid = seg->id;
+			break;
+		}
+	}
+	pthread_mutex_unlock(&shmem_attached_locks[bucket]);
+	return shmid;
+}
+
+static void ashv_serve_lookup(int sendsock, int shmid)
+{
+	key_t key = 0;
+	int descriptor = -1;
+
+	// Socket I/O is done without holding the lock, so segment's descriptor is duplicated.
+	pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+	shmem_t *seg = ashv_find_local(shmid);
+	if (seg != NULL) {
+		key = seg->key;
+		descriptor = dup(seg->descriptor);
+	}
+	pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
+
+	if (descriptor < 0) {
+		DBG("%s: ERROR: cannot find shmid 0x%x", __PRETTY_FUNCTION__, shmid);
+		return;
+	}
+
+	if (send(sendsock, &key, sizeof(key_t), MSG_NOSIGNAL) != sizeof(key_t)) {
+		DBG("%s: ERROR: write failed: %s", __PRETTY_FUNCTION__, strerror(errno));
+	}
+	if (ancil_send_fd(sendsock, descriptor) != 0) {
+		DBG("%s: ERROR: ancil_send_fd() failed: %s", __PRETTY_FUNCTION__, strerror(errno));
+	}
+	close(descriptor);
 }
 
 static void* ashv_thread_function(void* arg)
 {
 	int sock = *(int*)arg;
 	free(arg);
-	struct sockaddr_un addr;
-	socklen_t len = sizeof(addr);
-	int sendsock;
+	struct epoll_event ev = { .events = EPOLLIN, .data.fd = sock }, events[16];
+	int epfd = epoll_create1(EPOLL_CLOEXEC);
 	//DBG("%s: thread started", __PRETTY_FUNCTION__);
-	while ((sendsock = accept(sock, (struct sockaddr *)&addr, &len)) != -1) {
-		int shmid;
-		if (recv(sendsock, &shmid, sizeof(shmid), 0) != sizeof(shmid)) {
-			DBG("%s: ERROR: recv() returned not %zu bytes", __PRETTY_FUNCTION__, sizeof(shmid));
-			close(sendsock);
-			continue;
+	if (epfd == -1 || epoll_ctl(epfd, EPOLL_CTL_ADD, sock, &ev) != 0) {
+		DBG("%s: ERROR: cannot setup epoll: %s", __PRETTY_FUNCTION__, strerror(errno));
+		if (epfd != -1) close(epfd);
+		return NULL;
+	}
+	fcntl(sock, F_SETFL, fcntl(sock, F_GETFL) | O_NONBLOCK);
+
+	// Connections are accepted as soon as they arrive, but served only when the shmid can be read without blocking,
+	// so one slow client does not stall lookups of others.
+	while (true) {
+		int n = epoll_wait(epfd, events, sizeof(events) / sizeof(events[0]), -1);
+		if (n == -1) {
+			if (errno == EINTR) continue;
+			break;
 		}
-		pthread_mutex_lock(&mutex);
-		int idx = ashv_find_local_index(shmid);
-		if (idx != -1) {
-			if (write(sendsock, &shmem[idx].key, sizeof(key_t)) != sizeof(key_t)) {
-				DBG("%s: ERROR: write failed: %s", __PRETTY_FUNCTION__, strerror(errno));
+
+		for (int i = 0; i < n; i++) {
+			if (events[i].data.fd == sock) {
+				int sendsock;
+				while ((sendsock = accept4(sock, NULL, NULL, SOCK_CLOEXEC)) != -1) {
+					ev.events = EPOLLIN;
+					ev.data.fd = sendsock;
+					if (epoll_ctl(epfd, EPOLL_CTL_ADD, sendsock, &ev) != 0)
+						close(sendsock);
+				}
+				continue;
 			}
-			if (ancil_send_fd(sendsock, shmem[idx].descriptor) != 0) {
-				DBG("%s: ERROR: ancil_send_fd() failed: %s", __PRETTY_FUNCTION__, strerror(errno));
+
+			int sendsock = events[i].data.fd, shmid;
+			epoll_ctl(epfd, EPOLL_CTL_DEL, sendsock, NULL);
+			if (recv(sendsock, &shmid, sizeof(shmid), MSG_DONTWAIT) == sizeof(shmid)) {
+				ashv_serve_lookup(sendsock, shmid);
+			} else {
+				DBG("%s: ERROR: recv() returned not %zu bytes", __PRETTY_FUNCTION__, sizeof(shmid));
 			}
-		} else {
-			DBG("%s: ERROR: cannot find shmid 0x%x", __PRETTY_FUNCTION__, shmid);
+			close(sendsock);
 		}
-		pthread_mutex_unlock(&mutex);
-		close(sendsock);
-		len = sizeof(addr);
 	}
-	DBG ("%s: ERROR: listen() failed, thread stopped", __PRETTY_FUNCTION__);
+	DBG ("%s: ERROR: epoll_wait() failed, thread stopped", __PRETTY_FUNCTION__);
+	close(epfd);
 	return NULL;
 }
 
-static void android_shmem_delete(int idx)
+// Caller must hold shmem_locks[ashv_bucket(seg->id)], segment must be detached.
+static void android_shmem_delete(shmem_t *seg)
 {
-	if (shmem[idx].descriptor) close(shmem[idx].descriptor);
-	shmem_amount--;
-	memmove(&shmem[idx], &shmem[idx+1], (shmem_amount - idx) * sizeof(shmem_t));
+	for (shmem_t **p = &shmem[ashv_bucket(seg->id)]; *p != NULL; p = &(*p)->next) {
+		if (*p == seg) {
+			*p = seg->next;
+			break;
+		}
+	}
+	if (seg->descriptor >= 0) close(seg->descriptor);
+	free(seg);
 }
 
-static int ashv_read_remote_segment(int shmid)
+// Does not touch segment tables, so it must be called without locks held.
+// The result should be passed to ashv_insert.
+static shmem_t* ashv_read_remote_segment(int shmid)
 {
 	struct sockaddr_un addr;
 	memset(&addr, 0, sizeof(addr));
@@ -301,51 +449,88 @@ static int ashv_read_remote_segment(int shmid)
 	int recvsock = socket(AF_UNIX, SOCK_STREAM, 0);
 	if (recvsock == -1) {
 		DBG ("%s: cannot create UNIX socket: %s", __PRETTY_FUNCTION__, strerror(errno));
-		return -1;
+		return NULL;
 	}
 	if (connect(recvsock, (struct sockaddr*) &addr, addrlen) != 0) {
 		DBG("%s: Cannot connect to UNIX socket %s: %s, len %d", __PRETTY_FUNCTION__, addr.sun_path + 1, strerror(errno), addrlen);
 		close(recvsock);
-		return -1;
+		return NULL;
 	}
 
 	if (send(recvsock, &shmid, sizeof(shmid), 0) != sizeof(shmid)) {
 		DBG ("%s: send() failed on socket %s: %s", __PRETTY_FUNCTION__, addr.sun_path + 1, strerror(errno));
 		close(recvsock);
-		return -1;
+		return NULL;
 	}
 
 	key_t key;
 	if (read(recvsock, &key, sizeof(key_t)) != sizeof(key_t)) {
 		DBG("%s: ERROR: failed read", __PRETTY_FUNCTION__);
 		close(recvsock);
-		return -1;
+		return NULL;
 	}
 
 	int descriptor = ancil_recv_fd(recvsock);
 	if (descriptor < 0) {
 		DBG("%s: ERROR: ancil_recv_fd() failed on socket %s: %s", __PRETTY_FUNCTION__, addr.sun_path + 1, strerror(errno));
 		close(recvsock);
-		return -1;
+		return NULL;
 	}
 	close(recvsock);
 
 	int size = ashmem_get_size_region(descriptor);
 	if (size == 0 || size == -1) {
 		DBG ("%s: ERROR: ashmem_get_size_region() returned %d on socket %s: %s", __PRETTY_FUNCTION__, size, addr.sun_path + 1, strerror(errno));
-		return -1;
+		close(descriptor);
+		return NULL;
 	}
 
-	int idx = shmem_amount;
-	shmem_amount ++;
-	shmem = realloc(shmem, shmem_amount * sizeof(shmem_t));
-	shmem[idx].id = shmid;
-	shmem[idx].descriptor = descriptor;
-	shmem[idx].size = size;
-	shmem[idx].addr = NULL;
-	shmem[idx].markedForDeletion = false;
-	shmem[idx].key = key;
-	return idx;
+	shmem_t *seg = calloc(1, sizeof(shmem_t));
+	if (seg == NULL) {
+		close(descriptor);
+		return NULL;
+	}
+	seg->id = shmid;
+	seg->descriptor = descriptor;
+	seg->size = size;
+	seg->addr = NULL;
+	seg->markedForDeletion = false;
+	seg->key = key;
+	return seg;
+}
+
+// Returns local or remote segment with shmid, shmem_locks[ashv_bucket(shmid)] is held on return.
+static shmem_t* ashv_find_segment(int shmid)
+{
+	pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+	shmem_t *seg = ashv_find_local(shmid);
+	if (seg == NULL && ashv_socket_id_from_shmid(shmid) != ashv_local_socket_id) {
+		// Do not block other users of this bucket while talking to remote process.
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
+		shmem_t *remote = ashv_read_remote_segment(shmid);
+		pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+		seg = remote != NULL ? ashv_insert(remote) : ashv_find_local(shmid);
+	}
+	return seg;
+}
+
+// Picks unused shmid, counter wraps around at 15 bits.
+static int ashv_new_shmid(void)
+{
+	static atomic_uint shmem_counter = 0;
+	for (int i = 0; i < 0x8000; i++) {
+		unsigned int counter = (atomic_fetch_add(&shmem_counter, 1) + 1) & 0x7fff;
+		int shmid = ashv_shmid_from_counter(counter);
+		if (counter == 0)
+			continue;
+
+		pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+		bool used = ashv_find_local(shmid) != NULL;
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
+		if (!used)
+			return shmid;
+	}
+	return -1;
 }
 
 /* Get shared memory area identifier. */
@@ -365,24 +550,24 @@ int shmget(key_t key, size_t size, int flags)
 
 	ashv_check_pid();
 
-	// Counter wrapping around at 15 bits.
-	static size_t shmem_counter = 0;
-
+	// Concurrent first calls must not bind several sockets, so listening thread is started under the lock.
+	pthread_mutex_lock(&mutex);
 	if (!ashv_listening_thread_id) {
 		int sock = socket(AF_UNIX, SOCK_STREAM, 0);
-		if (!sock) {
+		if (sock == -1) {
 			DBG ("%s: cannot create UNIX socket: %s", __PRETTY_FUNCTION__, strerror(errno));
+			pthread_mutex_unlock(&mutex);
 			errno = EINVAL;
 			return -1;
 		}
-		int i;
+		int i, socket_id = 0;
 		for (i = 0; i < 4096; i++) {
 			struct sockaddr_un addr;
 			int len;
 			memset (&addr, 0, sizeof(addr));
 			addr.sun_family = AF_UNIX;
-			ashv_local_socket_id = (getpid() + i) & 0xffff;
-			sprintf(&addr.sun_path[1], ANDROID_SHMEM_SOCKNAME, ashv_local_socket_id);
+			socket_id = (getpid() + i) & 0xffff;
+			sprintf(&addr.sun_path[1], ANDROID_SHMEM_SOCKNAME, socket_id);
 			len = sizeof(addr.sun_family) + strlen(&addr.sun_path[1]) + 1;
 			if (bind(sock, (struct sockaddr *)&addr, len) != 0) continue;
 			DBG("%s: bound UNIX socket %s in pid=%d", __PRETTY_FUNCTION__, addr.sun_path + 1, getpid());
@@ -390,23 +575,27 @@ int shmget(key_t key, size_t size, int flags)
 		}
 		if (i == 4096) {
 			DBG("%s: cannot bind UNIX socket, bailing out", __PRETTY_FUNCTION__);
-			ashv_local_socket_id = 0;
+			close(sock);
+			pthread_mutex_unlock(&mutex);
 			errno = ENOMEM;
 			return -1;
 		}
-		if (listen(sock, 4) != 0) {
+		if (listen(sock, 64) != 0) {
 			DBG("%s: listen failed", __PRETTY_FUNCTION__);
+			close(sock);
+			pthread_mutex_unlock(&mutex);
 			errno = ENOMEM;
 			return -1;
 		}
+		ashv_local_socket_id = socket_id;
 		int* socket_arg = malloc(sizeof(int));
 		*socket_arg = sock;
 		pthread_create(&ashv_listening_thread_id, NULL, &ashv_thread_function, socket_arg);
 	}
+	pthread_mutex_unlock(&mutex);
 
 	int shmid = -1;
 
-	pthread_mutex_lock(&mutex);
 	char symlink_path[256];
 	if (key != IPC_PRIVATE) {
 		// (1) Check if symlink exists telling us where to connect.
@@ -417,21 +606,19 @@ int shmget(key_t key, size_t size, int flags)
 		sprintf(symlink_path, "%s/ashv_key_%d", _PATH_TMP, key);
 		char path_buffer[256];
 		char num_buffer[64];
+		pthread_mutex_lock(&mutex);
 		while (true) {
 			int path_length = readlink(symlink_path, path_buffer, sizeof(path_buffer) - 1);
 			if (path_length != -1) {
 				path_buffer[path_length] = '\0';
 				int shmid = atoi(path_buffer);
 				if (shmid != 0) {
-					int idx = ashv_find_local_index(shmid);
-
-					if (idx == -1) {
-						idx = ashv_read_remote_segment(shmid);
-					}
+					shmem_t *seg = ashv_find_segment(shmid);
+					pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 
-					if (idx != -1) {
+					if (seg != NULL) {
 						pthread_mutex_unlock(&mutex);
-						return shmem[idx].id;
+						return shmid;
 					}
 				}
 				// TODO: Not sure we should try to remove previous owner if e.g.
@@ -442,42 +629,52 @@ int shmget(key_t key, size_t size, int flags)
 			// Take ownership.
 			// TODO: HAndle error (out of resouces, no infinite loop)
 			if (shmid == -1) {
-				shmem_counter = (shmem_counter + 1) & 0x7fff;
-				shmid = ashv_shmid_from_counter(shmem_counter);
+				shmid = ashv_new_shmid();
+				if (shmid == -1) {
+					pthread_mutex_unlock(&mutex);
+					errno = ENOSPC;
+					return -1;
+				}
 				sprintf(num_buffer, "%d", shmid);
 			}
 			if (symlink(num_buffer, symlink_path) == 0) break;
 		}
+		pthread_mutex_unlock(&mutex);
 	}
 
+	if (shmid == -1) {
+		shmid = ashv_new_shmid();
+		if (shmid == -1) {
+			errno = ENOSPC;
+			return -1;
+		}
+	}
 
-	int idx = shmem_amount;
 	char buf[256];
-	sprintf(buf, ANDROID_SHMEM_SOCKNAME "-%d", ashv_local_socket_id, idx);
+	sprintf(buf, ANDROID_SHMEM_SOCKNAME "-%d", ashv_local_socket_id, shmid & 0x7fff);
 
-	shmem_amount++;
-	if (shmid == -1) {
-		shmem_counter = (shmem_counter + 1) & 0x7fff;
-		shmid = ashv_shmid_from_counter(shmem_counter);
+	shmem_t *seg = calloc(1, sizeof(shmem_t));
+	if (seg == NULL) {
+		errno = ENOMEM;
+		return -1;
 	}
-
-	shmem = realloc(shmem, shmem_amount * sizeof(shmem_t));
 	size = ROUND_UP(size, getpagesize());
-	shmem[idx].size = size;
-	shmem[idx].descriptor = ashmem_create_region(buf, size);
-	shmem[idx].addr = NULL;
-	shmem[idx].id = shmid;
-	shmem[idx].markedForDeletion = false;
-	shmem[idx].key = key;
-
-	if (shmem[idx].descriptor < 0) {
+	seg->size = size;
+	seg->descriptor = ashmem_create_region(buf, size);
+	seg->addr = NULL;
+	seg->id = shmid;
+	seg->markedForDeletion = false;
+	seg->key = key;
+
+	if (seg->descriptor < 0) {
 		DBG("%s: ashmem_create_region() failed for size %zu: %s", __PRETTY_FUNCTION__, size, strerror(errno));
-		shmem_amount --;
-		shmem = realloc(shmem, shmem_amount * sizeof(shmem_t));
-		pthread_mutex_unlock (&mutex);
+		free(seg);
 		return -1;
 	}
-	pthread_mutex_unlock(&mutex);
+
+	pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+	ashv_insert(seg);
+	pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 
 	return shmid;
 }
@@ -498,33 +695,27 @@ void* shmat(int shmid, void const* shmaddr, int shmflg)
 #endif
 	ashv_check_pid();
 
-	int socket_id = ashv_socket_id_from_shmid(shmid);
 	void *addr;
 
-	pthread_mutex_lock(&mutex);
-
-	int idx = ashv_find_local_index(shmid);
-	if (idx == -1 && socket_id != ashv_local_socket_id) {
-		idx = ashv_read_remote_segment(shmid);
-	}
-
-	if (idx == -1) {
+	shmem_t *seg = ashv_find_segment(shmid);
+	if (seg == NULL) {
 		DBG ("%s: shmid %x does not exist", __PRETTY_FUNCTION__, shmid);
-		pthread_mutex_unlock(&mutex);
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 		errno = EINVAL;
 		return (void*) -1;
 	}
 
-	if (shmem[idx].addr == NULL) {
-		shmem[idx].addr = mmap((void*) shmaddr, shmem[idx].size, PROT_READ | (shmflg == 0 ? PROT_WRITE : 0), MAP_SHARED, shmem[idx].descriptor, 0);
-		if (shmem[idx].addr == MAP_FAILED) {
-			DBG ("%s: mmap() failed for ID %x FD %d: %s", __PRETTY_FUNCTION__, idx, shmem[idx].descriptor, strerror(errno));
-			shmem[idx].addr = NULL;
-		}
+	if (seg->addr == NULL) {
+		seg->addr = mmap((void*) shmaddr, seg->size, PROT_READ | (shmflg == 0 ? PROT_WRITE : 0), MAP_SHARED, seg->descriptor, 0);
+		if (seg->addr == MAP_FAILED) {
+			DBG ("%s: mmap() failed for ID %x FD %d: %s", __PRETTY_FUNCTION__, shmid, seg->descriptor, strerror(errno));
+			seg->addr = NULL;
+		} else
+			ashv_attach(seg);
 	}
-	addr = shmem[idx].addr;
-	DBG ("%s: mapped addr %p for FD %d ID %d", __PRETTY_FUNCTION__, addr, shmem[idx].descriptor, idx);
-	pthread_mutex_unlock (&mutex);
+	addr = seg->addr;
+	DBG ("%s: mapped addr %p for FD %d ID %x", __PRETTY_FUNCTION__, addr, seg->descriptor, shmid);
+	pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 
 	return addr ? addr : (void *)-1;
 }
@@ -543,23 +734,28 @@ int shmdt(void const* shmaddr)
 #endif
 	ashv_check_pid();
 
-	pthread_mutex_lock(&mutex);
-	for (size_t i = 0; i < shmem_amount; i++) {
-		if (shmem[i].addr == shmaddr) {
-			if (munmap(shmem[i].addr, shmem[i].size) != 0) {
+	// Address bucket lock can not be held while taking id bucket lock, so segment is looked up twice.
+	int shmid = ashv_find_attached_id(shmaddr);
+	if (shmid != -1) {
+		pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+		shmem_t *seg = ashv_find_local(shmid);
+		if (seg != NULL && seg->addr == shmaddr) {
+			ashv_detach(seg);
+			if (munmap(seg->addr, seg->size) != 0) {
 				DBG("%s: munmap %p failed", __PRETTY_FUNCTION__, shmaddr);
 			}
-			shmem[i].addr = NULL;
-			DBG("%s: unmapped addr %p for FD %d ID %zu shmid %x", __PRETTY_FUNCTION__, shmaddr, shmem[i].descriptor, i, shmem[i].id);
-			if (shmem[i].markedForDeletion || ashv_socket_id_from_shmid(shmem[i].id) != ashv_local_socket_id) {
-				DBG ("%s: deleting shmid %x", __PRETTY_FUNCTION__, shmem[i].id);
-				android_shmem_delete(i);
+			seg->addr = NULL;
+			DBG("%s: unmapped addr %p for FD %d shmid %x", __PRETTY_FUNCTION__, shmaddr, seg->descriptor, shmid);
+			if (seg->markedForDeletion || ashv_socket_id_from_shmid(shmid) != ashv_local_socket_id) {
+				DBG ("%s: deleting shmid %x", __PRETTY_FUNCTION__, shmid);
+				// Descriptor of remote segment is not kept, owner may destroy it or reuse its id.
+				android_shmem_delete(seg);
 			}
-			pthread_mutex_unlock(&mutex);
+			pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 			return 0;
 		}
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 	}
-	pthread_mutex_unlock(&mutex);
 
 	DBG("%s: invalid address %p", __PRETTY_FUNCTION__, shmaddr);
 	/* Could be a remove segment, do not report an error for that. */
@@ -582,24 +778,24 @@ int shmctl(int shmid, int cmd, struct shmid_ds *buf)
 
 	if (cmd == IPC_RMID) {
 		DBG("%s: IPC_RMID for shmid=%x", __PRETTY_FUNCTION__, shmid);
-		pthread_mutex_lock(&mutex);
-		int idx = ashv_find_local_index(shmid);
-		if (idx == -1) {
+		pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+		shmem_t *seg = ashv_find_local(shmid);
+		if (seg == NULL) {
 			DBG("%s: shmid=%x does not exist locally", __PRETTY_FUNCTION__, shmid);
 			/* We do not rm non-local regions, but do not report an error for that. */
-			pthread_mutex_unlock(&mutex);
+			pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 			return 0;
 		}
 
-		if (shmem[idx].addr) {
+		if (seg->addr) {
 			// shmctl(2): The segment will actually be destroyed only
 			// after the last process detaches it (i.e., when the shm_nattch
 			// member of the associated structure shmid_ds is zero.
-			shmem[idx].markedForDeletion = true;
+			seg->markedForDeletion = true;
 		} else {
-			android_shmem_delete(idx);
+			android_shmem_delete(seg);
 		}
-		pthread_mutex_unlock(&mutex);
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 		return 0;
 	} else if (cmd == IPC_STAT) {
 		if (!buf) {
@@ -608,19 +804,19 @@ int shmctl(int shmid, int cmd, struct shmid_ds *buf)
 			return -1;
 		}
 
-		pthread_mutex_lock(&mutex);
-		int idx = ashv_find_local_index(shmid);
-		if (idx == -1) {
+		pthread_mutex_lock(&shmem_locks[ashv_bucket(shmid)]);
+		shmem_t *seg = ashv_find_local(shmid);
+		if (seg == NULL) {
 			DBG ("%s: ERROR: shmid %x does not exist", __PRETTY_FUNCTION__, shmid);
-			pthread_mutex_unlock (&mutex);
+			pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 			errno = EINVAL;
 			return -1;
 		}
 		/* Report max permissive mode */
 		memset(buf, 0, sizeof(struct shmid_ds));
-		buf->shm_segsz = shmem[idx].size;
+		buf->shm_segsz = seg->size;
 		buf->shm_nattch = 1;
-		buf->shm_perm.key = shmem[idx].key;
+		buf->shm_perm.key = seg->key;
 		buf->shm_perm.uid = geteuid();
 		buf->shm_perm.gid = getegid();
 		buf->shm_perm.cuid = geteuid();
@@ -628,7 +824,7 @@ int shmctl(int shmid, int cmd, struct shmid_ds *buf)
 		buf->shm_perm.mode = 0666;
 		buf->shm_perm.seq = 1;
 
-		pthread_mutex_unlock (&mutex);
+		pthread_mutex_unlock(&shmem_locks[ashv_bucket(shmid)]);
 		return 0;
 	}
 
@@ -0,0 +1,179 @@
+// Stress test of shm emulation: concurrent shmget/shmat/shmdt/IPC_RMID in threads and in forked processes.
+#include <errno.h>
+#include <pthread.h>
+#include <stdatomic.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/wait.h>
+#include <unistd.h>
+
+#include "shm.h"
+
+#define THREADS 8
+#define ITERATIONS 2000
+#define CHILDREN 4
+
+static atomic_int failures = 0;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "%s:%d: %s failed: ", __FILE__, __LINE__, #cond); \
+		fprintf(stderr, __VA_ARGS__); \
+		fprintf(stderr, " (errno %s)\n", strerror(errno)); \
+		atomic_fetch_add(&failures, 1); \
+	} \
+} while (0)
+
+static bool filled(const unsigned char *addr, size_t size, unsigned char value)
+{
+	for (size_t i = 0; i < size; i++)
+		if (addr[i] != value)
+			return false;
+	return true;
+}
+
+// Every thread creates, fills, checks and removes its own segments, removal happens before or after detaching.
+static void* thread_function(void *arg)
+{
+	unsigned int seed = (unsigned int) (uintptr_t) arg;
+	for (int i = 0; i < ITERATIONS; i++) {
+		size_t size = 1 + rand_r(&seed) % (64 * 1024);
+		unsigned char value = rand_r(&seed);
+		bool remove_attached = rand_r(&seed) & 1;
+
+		int shmid = shmget(IPC_PRIVATE, size, IPC_CREAT | 0600);
+		CHECK(shmid != -1, "shmget of %zu bytes", size);
+		if (shmid == -1)
+			continue;
+
+		unsigned char *addr = shmat(shmid, NULL, 0);
+		CHECK(addr != (void*) -1, "shmat of 0x%x", shmid);
+		if (addr == (void*) -1)
+			continue;
+
+		memset(addr, value, size);
+		CHECK(filled(addr, size, value), "content of 0x%x", shmid);
+
+		struct shmid_ds ds;
+		CHECK(shmctl(shmid, IPC_STAT, &ds) == 0 && ds.shm_segsz >= size, "IPC_STAT of 0x%x", shmid);
+
+		if (remove_attached)
+			CHECK(shmctl(shmid, IPC_RMID, NULL) == 0, "IPC_RMID of attached 0x%x", shmid);
+		CHECK(shmdt(addr) == 0, "shmdt of 0x%x", shmid);
+		if (!remove_attached)
+			CHECK(shmctl(shmid, IPC_RMID, NULL) == 0, "IPC_RMID of detached 0x%x", shmid);
+
+		errno = 0;
+		CHECK(shmat(shmid, NULL, 0) == (void*) -1 && errno == EINVAL, "shmat of removed 0x%x", shmid);
+	}
+	return NULL;
+}
+
+static void test_threads(void)
+{
+	pthread_t threads[THREADS];
+	for (int i = 0; i < THREADS; i++)
+		pthread_create(&threads[i], NULL, thread_function, (void*) (uintptr_t) (i + 1));
+	for (int i = 0; i < THREADS; i++)
+		pthread_join(threads[i], NULL);
+}
+
+static void test_key(void)
+{
+	key_t key = 0x7e570000 | (getpid() & 0xffff);
+	int shmid = shmget(key, 4096, IPC_CREAT | 0600);
+	CHECK(shmid != -1, "shmget with key 0x%x", key);
+	CHECK(shmget(key, 4096, 0600) == shmid, "second shmget with key 0x%x", key);
+	CHECK(shmctl(shmid, IPC_RMID, NULL) == 0, "IPC_RMID of 0x%x", shmid);
+}
+
+// Children attach segments of parent through its socket, concurrently with each other.
+static void test_processes(void)
+{
+	int shmids[THREADS];
+	unsigned char *addrs[THREADS];
+	pid_t children[CHILDREN];
+
+	for (int i = 0; i < THREADS; i++) {
+		shmids[i] = shmget(IPC_PRIVATE, 65536, IPC_CREAT | 0600);
+		addrs[i] = shmat(shmids[i], NULL, 0);
+		CHECK(shmids[i] != -1 && addrs[i] != (void*) -1, "segment %d of parent", i);
+		memset(addrs[i], i, 65536);
+	}
+
+	for (int c = 0; c < CHILDREN; c++) {
+		if ((children[c] = fork()) != 0)
+			continue;
+
+		for (int n = 0; n < ITERATIONS / 10; n++) {
+			int i = (n + c) % THREADS;
+			unsigned char *addr = shmat(shmids[i], NULL, 0);
+			CHECK(addr != (void*) -1, "shmat of parent's 0x%x", shmids[i]);
+			if (addr == (void*) -1)
+				continue;
+			CHECK(filled(addr, 65536, i), "content of parent's 0x%x", shmids[i]);
+			CHECK(shmdt(addr) == 0, "shmdt of parent's 0x%x", shmids[i]);
+		}
+		_exit(atomic_load(&failures) ? 1 : 0);
+	}
+
+	for (int c = 0; c < CHILDREN; c++) {
+		int status;
+		CHECK(waitpid(children[c], &status, 0) == children[c] && WIFEXITED(status) && WEXITSTATUS(status) == 0, "child %d", c);
+	}
+
+	for (int i = 0; i < THREADS; i++) {
+		shmctl(shmids[i], IPC_RMID, NULL);
+		shmdt(addrs[i]);
+	}
+}
+
+// Segment destroyed by its owner must not be attachable by other processes, even if they attached it before.
+static void test_removed_remote(void)
+{
+	int shmid = shmget(IPC_PRIVATE, 4096, IPC_CREAT | 0600);
+	int attached[2], removed[2];
+	char c = 0;
+	CHECK(shmid != -1 && pipe(attached) == 0 && pipe(removed) == 0, "setup");
+
+	pid_t child = fork();
+	if (child == 0) {
+		void *addr = shmat(shmid, NULL, 0);
+		CHECK(addr != (void*) -1 && shmdt(addr) == 0, "shmat of parent's 0x%x", shmid);
+		write(attached[1], &c, 1);
+		read(removed[0], &c, 1);
+
+		errno = 0;
+		CHECK(shmat(shmid, NULL, 0) == (void*) -1 && errno == EINVAL, "shmat of removed parent's 0x%x", shmid);
+		_exit(atomic_load(&failures) ? 1 : 0);
+	}
+
+	read(attached[0], &c, 1);
+	CHECK(shmctl(shmid, IPC_RMID, NULL) == 0, "IPC_RMID of 0x%x", shmid);
+	write(removed[1], &c, 1);
+
+	int status;
+	CHECK(waitpid(child, &status, 0) == child && WIFEXITED(status) && WEXITSTATUS(status) == 0, "child");
+	close(attached[0]);
+	close(attached[1]);
+	close(removed[0]);
+	close(removed[1]);
+}
+
+int main(void)
+{
+	test_threads();
+	test_key();
+	test_processes();
+	test_removed_remote();
+
+	if (atomic_load(&failures)) {
+		fprintf(stderr, "%d checks failed\n", atomic_load(&failures));
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
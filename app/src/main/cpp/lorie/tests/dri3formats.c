@@ -0,0 +1,123 @@
+// Checks DRI3 format list, modifiers of every format and which imports are accepted.
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <drm_fourcc.h>
+#include <android/hardware_buffer.h>
+
+typedef int Bool;
+typedef uint8_t CARD8;
+typedef uint32_t CARD32;
+typedef uint64_t CARD64;
+typedef void *ScreenPtr;
+#define TRUE 1
+#define FALSE 0
+#define unused __attribute__((unused))
+#define ARRAY_SIZE(a) (sizeof(a) / sizeof((a)[0]))
+#define log(prio, ...) ((void) 0)
+
+#include "dri3formats.h"
+
+static int failures = 0;
+
+#define CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: %s failed\n", __FILE__, __LINE__, #cond); \
+        failures++; \
+    } \
+} while (0)
+
+static void test_formats(void)
+{
+    CARD32 num_formats, *formats;
+
+    CHECK(lorieGetFormats(NULL, &num_formats, &formats));
+    CHECK(num_formats == 3);
+    CHECK(formats[0] == DRM_FORMAT_RGB565);
+    CHECK(formats[1] == DRM_FORMAT_XRGB8888);
+    CHECK(formats[2] == DRM_FORMAT_ARGB8888);
+    free(formats);
+}
+
+static void test_modifiers(void)
+{
+    const uint32_t supported[] = { DRM_FORMAT_RGB565, DRM_FORMAT_XRGB8888, DRM_FORMAT_ARGB8888 };
+    uint32_t num_modifiers;
+    uint64_t *modifiers;
+
+    for (size_t i = 0; i < ARRAY_SIZE(supported); i++) {
+        CHECK(lorieGetModifiers(NULL, supported[i], &num_modifiers, &modifiers));
+        CHECK(num_modifiers == 2);
+        CHECK(modifiers && modifiers[0] == AHARDWAREBUFFER_SOCKET_FD && modifiers[1] == RAW_MMAPPABLE_FD);
+        free(modifiers);
+    }
+
+    // Unknown format is not an error, it simply has no modifiers.
+    CHECK(lorieGetModifiers(NULL, DRM_FORMAT_XRGB2101010, &num_modifiers, &modifiers));
+    CHECK(num_modifiers == 0 && modifiers == NULL);
+}
+
+static void test_requests(void)
+{
+    CHECK(lorieCheckPixmapFromFds(1, 24, 32, RAW_MMAPPABLE_FD));
+    CHECK(lorieCheckPixmapFromFds(1, 32, 32, AHARDWAREBUFFER_SOCKET_FD));
+    CHECK(lorieCheckPixmapFromFds(1, 16, 16, RAW_MMAPPABLE_FD));
+
+    CHECK(!lorieCheckPixmapFromFds(2, 24, 32, RAW_MMAPPABLE_FD));
+    CHECK(!lorieCheckPixmapFromFds(1, 24, 32, 0));
+    CHECK(!lorieCheckPixmapFromFds(1, 24, 32, DRM_FORMAT_MOD_INVALID));
+    CHECK(!lorieCheckPixmapFromFds(1, 30, 32, RAW_MMAPPABLE_FD));
+    CHECK(!lorieCheckPixmapFromFds(1, 8, 8, RAW_MMAPPABLE_FD));
+    CHECK(!lorieCheckPixmapFromFds(1, 24, 24, RAW_MMAPPABLE_FD));
+    CHECK(!lorieCheckPixmapFromFds(1, 16, 32, RAW_MMAPPABLE_FD));
+    CHECK(!lorieCheckPixmapFromFds(1, 32, 16, AHARDWAREBUFFER_SOCKET_FD));
+}
+
+static void test_ahb_formats(void)
+{
+    CHECK(lorieCheckAHBFormat(16, 16, AHARDWAREBUFFER_FORMAT_R5G6B5_UNORM, FALSE));
+    CHECK(!lorieCheckAHBFormat(16, 16, AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, TRUE));
+    CHECK(!lorieCheckAHBFormat(16, 16, AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420, TRUE));
+
+    for (CARD8 depth = 24; depth <= 32; depth += 8) {
+        CHECK(lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM, FALSE));
+        CHECK(lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM, FALSE));
+        CHECK(lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_B8G8R8A8_UNORM, FALSE));
+        CHECK(!lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R5G6B5_UNORM, TRUE));
+        CHECK(!lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R8G8B8_UNORM, TRUE));
+        CHECK(!lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R10G10B10A2_UNORM, TRUE));
+        CHECK(!lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_R16G16B16A16_FLOAT, TRUE));
+        // YUV is converted with AHardwareBuffer_lockPlanes only.
+        CHECK(lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420, TRUE));
+        CHECK(!lorieCheckAHBFormat(depth, 32, AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420, FALSE));
+    }
+}
+
+static void test_strides(void)
+{
+    AHardwareBuffer_Desc desc = { .width = 100, .height = 50, .stride = 112, .format = AHARDWAREBUFFER_FORMAT_R5G6B5_UNORM };
+    CHECK(lorieAHBPixmapStride(&desc, 16) == 224);
+
+    desc.format = AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM;
+    CHECK(lorieAHBPixmapStride(&desc, 32) == 448);
+
+    // Converted RGB copy of YUV buffer is packed.
+    desc.format = AHARDWAREBUFFER_FORMAT_Y8Cb8Cr8_420;
+    CHECK(lorieAHBPixmapStride(&desc, 32) == 400);
+}
+
+int main(void)
+{
+    test_formats();
+    test_modifiers();
+    test_requests();
+    test_ahb_formats();
+    test_strides();
+
+    if (failures) {
+        fprintf(stderr, "%d checks failed\n", failures);
+        return 1;
+    }
+    printf("OK\n");
+    return 0;
+}
@@ -0,0 +1,210 @@
+package com.termux.x11;
+
+import android.content.ClipDescription;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Serves non-text content of X clipboard to Android apps.
+ * Content is requested from X server only when some app opens the uri, so copying a screenshot in X app
+ * does not transfer it until it is pasted somewhere.
+ */
+public class ClipboardProvider extends ContentProvider {
+    private static final String TAG = "ClipboardProvider";
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+    // Indexed by LorieView.ClipboardMime
+    static final String[] MIME_TYPES = { ClipDescription.MIMETYPE_TEXT_PLAIN, ClipDescription.MIMETYPE_TEXT_HTML, ClipDescription.MIMETYPE_TEXT_URILIST, "image/png" };
+    private static final String[] FILE_NAMES = { "clipboard.txt", "clipboard.html", "clipboard.uri", "clipboard.png" };
+
+    private static final Object lock = new Object();
+    private static int announcedMimes = 0;
+    private static int generation = 0;
+    private static final SparseArray<CompletableFuture<byte[]>> requests = new SparseArray<>();
+    private static IntConsumer requester = null;
+
+    /** Sets the way of requesting content from X server, it is called with ClipboardMime on the binder thread. */
+    static void setRequester(IntConsumer r) {
+        synchronized (lock) {
+            requester = r;
+        }
+    }
+
+    /** X clipboard content was changed, returns uri Android apps should use to get it. */
+    static Uri announce(Context ctx, int mimes) {
+        synchronized (lock) {
+            announcedMimes = mimes;
+            generation++;
+            for (int i = 0; i < requests.size(); i++)
+                requests.valueAt(i).completeExceptionally(new IOException("X clipboard was changed"));
+            requests.clear();
+            return Uri.parse("content://" + ctx.getPackageName() + ".clipboard/" + generation);
+        }
+    }
+
+    /** Content requested from X server has arrived. */
+    static void receive(int mime, byte[] data) {
+        synchronized (lock) {
+            CompletableFuture<byte[]> request = requests.get(mime);
+            requests.remove(mime);
+            if (request != null)
+                request.complete(data);
+        }
+    }
+
+    private static int generationOf(Uri uri) {
+        try {
+            return Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String[] getTypes(Uri uri, String filter) {
+        ArrayList<String> types = new ArrayList<>();
+        synchronized (lock) {
+            if (generationOf(uri) != generation)
+                return null;
+
+            for (int i = 0; i < MIME_TYPES.length; i++)
+                if ((announcedMimes & (1 << i)) != 0 && ClipDescription.compareMimeTypes(MIME_TYPES[i], filter))
+                    types.add(MIME_TYPES[i]);
+        }
+        return types.isEmpty() ? null : types.toArray(new String[0]);
+    }
+
+    private static int getMime(Uri uri, String filter) {
+        String[] types = getTypes(uri, filter);
+        if (types == null)
+            return -1;
+
+        // Text is only a fallback here, LorieView puts it to clip directly.
+        String type = types[types.length - 1];
+        for (int i = 0; i < MIME_TYPES.length; i++)
+            if (MIME_TYPES[i].equals(type))
+                return i;
+        return -1;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable @Override
+    public String getType(@NonNull Uri uri) {
+        String[] types = getTypes(uri, "*/*");
+        return types == null ? null : types[types.length - 1];
+    }
+
+    @Nullable @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        return getTypes(uri, mimeTypeFilter);
+    }
+
+    @Nullable @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        int mime = getMime(uri, "*/*");
+        if (mime < 0)
+            return null;
+
+        // Size is not known until content is fetched from X server.
+        MatrixCursor cursor = new MatrixCursor(new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE });
+        cursor.addRow(new Object[] { FILE_NAMES[mime], null });
+        return cursor;
+    }
+
+    @Nullable @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        return openTypedAssetFile(uri, "*/*", null).getParcelFileDescriptor();
+    }
+
+    @NonNull @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter, @Nullable Bundle opts) throws FileNotFoundException {
+        int mime = getMime(uri, mimeTypeFilter);
+        CompletableFuture<byte[]> request;
+        IntConsumer r;
+        boolean pending;
+        ParcelFileDescriptor[] pipe;
+
+        if (mime < 0)
+            throw new FileNotFoundException("X clipboard does not contain " + mimeTypeFilter);
+
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+
+        synchronized (lock) {
+            request = requests.get(mime);
+            pending = request != null;
+            if (!pending) {
+                request = new CompletableFuture<>();
+                requests.put(mime, request);
+            }
+            r = requester;
+        }
+
+        if (!pending && r != null)
+            r.accept(mime);
+
+        CompletableFuture<byte[]> content = request;
+        new Thread(() -> {
+            byte[] data;
+            try {
+                data = content.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to get " + MIME_TYPES[mime] + " content of X clipboard", e);
+                try {
+                    pipe[1].closeWithError("Failed to get content of X clipboard");
+                } catch (IOException ignored) {}
+                return;
+            }
+
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                out.write(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + MIME_TYPES[mime] + " content of X clipboard", e);
+            }
+        }).start();
+
+        return new AssetFileDescriptor(pipe[0], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Nullable @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+}
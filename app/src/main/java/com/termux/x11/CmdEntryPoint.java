@@ -1,6 +1,7 @@
 package com.termux.x11;
 
 import static android.system.Os.getuid;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
 import static android.system.Os.getenv;
 
 import android.annotation.SuppressLint;
@@ -10,6 +11,9 @@ import android.content.Context;
 import android.content.IIntentReceiver;
 import android.content.IIntentSender;
 import android.content.Intent;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -23,6 +27,8 @@ import android.view.Surface;
 import androidx.annotation.Keep;
 
 import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ConnectException;
@@ -30,15 +36,30 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Keep @SuppressLint({"StaticFieldLeak", "UnsafeDynamicallyLoadedCode"})
 public class CmdEntryPoint extends ICmdEntryInterface.Stub {
     public static final String ACTION_START = "com.termux.x11.CmdEntryPoint.ACTION_START";
-    public static final int PORT = 7892;
+    public static final String SOCKET_NAME = "com.termux.x11.display"; // Followed by display number, abstract namespace
+    public static final int PORT = 7892; // Loopback fallback, followed by display number too
+    public static final int MAX_DISPLAYS = 64;
     public static final byte[] MAGIC = "0xDEADBEEF".getBytes();
+    public static final byte[] STATS_MAGIC = "0xFEEDSTAT".getBytes(); // Must be as long as MAGIC
     private static final Handler handler;
     public static Context ctx;
+    private static boolean ready = false;
+    private static ICmdEntryCallback callback = null;
+    private static IBinder.DeathRecipient callbackDeathRecipient = null;
+    private static LocalServerSocket listeningSocket = null;
+    private static int display = 0;
+    private static int targetDisplay = -1; // Activity side, display which activity works with, -1 means any
+    private final Runnable broadcastLoop = this::sendBroadcastDelayed;
+    // Serves requests coming to listening socket in server and probes servers in activity, off the main thread.
+    private static final ExecutorService requestExecutor = Executors.newSingleThreadExecutor();
 
     /**
      * Command-line entry point.
@@ -47,6 +68,11 @@ public class CmdEntryPoint extends ICmdEntryInterface.Stub {
      */
     public static void main(String[] args) {
         android.util.Log.i("CmdEntryPoint", "commit " + BuildConfig.COMMIT);
+        if (Arrays.asList(args).contains("-render-stats")) {
+            printRenderStats(displayNumber(args, getenv("DISPLAY")), Arrays.asList(args).contains("-reset"));
+            return;
+        }
+
         handler.post(() -> new CmdEntryPoint(args));
         Looper.loop();
     }
@@ -55,7 +81,8 @@ public class CmdEntryPoint extends ICmdEntryInterface.Stub {
         if (!start(args))
             System.exit(1);
 
-        spawnListeningThread();
+        display = displayNumber(args, null);
+        listen(display);
         sendBroadcastDelayed();
     }
 
@@ -71,6 +98,7 @@ public class CmdEntryPoint extends ICmdEntryInterface.Stub {
 
         Intent intent = new Intent(ACTION_START);
         intent.putExtra("", bundle);
+        intent.putExtra("display", display);
         intent.setPackage(targetPackage);
 
         if (getuid() == 0 || getuid() == 2000)
@@ -122,62 +150,253 @@ public class CmdEntryPoint extends ICmdEntryInterface.Stub {
         }
     }
 
-    // In some cases Android Activity part can not connect opened port.
-    // In this case opened port works like a lock file.
+    // In some cases Android Activity part can not connect listening socket.
+    // Broadcasting stops once activity sets callback and starts again if it dies or clears callback.
+    // Connection of destroyed activity may outlive it, so only callback tells if somebody needs the binder.
     private void sendBroadcastDelayed() {
-        if (!connected())
-            sendBroadcast();
+        if (callback != null)
+            return;
+
+        sendBroadcast();
+
+        handler.postDelayed(broadcastLoop, 1000);
+    }
 
-        handler.postDelayed(this::sendBroadcastDelayed, 1000);
+    /** Called from native code on X server thread when it is ready to accept connections. */
+    @SuppressWarnings("unused")
+    private static void serverReady() {
+        handler.post(() -> {
+            ready = true;
+            notifyReady();
+        });
+    }
+
+    private static void notifyReady() {
+        if (!ready || callback == null)
+            return;
+
+        try {
+            callback.onServerReady();
+        } catch (RemoteException e) {
+            Log.e("CmdEntryPoint", "Failed to notify activity", e);
+        }
     }
 
-    void spawnListeningThread() {
+    /** Sets activity callback, `null` clears it (activity is destroyed) and resumes broadcasting. */
+    @Override
+    public void setCallback(ICmdEntryCallback cb) {
+        handler.post(() -> {
+            if (callback != null)
+                callback.asBinder().unlinkToDeath(callbackDeathRecipient, 0);
+            callback = null;
+            callbackDeathRecipient = null;
+
+            if (cb != null) {
+                IBinder.DeathRecipient recipient = () -> handler.post(() -> {
+                    if (callback != cb)
+                        return;
+
+                    Log.i("CmdEntryPoint", "Activity is gone, broadcasting again");
+                    callback = null;
+                    callbackDeathRecipient = null;
+                    handler.removeCallbacks(broadcastLoop);
+                    sendBroadcastDelayed();
+                });
+
+                try {
+                    cb.asBinder().linkToDeath(recipient, 0);
+                    callback = cb;
+                    callbackDeathRecipient = recipient;
+                } catch (RemoteException e) {
+                    Log.e("CmdEntryPoint", "Activity died before setting callback", e);
+                }
+            }
+
+            handler.removeCallbacks(broadcastLoop);
+            if (callback == null)
+                sendBroadcastDelayed();
+            else
+                notifyReady();
+        });
+    }
+
+    /** Parses display number from X server arguments (or `fallback` like $DISPLAY), the server uses :0 by default. */
+    private static int displayNumber(String[] args, String fallback) {
+        String display = fallback;
+        for (String arg : args)
+            if (arg.startsWith(":"))
+                display = arg;
+
+        try {
+            display = display.substring(display.lastIndexOf(':') + 1);
+            int dot = display.indexOf('.');
+            return Integer.parseInt(dot == -1 ? display : display.substring(0, dot));
+        } catch (NullPointerException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /*
+        If the application has not been launched before running termux-x11, the initial sendBroadcast
+        had no effect because no one received the intent. To allow the application to reconnect freely,
+        we listen on abstract unix socket `SOCKET_NAME` + display number and when receiving a magic phrase,
+        we send another intent. Every display has its own socket, so multiple servers do not collide.
+        The socket is watched by main looper, but requests are read and answered on `requestExecutor`,
+        so silent clients can not stall the looper.
+        Application can not connect abstract socket if it runs in different SELinux domain than server,
+        so loopback TCP port `PORT` + display number is listened too.
+     */
+    private void listen(int display) {
+        String name = SOCKET_NAME + display;
+        try {
+            listeningSocket = new LocalServerSocket(name);
+            Log.i("CmdEntryPoint", "Listening @" + name);
+            Looper.getMainLooper().getQueue().addOnFileDescriptorEventListener(listeningSocket.getFileDescriptor(), EVENT_INPUT, (fd, events) -> {
+                LocalSocket client;
+                try {
+                    client = listeningSocket.accept();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                    return EVENT_INPUT;
+                }
+
+                requestExecutor.execute(() -> {
+                    try (LocalSocket c = client) {
+                        // Magic is written right after connecting, timeout only protects executor from stuck clients.
+                        c.setSoTimeout(1000);
+                        handleRequest(c.getInputStream(), c.getOutputStream());
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    }
+                });
+                return EVENT_INPUT;
+            });
+        } catch (IOException e) {
+            Log.e("CmdEntryPoint", "Failed to listen @" + name + ", is display :" + display + " already used?", e);
+        }
+
         new Thread(() -> { // New thread is needed to avoid android.os.NetworkOnMainThreadException
-            /*
-                The purpose of this function is simple. If the application has not been launched
-                before running termux-x11, the initial sendBroadcast had no effect because no one
-                received the intent. To allow the application to reconnect freely, we will listen on
-                port `PORT` and when receiving a magic phrase, we will send another intent.
-             */
-            Log.e("CmdEntryPoint", "Listening port " + PORT);
-            try (ServerSocket listeningSocket =
-                         new ServerSocket(PORT, 0, InetAddress.getByName("127.0.0.1"))) {
-                listeningSocket.setReuseAddress(true);
-                while(true) {
-                    try (Socket client = listeningSocket.accept()) {
-                        Log.e("CmdEntryPoint", "Somebody connected!");
-                        // We should ensure that it is some
-                        byte[] b = new byte[MAGIC.length];
-                        DataInputStream reader = new DataInputStream(client.getInputStream());
-                        reader.readFully(b);
-                        if (Arrays.equals(MAGIC, b)) {
-                            Log.e("CmdEntryPoint", "New client connection!");
-                            sendBroadcast();
-                        }
+            Log.i("CmdEntryPoint", "Listening port " + (PORT + display));
+            try (ServerSocket tcpSocket = new ServerSocket(PORT + display, 0, InetAddress.getByName("127.0.0.1"))) {
+                tcpSocket.setReuseAddress(true);
+                while (true) {
+                    try (Socket client = tcpSocket.accept()) {
+                        client.setSoTimeout(1000);
+                        handleRequest(client.getInputStream(), client.getOutputStream());
                     } catch (Exception e) {
                         e.printStackTrace(System.err);
                     }
                 }
             } catch (Exception e) {
-                e.printStackTrace(System.err);
+                Log.e("CmdEntryPoint", "Failed to listen port " + (PORT + display), e);
             }
         }).start();
     }
 
+    private void handleRequest(InputStream in, OutputStream out) throws IOException {
+        byte[] b = new byte[MAGIC.length];
+        DataInputStream reader = new DataInputStream(in);
+        reader.readFully(b);
+        if (Arrays.equals(MAGIC, b)) {
+            Log.i("CmdEntryPoint", "New client connection!");
+            handler.post(this::sendBroadcast);
+        } else if (Arrays.equals(STATS_MAGIC, b))
+            out.write(getRenderStats(reader.readBoolean()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static LocalSocket connect(int display) throws IOException {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(SOCKET_NAME + display));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /** Sets display which activity works with, ACTION_START of other servers is ignored then. */
+    public static void setTargetDisplay(int display) {
+        targetDisplay = display;
+    }
+
+    public static int getTargetDisplay() {
+        return targetDisplay;
+    }
+
+    /**
+     * Asks running X server of target display to send its binder again.
+     * Displays are probed in order and the first server found is asked if there is no target display yet.
+     * Connecting may block if listen backlog of the server is full, so it is done on `requestExecutor`,
+     * loopback TCP port is tried only if abstract socket can not be connected.
+     */
     public static void requestConnection() {
         System.err.println("Requesting connection...");
-        new Thread(() -> { // New thread is needed to avoid android.os.NetworkOnMainThreadException
-            try (Socket socket = new Socket("127.0.0.1", CmdEntryPoint.PORT)) {
-                socket.getOutputStream().write(CmdEntryPoint.MAGIC);
-            } catch (ConnectException e) {
-                if (e.getMessage() != null && e.getMessage().contains("Connection refused")) {
-                    Log.e("CmdEntryPoint", "ECONNREFUSED: Connection has been refused by the server");
-                } else
+        int target = targetDisplay;
+        int first = target >= 0 ? target : 0, last = target >= 0 ? target : MAX_DISPLAYS - 1;
+        requestExecutor.execute(() -> {
+            for (int d = first; d <= last; d++) {
+                LocalSocket socket;
+                try {
+                    socket = connect(d);
+                } catch (IOException e) {
+                    continue; // ECONNREFUSED or EACCES, nobody listens this display or we are not allowed to connect it
+                }
+
+                try {
+                    socket.getOutputStream().write(CmdEntryPoint.MAGIC);
+                } catch (IOException e) {
                     Log.e("CmdEntryPoint", "Something went wrong when we requested connection", e);
-            } catch (Exception e) {
-                Log.e("CmdEntryPoint", "Something went wrong when we requested connection", e);
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+                return;
             }
-        }).start();
+
+            for (int d = first; d <= last; d++) {
+                try (Socket socket = new Socket("127.0.0.1", PORT + d)) {
+                    socket.getOutputStream().write(CmdEntryPoint.MAGIC);
+                    return;
+                } catch (ConnectException e) {
+                    // Nobody listens this display
+                } catch (Exception e) {
+                    Log.e("CmdEntryPoint", "Something went wrong when we requested connection", e);
+                    return;
+                }
+            }
+
+            Log.e("CmdEntryPoint", "ECONNREFUSED: No X server is listening");
+        });
+    }
+
+    /**
+     * Prints frame timing statistics of running X server.
+     * Server is reached through the same socket which is used to request connection.
+     */
+    private static void printRenderStats(int display, boolean reset) {
+        LocalSocket socket;
+        try {
+            socket = connect(display);
+        } catch (IOException e) {
+            System.err.println("Termux:X11 server is not running on display :" + display);
+            return;
+        }
+
+        try (LocalSocket s = socket) {
+            s.getOutputStream().write(STATS_MAGIC);
+            s.getOutputStream().write(reset ? 1 : 0);
+            s.shutdownOutput();
+
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[4096];
+            for (int len; (len = in.read(buf)) != -1;)
+                System.out.write(buf, 0, len);
+            System.out.flush();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
     }
 
     /** @noinspection DataFlowIssue*/
@@ -214,7 +433,7 @@ public class CmdEntryPoint extends ICmdEntryInterface.Stub {
     public native void windowChanged(Surface surface, String name);
     public native ParcelFileDescriptor getXConnection();
     public native ParcelFileDescriptor getLogcatOutput();
-    private static native boolean connected();
+    public native String getRenderStats(boolean reset);
 
     static {
         try {
@@ -179,6 +179,7 @@ public class LoriePreferences extends AppCompatActivity {
             findPreference("touchMode").setSummary(mode);
             findPreference("scaleTouchpad").setVisible("1".equals(p.getString("touchMode", "1")) && !"native".equals(p.getString("displayResolutionMode", "native")));
             findPreference("showMouseHelper").setEnabled("1".equals(p.getString("touchMode", "1")));
+            findPreference("hardwareCursor").setEnabled(!p.getBoolean("pointerCapture", false));
 
             boolean requestNotificationPermissionVisible =
                     Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
@@ -578,8 +579,12 @@ public class LoriePreferences extends AppCompatActivity {
                             case "scaleTouchpad":
                             case "showStylusClickOverride":
                             case "showMouseHelper":
+                            case "hardwareCursor":
                             case "pointerCapture":
                             case "tapToMove":
+                            case "batchInputEvents":
+                            case "sharedMemoryInput":
+                            case "highFidelityInput":
                             case "preferScancodes":
                             case "dexMetaKeyCapture":
                             case "filterOutWinkey":
@@ -8,14 +8,19 @@ import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
+import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
+import android.view.PointerIcon;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -25,6 +30,9 @@ import androidx.annotation.NonNull;
 
 import com.termux.x11.input.InputStub;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.regex.PatternSyntaxException;
 
@@ -39,9 +47,25 @@ public class LorieView extends SurfaceView implements InputStub {
         int BGRA_8888 = 5; // Stands for HAL_PIXEL_FORMAT_BGRA_8888
     }
 
+    // Must be in sync with lorieClipboardMime in lorie.h
+    interface ClipboardMime {
+        int TEXT = 0;
+        int HTML = 1;
+        int URI_LIST = 2;
+        int PNG = 3;
+    }
+
     private ClipboardManager clipboard;
     private long lastClipboardTimestamp = System.currentTimeMillis();
     private static boolean clipboardSyncEnabled = false;
+    private int xClipboardMimes = 0;
+    private Bitmap xCursor = null;
+    private int xCursorHotX = 0, xCursorHotY = 0;
+    private int xScreenWidth = 0;
+    private boolean hardwareCursor = false;
+    private boolean hardwareCursorActive = false;
+    private boolean pointerFromMouse = false;
+    private String xRenderStats = "";
     private static boolean hardwareKbdScancodesWorkaround = false;
     private Callback mCallback;
     private final Point p = new Point();
@@ -77,6 +101,7 @@ public class LorieView extends SurfaceView implements InputStub {
     private void init() {
         getHolder().addCallback(mSurfaceCallback);
         clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        ClipboardProvider.setRequester(mime -> post(() -> sendClipboardRequest(mime)));
     }
 
     public void setCallback(Callback callback) {
@@ -216,11 +241,12 @@ public class LorieView extends SurfaceView implements InputStub {
         hardwareKbdScancodesWorkaround = p.getBoolean("hardwareKbdScancodesWorkaround", true);
         clipboardSyncEnabled = p.getBoolean("clipboardEnable", false);
         setClipboardSyncEnabled(clipboardSyncEnabled, clipboardSyncEnabled);
+        hardwareCursor = p.getBoolean("hardwareCursor", false) && !p.getBoolean("pointerCapture", false);
+        updateHardwareCursor();
     }
 
-    // It is used in native code
-    void setClipboardText(String text) {
-        clipboard.setPrimaryClip(ClipData.newPlainText("X11 clipboard", text));
+    private void setPrimaryClip(ClipData clip) {
+        clipboard.setPrimaryClip(clip);
 
         // Android does not send PrimaryClipChanged event to the window which posted event
         // But in the case we are owning focus and clipboard is unchanged it will be replaced by the same value on X server side.
@@ -228,21 +254,198 @@ public class LorieView extends SurfaceView implements InputStub {
         lastClipboardTimestamp = System.currentTimeMillis() + 150;
     }
 
+    // It is used in native code
+    void setClipboardText(String text) {
+        if ((xClipboardMimes & ~(1 << ClipboardMime.TEXT)) == 0) {
+            setPrimaryClip(ClipData.newPlainText("X11 clipboard", text));
+            return;
+        }
+
+        // Other types of content are fetched from X server only when some app asks ClipboardProvider for them.
+        Uri uri = ClipboardProvider.announce(getContext(), xClipboardMimes);
+        ClipDescription desc = new ClipDescription("X11 clipboard", getClipMimeTypes(xClipboardMimes));
+        setPrimaryClip(new ClipData(desc, new ClipData.Item(text, null, uri)));
+    }
+
     /** @noinspection unused*/ // It is used in native code
-    void requestClipboard() {
-        if (!clipboardSyncEnabled) {
-            sendClipboardEvent("".getBytes(StandardCharsets.UTF_8));
+    void setClipboardMimes(int mimes) {
+        xClipboardMimes = mimes;
+
+        // Text content will be sent by X server right after announcement, setClipboardText will create the clip.
+        if ((mimes & (1 << ClipboardMime.TEXT)) != 0 || mimes == 0)
+            return;
+
+        Uri uri = ClipboardProvider.announce(getContext(), mimes);
+        ClipDescription desc = new ClipDescription("X11 clipboard", getClipMimeTypes(mimes));
+        setPrimaryClip(new ClipData(desc, new ClipData.Item(uri)));
+    }
+
+    /** @noinspection unused*/ // It is used in native code
+    void receiveClipboardData(int mime, byte[] data) {
+        ClipboardProvider.receive(mime, data);
+    }
+
+    private static String[] getClipMimeTypes(int mimes) {
+        String[] types = new String[Integer.bitCount(mimes)];
+        for (int i = 0, n = 0; i < ClipboardProvider.MIME_TYPES.length; i++)
+            if ((mimes & (1 << i)) != 0)
+                types[n++] = ClipboardProvider.MIME_TYPES[i];
+        return types;
+    }
+
+    private static int getClipboardMimes(ClipDescription desc) {
+        int mimes = 0;
+        if (desc.hasMimeType(ClipDescription.MIMETYPE_TEXT_PLAIN))
+            mimes |= 1 << ClipboardMime.TEXT;
+        if (desc.hasMimeType(ClipDescription.MIMETYPE_TEXT_HTML))
+            mimes |= (1 << ClipboardMime.HTML) | (1 << ClipboardMime.TEXT);
+        if (desc.hasMimeType(ClipDescription.MIMETYPE_TEXT_URILIST))
+            mimes |= 1 << ClipboardMime.URI_LIST;
+        if (desc.hasMimeType("image/*"))
+            mimes |= 1 << ClipboardMime.PNG;
+        return mimes;
+    }
+
+    /** @noinspection unused*/ // It is used in native code
+    void requestClipboard(int mime) {
+        ClipData clip = clipboardSyncEnabled ? clipboard.getPrimaryClip() : null;
+        ClipData.Item item = (clip != null && clip.getItemCount() > 0) ? clip.getItemAt(0) : null;
+        if (item == null) {
+            sendClipboardEvent(mime, new byte[0]);
+            return;
+        }
+
+        if (mime == ClipboardMime.PNG) {
+            Uri uri = item.getUri();
+            // Reading content provider of other app may take a while, it should not block UI thread.
+            new Thread(() -> {
+                byte[] data = readClipboardImage(uri, clip.getDescription());
+                post(() -> sendClipboardEvent(mime, data));
+            }).start();
             return;
         }
 
-        CharSequence clip = clipboard.getText();
-        if (clip != null) {
-            String text = String.valueOf(clipboard.getText());
-            sendClipboardEvent(text.getBytes(StandardCharsets.UTF_8));
-            Log.d("CLIP", "sending clipboard contents: " + text);
+        String text = null;
+        if (mime == ClipboardMime.TEXT)
+            text = item.coerceToText(getContext()).toString();
+        else if (mime == ClipboardMime.HTML)
+            text = item.getHtmlText();
+        else if (mime == ClipboardMime.URI_LIST && item.getUri() != null)
+            text = item.getUri().toString() + "\r\n";
+
+        byte[] data = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        sendClipboardEvent(mime, data);
+        Log.d("CLIP", "sending clipboard contents (" + data.length + " bytes)");
+    }
+
+    private byte[] readClipboardImage(Uri uri, ClipDescription desc) {
+        if (uri == null)
+            return new byte[0];
+
+        try (InputStream in = getContext().getContentResolver().openInputStream(uri);
+             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            if (in == null)
+                return new byte[0];
+
+            if (desc.hasMimeType("image/png")) {
+                byte[] buffer = new byte[65536];
+                int count;
+                while ((count = in.read(buffer)) > 0)
+                    out.write(buffer, 0, count);
+            } else {
+                Bitmap bitmap = BitmapFactory.decodeStream(in);
+                if (bitmap == null)
+                    return new byte[0];
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                bitmap.recycle();
+            }
+
+            return out.toByteArray();
+        } catch (Exception e) {
+            Log.e("CLIP", "Failed to read clipboard image", e);
+            return new byte[0];
         }
     }
 
+    /** @noinspection unused*/ // It is used in native code
+    void setXCursor(int width, int height, int xhot, int yhot, byte[] pixels) {
+        // Pixels are premultiplied RGBA, exactly what ARGB_8888 bitmap keeps in memory.
+        Bitmap cursor = null;
+        if (width > 0 && height > 0) {
+            cursor = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            cursor.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+        }
+
+        xCursor = cursor;
+        xCursorHotX = xhot;
+        xCursorHotY = yhot;
+        updatePointerIcon();
+    }
+
+    /**
+     * Android shows pointer icon only for real mouse, it is hidden while pointer is captured or touchscreen is used as trackpad.
+     * In these cases X server should draw cursor itself.
+     */
+    public void setPointerFromMouse(boolean fromMouse) {
+        if (pointerFromMouse == fromMouse)
+            return;
+
+        pointerFromMouse = fromMouse;
+        updateHardwareCursor();
+    }
+
+    @Override
+    public void onPointerCaptureChange(boolean hasCapture) {
+        super.onPointerCaptureChange(hasCapture);
+        updateHardwareCursor();
+    }
+
+    private void updateHardwareCursor() {
+        hardwareCursorActive = hardwareCursor && pointerFromMouse && !hasPointerCapture();
+        setHardwareCursor(hardwareCursorActive);
+        updatePointerIcon();
+    }
+
+    /**
+     * In hardware cursor mode X cursor is shown as Android pointer icon, so moving it does not need redrawing X screen.
+     * Otherwise Android pointer is hidden and X server draws cursor itself.
+     */
+    private void updatePointerIcon() {
+        if (!hardwareCursorActive || xCursor == null) {
+            setPointerIcon(PointerIcon.getSystemIcon(getContext(), PointerIcon.TYPE_NULL));
+            return;
+        }
+
+        // X screen is scaled to fit the view.
+        float scale = xScreenWidth > 0 && getWidth() > 0 ? (float) getWidth() / xScreenWidth : 1;
+        Bitmap icon = scale == 1 ? xCursor : Bitmap.createScaledBitmap(xCursor,
+                Math.max(1, Math.round(xCursor.getWidth() * scale)), Math.max(1, Math.round(xCursor.getHeight() * scale)), true);
+        setPointerIcon(PointerIcon.create(icon, xCursorHotX * scale, xCursorHotY * scale));
+    }
+
+    /** @noinspection unused*/ // It is used in native code
+    void ringXBell(int volume, int pitch, int duration) {
+        if (volume > 0)
+            performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
+    }
+
+    /** @noinspection unused*/ // It is used in native code
+    void xScreenModeChanged(int width, int height, int framerate) {
+        Log.d("LorieView", "X screen mode changed to " + width + "x" + height + (framerate > 0 ? "@" + framerate : ""));
+        xScreenWidth = width;
+        updatePointerIcon();
+    }
+
+    /** @noinspection unused*/ // It is used in native code
+    void setXRenderStats(String stats) {
+        xRenderStats = stats;
+    }
+
+    /** Render statistics X server reported the last time, it sends them every 5 seconds while updates are enabled with setXRenderStatsUpdates. */
+    public String getXRenderStats() {
+        return xRenderStats;
+    }
+
     public void handleClipboardChange() {
         checkForClipboardChange();
     }
@@ -250,12 +453,24 @@ public class LorieView extends SurfaceView implements InputStub {
     public void checkForClipboardChange() {
         ClipDescription desc = clipboard.getPrimaryClipDescription();
         if (clipboardSyncEnabled && desc != null &&
-                lastClipboardTimestamp < desc.getTimestamp() &&
-                desc.getMimeTypeCount() == 1 &&
-                desc.hasMimeType(ClipDescription.MIMETYPE_TEXT_PLAIN)) {
+                lastClipboardTimestamp < desc.getTimestamp()) {
+            int mimes = getClipboardMimes(desc);
+            if (mimes == 0)
+                return;
+
+            // Fingerprint of text lets X server skip announcements of content it already has.
+            // It is computed in native code right from the String, without UTF-8 copy.
+            String text = null;
+            ClipData clip = clipboard.getPrimaryClip();
+            if ((mimes & (1 << ClipboardMime.TEXT)) != 0 && clip != null && clip.getItemCount() > 0) {
+                CharSequence t = clip.getItemAt(0).getText();
+                if (t != null)
+                    text = t.toString();
+            }
+
             lastClipboardTimestamp = desc.getTimestamp();
-            sendClipboardAnnounce();
-            Log.d("CLIP", "sending clipboard announce");
+            sendClipboardAnnounce(mimes, text);
+            Log.d("CLIP", "sending clipboard announce (mimes " + mimes + ")");
         }
     }
 
@@ -274,18 +489,25 @@ public class LorieView extends SurfaceView implements InputStub {
             clipboard.removePrimaryClipChangedListener(clipboardListener);
     }
 
-    static native void connect(int fd);
+    static native void connect(int fd, boolean sharedMemoryTransport);
+    static native boolean connected();
+    static native void setHardwareCursor(boolean enable);
+    static native void setXRenderStatsUpdates(boolean enable);
     native void handleXEvents();
     static native void startLogcat(int fd);
     static native void setClipboardSyncEnabled(boolean enabled, boolean ignored);
-    public native void sendClipboardAnnounce();
-    public native void sendClipboardEvent(byte[] text);
+    public native void sendClipboardAnnounce(int mimes, String text);
+    public native void sendClipboardRequest(int mime);
+    public native void sendClipboardEvent(int mime, byte[] data);
     static native void sendWindowChange(int width, int height, int framerate);
-    public native void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative);
-    public native void sendTouchEvent(int action, int id, int x, int y);
+    static native void sendVsync(long frameTimeNanos, long periodNanos);
+    public native void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative, long time);
+    public native void sendTouchEvent(int action, int id, int x, int y, long time);
     public native boolean sendKeyEvent(int scanCode, int keyCode, boolean keyDown);
     public native void sendTextEvent(byte[] text);
     public native void sendUnicodeEvent(int code);
+    public native void startEventBatch();
+    public native void flushEventBatch();
 
     static {
         System.loadLibrary("Xlorie");
@@ -1,6 +1,8 @@
 package com.termux.x11;
 
 import static android.Manifest.permission.WRITE_SECURE_SETTINGS;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.os.Build.VERSION.SDK_INT;
 import static android.view.InputDevice.KEYBOARD_TYPE_ALPHABETIC;
@@ -32,6 +34,8 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -40,6 +44,7 @@ import android.provider.Settings;
 import android.service.notification.StatusBarNotification;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.DragEvent;
 import android.view.InputDevice;
 import android.view.KeyEvent;
@@ -72,6 +77,7 @@ import com.termux.x11.utils.KeyInterceptor;
 import com.termux.x11.utils.TermuxX11ExtraKeys;
 import com.termux.x11.utils.X11ToolbarViewPager;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Objects;
 
@@ -84,12 +90,51 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
     FrameLayout frm;
     private TouchInputHandler mInputHandler;
     private ICmdEntryInterface service = null;
+    private final ICmdEntryCallback serverCallback = new ICmdEntryCallback.Stub() {
+        @Override public void onServerReady() {
+            runOnUiThread(MainActivity.this::tryConnect);
+        }
+    };
+    /*
+     * X server aligns its redraw timer to vsync timestamps sampled here. Nominal refresh rate is not exact and display
+     * can switch it, so phase is sampled again every second and period is measured between samples.
+     * Sampling stops while there is no surface, the next surface change starts it again.
+     */
+    private static class VsyncCallback implements Choreographer.FrameCallback {
+        private static final long SAMPLE_DELAY = 1000;
+        private final LorieView view;
+        long lastFrameNanos = 0;
+
+        VsyncCallback(LorieView view) {
+            this.view = view;
+        }
+
+        @Override public void doFrame(long frameTimeNanos) {
+            if (view.getDisplay() == null || !view.getHolder().getSurface().isValid()) {
+                lastFrameNanos = 0;
+                return;
+            }
+
+            long period = (long) (1000000000 / view.getDisplay().getRefreshRate());
+            long elapsed = frameTimeNanos - lastFrameNanos;
+            long frames = lastFrameNanos == 0 ? 0 : Math.round((double) elapsed / period);
+            // Samples taken across refresh rate switch do not match nominal period, these are not used.
+            if (frames > 0 && Math.abs(elapsed / frames - period) < period / 10)
+                period = elapsed / frames;
+
+            lastFrameNanos = frameTimeNanos;
+            LorieView.sendVsync(frameTimeNanos, period);
+            Choreographer.getInstance().postFrameCallbackDelayed(this, SAMPLE_DELAY);
+        }
+    }
+    private VsyncCallback vsyncCallback;
     public TermuxX11ExtraKeys mExtraKeys;
     private Notification mNotification;
     private final int mNotificationId = 7892;
     NotificationManager mNotificationManager;
     static InputMethodManager inputMethodManager;
     private boolean mClientConnected = false;
+    private ParcelFileDescriptor xEventsFd = null;
     private View.OnKeyListener mLorieKeyListener;
     boolean captureVolumeKeys = false;
     private boolean filterOutWinKey = false;
@@ -108,10 +153,20 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
             if (ACTION_START.equals(intent.getAction())) {
                 try {
                     Log.v("LorieBroadcastReceiver", "Got new ACTION_START intent");
+                    // Every running server broadcasts until some activity takes it, keep working with the same one.
+                    int display = intent.getIntExtra("display", 0);
+                    if (CmdEntryPoint.getTargetDisplay() != -1 && CmdEntryPoint.getTargetDisplay() != display) {
+                        Log.v("LorieBroadcastReceiver", "Ignoring X server of display :" + display);
+                        return;
+                    }
+                    CmdEntryPoint.setTargetDisplay(display);
+
                     IBinder b = Objects.requireNonNull(intent.getBundleExtra("")).getBinder("");
                     service = ICmdEntryInterface.Stub.asInterface(b);
                     Objects.requireNonNull(service).asBinder().linkToDeath(() -> {
                         service = null;
+                        // Server is gone, take the next one started on any display.
+                        CmdEntryPoint.setTargetDisplay(-1);
                         CmdEntryPoint.requestConnection();
 
                         Log.v("Lorie", "Disconnected");
@@ -224,6 +279,7 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
         lorieParent.setOnCapturedPointerListener((v, e) -> mInputHandler.handleTouchEvent(lorieView, lorieView, e));
         lorieView.setOnKeyListener(mLorieKeyListener);
 
+        vsyncCallback = new VsyncCallback(lorieView);
         lorieView.setCallback((sfc, surfaceWidth, surfaceHeight, screenWidth, screenHeight) -> {
             int framerate = (int) ((lorieView.getDisplay() != null) ? lorieView.getDisplay().getRefreshRate() : 30);
 
@@ -231,6 +287,11 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
             mInputHandler.handleClientSizeChanged(screenWidth, screenHeight);
             LorieView.sendWindowChange(screenWidth, screenHeight, framerate);
 
+            // X server aligns its redraw timer to vsync, so it needs to know when frames start.
+            Choreographer.getInstance().removeFrameCallback(vsyncCallback);
+            vsyncCallback.lastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(vsyncCallback);
+
             if (service != null) {
                 try {
                     service.windowChanged(sfc, lorieView.getDisplay() != null ? lorieView.getDisplay().getName() : "screen");
@@ -253,11 +314,13 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
         mNotification = buildNotification();
         mNotificationManager.notify(mNotificationId, mNotification);
 
+        // Activity can be started for specific display like `am start -n com.termux.x11/.MainActivity --ei display 1`.
+        if (getIntent() != null && getIntent().hasExtra("display"))
+            CmdEntryPoint.setTargetDisplay(getIntent().getIntExtra("display", 0));
         CmdEntryPoint.requestConnection();
         onPreferencesChanged("");
 
         toggleExtraKeys(false, false);
-        checkXEvents();
 
         initStylusAuxButtons();
         initMouseAuxButtons();
@@ -272,6 +335,16 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
     @Override
     protected void onDestroy() {
         unregisterReceiver(receiver);
+        Choreographer.getInstance().removeFrameCallback(vsyncCallback);
+
+        // Server should not wait for callback of destroyed activity, it would never broadcast again otherwise.
+        try {
+            if (service != null && service.asBinder().isBinderAlive())
+                service.setCallback(null);
+        } catch (RemoteException e) {
+            Log.e("MainActivity", "failed to clear server callback", e);
+        }
+
         super.onDestroy();
     }
 
@@ -474,7 +547,8 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
                 if (logcatOutput != null)
                     LorieView.startLogcat(logcatOutput.detachFd());
 
-                tryConnect();
+                // Server calls back as soon as it is ready to accept connection, right away if it already is.
+                service.setCallback(serverCallback);
             }
         } catch (Exception e) {
             Log.e("MainActivity", "Something went wrong while we were establishing connection", e);
@@ -488,12 +562,14 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
             ParcelFileDescriptor fd = service == null ? null : service.getXConnection();
             if (fd != null) {
                 Log.v("MainActivity", "Extracting X connection socket.");
-                LorieView.connect(fd.detachFd());
+                SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(this);
+                int connFd = fd.detachFd();
+                LorieView.connect(connFd, p.getBoolean("sharedMemoryInput", false));
+                listenXEvents(connFd);
                 getLorieView().triggerCallback();
                 clientConnectedStateChanged(true);
-                getLorieView().reloadPreferences(PreferenceManager.getDefaultSharedPreferences(this));
-            } else
-                handler.postDelayed(this::tryConnect, 500);
+                getLorieView().reloadPreferences(p);
+            }
         } catch (Exception e) {
             Log.e("MainActivity", "Something went wrong while we were establishing connection", e);
             service = null;
@@ -864,9 +940,41 @@ public class MainActivity extends AppCompatActivity implements View.OnApplyWindo
         });
     }
 
-    private void checkXEvents() {
-        getLorieView().handleXEvents();
-        handler.postDelayed(this::checkXEvents, 300);
+    /**
+     * Dispatches messages of X server as soon as they arrive on the connection socket.
+     * Listener watches its own duplicate of socket, so it can be safely removed when connection is replaced or lost.
+     */
+    private void listenXEvents(int fd) {
+        MessageQueue queue = Looper.getMainLooper().getQueue();
+        if (xEventsFd != null) {
+            queue.removeOnFileDescriptorEventListener(xEventsFd.getFileDescriptor());
+            try {
+                xEventsFd.close();
+            } catch (IOException ignored) {}
+            xEventsFd = null;
+        }
+
+        try {
+            xEventsFd = ParcelFileDescriptor.fromFd(fd);
+        } catch (IOException e) {
+            Log.e("MainActivity", "Failed to listen for X server events", e);
+            return;
+        }
+
+        ParcelFileDescriptor listened = xEventsFd;
+        queue.addOnFileDescriptorEventListener(listened.getFileDescriptor(), EVENT_INPUT | EVENT_ERROR, (d, events) -> {
+            getLorieView().handleXEvents();
+            if (LorieView.connected())
+                return EVENT_INPUT | EVENT_ERROR;
+
+            // Connection is lost, it was already reported to CmdEntryPoint by handleXEvents.
+            if (xEventsFd == listened)
+                xEventsFd = null;
+            try {
+                listened.close();
+            } catch (IOException ignored) {}
+            return 0;
+        });
     }
 
     public static void getRealMetrics(DisplayMetrics m) {
@@ -37,6 +37,8 @@ public final class InputEventSender {
     public float capturedPointerSpeedFactor = 100;
     public boolean dexMetaKeyCapture = false;
     public boolean pauseKeyInterceptingWithEsc = false;
+    public boolean batchEvents = false;
+    public boolean highFidelity = false;
 
     /** Set of pressed keys for which we've sent TextEvent. */
     private final TreeSet<Integer> mPressedTextKeys;
@@ -78,10 +80,39 @@ public final class InputEventSender {
         mInjector.sendMouseEvent(x, y, BUTTON_UNDEFINED, false, relative);
     }
 
+    public void sendCursorMove(float x, float y, boolean relative, long time) {
+        mInjector.sendMouseEvent(x, y, BUTTON_UNDEFINED, false, relative, time);
+    }
+
+    /**
+     * Sends positions Android batched into the MotionEvent since the previous one in the case if
+     * high fidelity mode is enabled. Current position should be sent by caller.
+     */
+    public void sendHistoricalCursorMoves(MotionEvent event, RenderData renderData) {
+        if (!highFidelity)
+            return;
+
+        int index = event.getActionIndex();
+        for (int h = 0; h < event.getHistorySize(); h++)
+            mInjector.sendMouseEvent(event.getHistoricalX(index, h) * renderData.scale.x, event.getHistoricalY(index, h) * renderData.scale.y,
+                    BUTTON_UNDEFINED, false, false, event.getHistoricalEventTime(h));
+    }
+
     public void sendMouseWheelEvent(float distanceX, float distanceY) {
         mInjector.sendMouseWheelEvent(distanceX, distanceY);
     }
 
+    /** Starts accumulating events of current input frame in the case if batching is enabled. */
+    public void startBatch() {
+        if (batchEvents)
+            mInjector.startEventBatch();
+    }
+
+    /** Sends events accumulated since {@link #startBatch()}. */
+    public void flushBatch() {
+        mInjector.flushEventBatch();
+    }
+
     final boolean[] pointers = new boolean[10];
     /**
      * Extracts the touch point data from a MotionEvent, converts each point into a marshallable
@@ -103,17 +134,27 @@ public final class InputEventSender {
             for (int p = 0; p < pointerCount; p++)
                 pointers[event.getPointerId(p)] = false;
 
+            if (highFidelity) {
+                for (int h = 0; h < event.getHistorySize(); h++) {
+                    for (int p = 0; p < pointerCount; p++) {
+                        int x = clamp((int) (event.getHistoricalX(p, h) * renderData.scale.x), 0, renderData.screenWidth);
+                        int y = clamp((int) (event.getHistoricalY(p, h) * renderData.scale.y), 0, renderData.screenHeight);
+                        mInjector.sendTouchEvent(XI_TouchUpdate, event.getPointerId(p), x, y, event.getHistoricalEventTime(h));
+                    }
+                }
+            }
+
             for (int p = 0; p < pointerCount; p++) {
                 int x = clamp((int) (event.getX(p) * renderData.scale.x), 0, renderData.screenWidth);
                 int y = clamp((int) (event.getY(p) * renderData.scale.y), 0, renderData.screenHeight);
                 pointers[event.getPointerId(p)] = true;
-                mInjector.sendTouchEvent(XI_TouchUpdate, event.getPointerId(p), x, y);
+                mInjector.sendTouchEvent(XI_TouchUpdate, event.getPointerId(p), x, y, event.getEventTime());
             }
 
             // Sometimes Android does not send ACTION_POINTER_UP/ACTION_UP so some pointers are "stuck" in pressed state.
             for (int p = 0; p < 10; p++) {
                 if (!pointers[p])
-                    mInjector.sendTouchEvent(XI_TouchEnd, p, 0, 0);
+                    mInjector.sendTouchEvent(XI_TouchEnd, p, 0, 0, event.getEventTime());
             }
         } else {
             // For all other events, we only want to grab the current/active pointer.  The event
@@ -125,8 +166,8 @@ public final class InputEventSender {
             int y =  clamp((int) (event.getY(activePointerIndex) * renderData.scale.y), 0, renderData.screenHeight);
             int a = (action == MotionEvent.ACTION_DOWN || action == ACTION_POINTER_DOWN) ? XI_TouchBegin : XI_TouchEnd;
             if (a == XI_TouchEnd)
-                mInjector.sendTouchEvent(XI_TouchUpdate, id, x, y);
-            mInjector.sendTouchEvent(a, id, x, y);
+                mInjector.sendTouchEvent(XI_TouchUpdate, id, x, y, event.getEventTime());
+            mInjector.sendTouchEvent(a, id, x, y, event.getEventTime());
         }
     }
 
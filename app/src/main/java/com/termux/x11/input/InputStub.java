@@ -19,8 +19,13 @@ public interface InputStub {
     int BUTTON_RIGHT = 3;
     int BUTTON_SCROLL = 4;
 
-    /** Sends a mouse event. */
-    void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative);
+    /** Sends a mouse event. Time is MotionEvent time in milliseconds, 0 if unknown. */
+    void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative, long time);
+
+    /** Sends a mouse event without timestamp. */
+    default void sendMouseEvent(float x, float y, int whichButton, boolean buttonDown, boolean relative) {
+        sendMouseEvent(x, y, whichButton, buttonDown, relative, 0);
+    }
 
     /** Sends a mouse wheel event. */
     void sendMouseWheelEvent(float deltaX, float deltaY);
@@ -39,6 +44,12 @@ public interface InputStub {
     void sendTextEvent(byte[] utf8Bytes);
     void sendUnicodeEvent(int code);
 
-    /** Sends an event, not flushing connection. */
-    void sendTouchEvent(int action, int pointerId, int x, int y);
+    /** Sends an event, not flushing connection. Time is MotionEvent time in milliseconds. */
+    void sendTouchEvent(int action, int pointerId, int x, int y, long time);
+
+    /** Starts accumulating events instead of sending them one by one. */
+    void startEventBatch();
+
+    /** Sends all events accumulated since {@link #startEventBatch()} as a single frame. */
+    void flushEventBatch();
 }
@@ -155,6 +155,16 @@ public class TouchInputHandler {
     }
 
     public boolean handleTouchEvent(View view0, View view, MotionEvent event) {
+        // All events produced by one MotionEvent are sent to X server in one frame.
+        mInjector.startBatch();
+        try {
+            return handleTouchEventInternal(view0, view, event);
+        } finally {
+            mInjector.flushBatch();
+        }
+    }
+
+    private boolean handleTouchEventInternal(View view0, View view, MotionEvent event) {
         if (view0 != view) {
             int[] view0Location = new int[2];
             int[] viewLocation = new int[2];
@@ -174,15 +184,23 @@ public class TouchInputHandler {
         if (event.getAction() == MotionEvent.ACTION_UP)
             setCapturingEnabled(true);
 
-        if (event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_STYLUS)
+        if (event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_STYLUS) {
+            mActivity.getLorieView().setPointerFromMouse(false);
             return mStylusListener.onTouch(event);
+        }
 
         if (!isDexEvent(event) && (event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_MOUSE
                 || (event.getSource() & InputDevice.SOURCE_MOUSE) == InputDevice.SOURCE_MOUSE)
                 || (event.getSource() & InputDevice.SOURCE_MOUSE_RELATIVE) == InputDevice.SOURCE_MOUSE_RELATIVE
                 || (event.getPointerCount() == 1 && mTouchpadHandler == null
-                   && (event.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD))
+                   && (event.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD)) {
+            // Android shows pointer icon for real mouse unless it is captured, LorieView checks capture itself.
+            mActivity.getLorieView().setPointerFromMouse(true);
             return mHMListener.onTouch(view, event);
+        }
+
+        // Android does not show pointer icon for touchscreen and touchpads in trackpad mode.
+        mActivity.getLorieView().setPointerFromMouse(false);
 
         if (event.getToolType(event.getActionIndex()) == MotionEvent.TOOL_TYPE_FINGER) {
             // Dex touchpad sends events as finger, but it should be considered as a mouse.
@@ -192,7 +210,7 @@ public class TouchInputHandler {
             // Regular touchpads and Dex touchpad send events as finger too,
             // but they should be handled as touchscreens with trackpad mode.
             if (mTouchpadHandler != null && (event.getSource() & InputDevice.SOURCE_TOUCHPAD) == InputDevice.SOURCE_TOUCHPAD)
-                return mTouchpadHandler.handleTouchEvent(view, view, event);
+                return mTouchpadHandler.handleTouchEventInternal(view, view, event);
 
             // Give the underlying input strategy a chance to observe the current motion event before
             // passing it to the gesture detectors.  This allows the input strategy to react to the
@@ -296,6 +314,8 @@ public class TouchInputHandler {
         mInjector.capturedPointerSpeedFactor = ((float) p.getInt("capturedPointerSpeedFactor", 100))/100;
         mInjector.dexMetaKeyCapture = p.getBoolean("dexMetaKeyCapture", false);
         mInjector.pauseKeyInterceptingWithEsc = p.getBoolean("pauseKeyInterceptingWithEsc", false);
+        mInjector.batchEvents = p.getBoolean("batchInputEvents", false);
+        mInjector.highFidelity = p.getBoolean("highFidelityInput", false);
         switch (p.getString("transformCapturedPointer", "no")) {
             case "c":
                 capturedPointerTransformation = CapturedPointerTransformation.CLOCKWISE;
@@ -546,8 +566,9 @@ public class TouchInputHandler {
 
             if (!v.hasPointerCapture()) {
                 float scaledX = e.getX() * mRenderData.scale.x, scaledY = e.getY() * mRenderData.scale.y;
+                mInjector.sendHistoricalCursorMoves(e, mRenderData);
                 if (mRenderData.setCursorPosition(scaledX, scaledY))
-                    mInjector.sendCursorMove(scaledX, scaledY, false);
+                    mInjector.sendCursorMove(scaledX, scaledY, false, e.getEventTime());
             } else if (e.getAction() == MotionEvent.ACTION_MOVE && e.getPointerCount() == 1) {
                 boolean axis_relative_x = e.getDevice().getMotionRange(MotionEvent.AXIS_RELATIVE_X) != null;
                 boolean mouse_relative = (e.getSource() & InputDevice.SOURCE_MOUSE_RELATIVE) == InputDevice.SOURCE_MOUSE_RELATIVE;
@@ -596,8 +617,9 @@ public class TouchInputHandler {
         boolean onTouch(MotionEvent e) {
             int action = e.getAction();
             float scaledX = e.getX(e.getActionIndex()) * mRenderData.scale.x, scaledY = e.getY(e.getActionIndex()) * mRenderData.scale.y;
+            mInjector.sendHistoricalCursorMoves(e, mRenderData);
             if (mRenderData.setCursorPosition(scaledX, scaledY))
-                mInjector.sendCursorMove(scaledX, scaledY, false);
+                mInjector.sendCursorMove(scaledX, scaledY, false, e.getEventTime());
 
             if (action == MotionEvent.ACTION_DOWN || action == ACTION_PRIMARY_DOWN) {
                 button = STYLUS_INPUT_HELPER_MODE;